@@ -388,7 +388,11 @@ trait BuiltInComponents extends I18nComponents {
 
   lazy val tempFileReaper: TemporaryFileReaper =
     new DefaultTemporaryFileReaper(actorSystem, TemporaryFileReaperConfiguration.fromConfiguration(configuration))
-  lazy val tempFileCreator: TemporaryFileCreator = new DefaultTemporaryFileCreator(applicationLifecycle, tempFileReaper)
+  lazy val tempFileCreator: TemporaryFileCreator = new DefaultTemporaryFileCreator(
+    applicationLifecycle,
+    tempFileReaper,
+    TemporaryFileCreatorConfiguration.fromConfiguration(configuration)
+  )
 
   lazy val fileMimeTypes: FileMimeTypes = new DefaultFileMimeTypesProvider(httpConfiguration.fileMimeTypes).get
 
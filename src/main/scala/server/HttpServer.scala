@@ -1,16 +1,77 @@
 package server
 
+import java.util.concurrent.TimeUnit
+
+import com.typesafe.config.ConfigMemorySize
 import io.netty.bootstrap.ServerBootstrap
 import io.netty.channel.kqueue.{KQueueEventLoopGroup, KQueueServerSocketChannel}
 import io.netty.channel.socket.SocketChannel
-import io.netty.channel.{ChannelInitializer, ChannelOption}
-import io.netty.handler.codec.http.HttpServerCodec
-import io.netty.handler.timeout.{ReadTimeoutHandler, WriteTimeoutHandler}
+import io.netty.channel.{ChannelInitializer, ChannelOption, WriteBufferWaterMark}
+import io.netty.handler.codec.http.HttpRequestDecoder
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker
+import io.netty.handler.timeout.{IdleStateHandler, WriteTimeoutHandler}
+import server.netty.{CachingHttpResponseEncoder, DateHeader}
+
+import scala.concurrent.duration.Duration
+
+/**
+  * The server configuration.
+  *
+  * @param drainUnreadBody Whether to read and discard the rest of a request body the application did not consume, so
+  *                        that the connection can be kept alive. If false, such connections are closed instead.
+  * @param maxDrainLength  The maximum number of unread body bytes to discard before closing the connection anyway.
+  * @param idleTimeout     How long a connection may go without reading or writing anything before it is closed.
+  * @param writeTimeout    How long a write may wait for the client to read before the connection is closed.
+  * @param writeBufferLowWaterMark  The number of pending outbound bytes below which a connection is writable again.
+  * @param writeBufferHighWaterMark The number of pending outbound bytes above which a connection stops being
+  *                                 writable. Streamed responses are not pulled while their connection isn't writable.
+  * @param webSocketMaxFrameLength   The maximum length of a WebSocket frame.
+  * @param webSocketMaxMessageLength The maximum length of a WebSocket message, once its frames are aggregated.
+  * @param webSocketCompression      Whether to negotiate the permessage-deflate WebSocket extension.
+  */
+case class HttpServerConfiguration(
+                                    drainUnreadBody: Boolean = false,
+                                    maxDrainLength: Long = 1024 * 1024,
+                                    idleTimeout: Duration = Duration(75, TimeUnit.SECONDS),
+                                    writeTimeout: Duration = Duration(30, TimeUnit.SECONDS),
+                                    writeBufferLowWaterMark: Int = 32 * 1024,
+                                    writeBufferHighWaterMark: Int = 64 * 1024,
+                                    webSocketMaxFrameLength: Int = 64 * 1024,
+                                    webSocketMaxMessageLength: Int = 1024 * 1024,
+                                    webSocketCompression: Boolean = true
+                                  )
+
+object HttpServerConfiguration {
+
+  def fromConfiguration(configuration: Configuration): HttpServerConfiguration =
+    HttpServerConfiguration(
+      drainUnreadBody = configuration.get[Boolean]("play.server.http.drainUnreadBody"),
+      maxDrainLength = configuration.get[ConfigMemorySize]("play.server.http.maxDrainLength").toBytes,
+      idleTimeout = configuration.get[Duration]("play.server.http.idleTimeout"),
+      writeTimeout = configuration.get[Duration]("play.server.http.writeTimeout"),
+      writeBufferLowWaterMark =
+        configuration.get[ConfigMemorySize]("play.server.http.writeBufferLowWaterMark").toBytes.toInt,
+      writeBufferHighWaterMark =
+        configuration.get[ConfigMemorySize]("play.server.http.writeBufferHighWaterMark").toBytes.toInt,
+      webSocketMaxFrameLength =
+        configuration.get[ConfigMemorySize]("play.server.websocket.frame.maxLength").toBytes.toInt,
+      webSocketMaxMessageLength =
+        configuration.get[ConfigMemorySize]("play.server.websocket.message.maxLength").toBytes.toInt,
+      webSocketCompression = configuration.get[Boolean]("play.server.websocket.compression")
+    )
+}
+
+class HttpServer(val port: Int, application: Application, config: HttpServerConfiguration) {
+
+  def this(port: Int, application: Application) =
+    this(port, application, HttpServerConfiguration.fromConfiguration(application.configuration))
 
-class HttpServer(val port: Int) {
   def run(): Unit = {
     val bossGroup = new KQueueEventLoopGroup()
     val workGroup = new KQueueEventLoopGroup()
+    val dateHeader = new DateHeader
+    dateHeader.start(workGroup)
 
     try {
       val b = new ServerBootstrap()
@@ -18,20 +79,34 @@ class HttpServer(val port: Int) {
         .channel(classOf[KQueueServerSocketChannel])
         .childHandler(new ChannelInitializer[SocketChannel] {
           override def initChannel(ch: SocketChannel): Unit = {
-            ch.pipeline().addLast(
-              new ReadTimeoutHandler(10),
-              new WriteTimeoutHandler(10),
-              new HttpServerCodec(),
-              new HttpServerHandler())
+            val pipeline = ch.pipeline()
+            // Closed by HttpServerHandler, see userEventTriggered
+            if (config.idleTimeout.isFinite) {
+              pipeline.addLast(new IdleStateHandler(0, 0, config.idleTimeout.toMillis, TimeUnit.MILLISECONDS))
+            }
+            if (config.writeTimeout.isFinite) {
+              pipeline.addLast(new WriteTimeoutHandler(config.writeTimeout.toMillis, TimeUnit.MILLISECONDS))
+            }
+            pipeline.addLast(new HttpRequestDecoder(), new CachingHttpResponseEncoder(dateHeader))
+            if (config.webSocketCompression) {
+              // Sees the upgrade request and response, to negotiate and install the deflate codec
+              pipeline.addLast(new WebSocketServerExtensionHandler(new PerMessageDeflateServerExtensionHandshaker()))
+            }
+            pipeline.addLast(new HttpServerHandler(application, config, dateHeader))
           }
         })
         .option(ChannelOption.SO_BACKLOG.asInstanceOf[ChannelOption[Any]], 128)
         .childOption(ChannelOption.SO_KEEPALIVE.asInstanceOf[ChannelOption[Any]], true)
+        .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK.asInstanceOf[ChannelOption[Any]],
+          new WriteBufferWaterMark(config.writeBufferLowWaterMark, config.writeBufferHighWaterMark))
+        // Request bodies are read on demand, see HttpServerHandler
+        .childOption(ChannelOption.AUTO_READ.asInstanceOf[ChannelOption[Any]], false)
 
       val f = b.bind(port).sync()
 
       f.channel().closeFuture().sync()
     } finally {
+      dateHeader.stop()
       workGroup.shutdownGracefully()
       bossGroup.shutdownGracefully()
     }
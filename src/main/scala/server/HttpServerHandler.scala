@@ -1,53 +1,588 @@
 package server
 
-import io.netty.buffer.Unpooled
-import io.netty.channel.{ChannelFutureListener, ChannelHandlerContext, ChannelInboundHandlerAdapter}
-import io.netty.handler.codec.http.HttpResponseStatus.OK
-import io.netty.handler.codec.http.HttpVersion.HTTP_1_1
+import java.io.IOException
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+
+import akka.stream.Materializer
+import akka.stream.scaladsl.{Flow, Source}
+import akka.util.ByteString
+import io.netty.buffer.{ByteBuf, ByteBufOutputStream, Unpooled}
+import io.netty.channel._
 import io.netty.handler.codec.http._
+import io.netty.handler.codec.http.websocketx.{WebSocketFrameAggregator, WebSocketServerHandshakerFactory}
+import io.netty.handler.flush.FlushConsolidationHandler
+import io.netty.handler.ssl.SslHandler
+import io.netty.handler.stream.{ChunkedNioFile, ChunkedWriteHandler}
+import io.netty.handler.timeout.IdleStateEvent
+import io.netty.util.ReferenceCountUtil
+import server.core.Execution.trampoline
+import server.http.HttpEntity
+import server.http.HeaderNames.{CONNECTION, DATE, UPGRADE}
+import server.http.Status.UPGRADE_REQUIRED
+import server.http.websocket.Message
+import server.libs.Files.{TemporaryFileCreator, TemporaryFileScope}
+import server.libs.typedmap.TypedMap
+import server.mvc.request.RequestAttrKey
+import server.mvc.{EssentialAction, RangeResult, RequestHeader, Result, Results, WebSocket}
+import server.netty.{DateHeader, NettyModelConversion, RequestBodySource, WebSocketHandler}
 
-import scala.concurrent.{ExecutionContext, Future}
+import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.util.control.NonFatal
+import scala.util.{Failure, Success, Try}
 
 object HttpServerHandler {
-  implicit val ec: ExecutionContext = scala.concurrent.ExecutionContext.Implicits.global
 
-  val demo: HttpRequest => Future[HttpResponse] = _ => Future {
-    val response = new DefaultFullHttpResponse(HTTP_1_1, OK, Unpooled.wrappedBuffer("GG".getBytes("utf-8")))
-    response.headers().set("Content-Type", "text/plain")
-    response.headers().setInt("Content-Length", response.content().readableBytes())
-    response
+  private val logger = Logger(classOf[HttpServerHandler])
+
+  /**
+    * A result ready to be written, with the content its [[HttpEntity.Written]] body was written to, if any.
+    */
+  private final case class PreparedResult(result: Result, content: ByteBuf)
+
+  /**
+    * The state of a single request/response exchange. Only accessed from the channel's event loop.
+    */
+  private final class Exchange(request: HttpRequest) {
+    val version: HttpVersion = request.protocolVersion
+    val isHead: Boolean = request.method == HttpMethod.HEAD
+    val expectContinue: Boolean = HttpUtil.is100ContinueExpected(request)
+    val unsupportedExpectation: Boolean = !expectContinue && version.compareTo(HttpVersion.HTTP_1_1) >= 0 &&
+      request.headers.contains(HttpHeaderNames.EXPECT)
+    var keepAlive: Boolean = HttpUtil.isKeepAlive(request)
+    val isWebSocketUpgrade: Boolean =
+      request.headers.containsValue(HttpHeaderNames.UPGRADE, HttpHeaderValues.WEBSOCKET, true)
+    /** Whether the connection was upgraded to the WebSocket protocol, and is no longer handled here */
+    var upgraded = false
+
+    var body: RequestBodySource = _
+    /** The temporary files created while handling the request, deleted once the response is written */
+    var temporaryFiles: TemporaryFileScope = _
+    /** Whether the body source is waiting for bytes that were not read yet */
+    var demandPending = false
+    var continueSent = false
+    /** Whether the application stopped consuming the body before its end */
+    var bodyCancelled = false
+    /** Whether the last content of the request was read */
+    var requestComplete = false
+
+    var responseStarted = false
+    var responseComplete = false
+
+    /** Whether the rest of the body is being read and discarded, after the response was sent */
+    var draining = false
+    var drainedBytes = 0L
+
+    def discardsBody: Boolean = draining || bodyCancelled
   }
+
+  private def toByteString(buf: ByteBuf): ByteString = {
+    val bytes = new Array[Byte](buf.readableBytes)
+    buf.readBytes(bytes)
+    ByteString.fromArrayUnsafe(bytes)
+  }
+
+  private def toByteBuf(bytes: ByteString): ByteBuf =
+    if (bytes.isEmpty) Unpooled.EMPTY_BUFFER else Unpooled.wrappedBuffer(bytes.asByteBuffer)
+
+  /** The chunk size of files written through a [[ChunkedWriteHandler]] */
+  private val FileChunkSize = 8192
+
+  /**
+    * The size of the regions files are sent in, one after the other, so that the write timeout applies to each region
+    * rather than to the whole file.
+    */
+  private val FileRegionSize = 1L << 20
 }
 
+/**
+  * Bridges the HTTP/1.x exchanges of a connection to the application.
+  *
+  * The channel does not auto read. Once the headers of a request are read, the request is handed to the application
+  * and its body is only read as fast as the body parser consumes it. In particular, the `100 Continue` response
+  * expected by a client sending `Expect: 100-continue` is only sent when the body is first asked for, so a request
+  * rejected from its headers alone, eg because its Content-Length exceeds the parser limit, never has its body sent.
+  *
+  * If the response is complete while the request body was not entirely read, the connection is closed, or, if
+  * [[HttpServerConfiguration.drainUnreadBody]] is set, the rest of the body is read and discarded (up to
+  * [[HttpServerConfiguration.maxDrainLength]]) before the next request is read.
+  *
+  * Conditional and range requests are answered from the result validators and entity, see [[RangeResult]]. The
+  * temporary files the body parsers create for a request are deleted once its response is written.
+  *
+  * Streamed and chunked bodies are pulled as long as the channel is writable, each chunk being flushed as soon as it
+  * is produced. When the client reads slower than the body is produced, the pending bytes reach the write buffer high
+  * water mark and the body is no longer pulled until they fall below the low water mark. Idle connections, see
+  * [[HttpServerConfiguration.idleTimeout]], are closed.
+  *
+  * A WebSocket handler accepting an upgrade request has the handshake completed, after which the connection is
+  * handed over to a [[WebSocketHandler]] running its flow.
+  *
+  * All mutable state is only accessed from the channel's event loop.
+  */
+class HttpServerHandler(application: Application, config: HttpServerConfiguration, dateHeader: DateHeader)
+  extends ChannelInboundHandlerAdapter {
 
-class HttpServerHandler extends ChannelInboundHandlerAdapter {
+  import HttpServerHandler._
 
-  override def channelRead(ctx: ChannelHandlerContext, msg: Any): Unit = {
+  def this(application: Application, config: HttpServerConfiguration) =
+    this(application, config, new DateHeader)
 
-    msg match {
-      case request: HttpRequest =>
+  private implicit def materializer: Materializer = application.materializer
 
-        implicit val ec: ExecutionContext = scala.concurrent.ExecutionContext.Implicits.global
+  private val modelConversion = new NettyModelConversion(application.requestFactory, application.httpConfiguration)
 
-        HttpServerHandler.demo(request).map(response => {
-          val keepAlive = HttpUtil.isKeepAlive(request)
-          if (!keepAlive) {
-            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE)
-          } else {
-            response.headers().set("Connection", "keep-alive")
-            ctx.writeAndFlush(response)
-          }
-        })
-      case _ =>
-    }
+  private lazy val temporaryFileCreator = application.injector.instanceOf[TemporaryFileCreator]
+
+  private var ctx: ChannelHandlerContext = _
+  private var eventLoop: ExecutionContext = _
+
+  /** The exchange in progress, if any */
+  private var exchange: Exchange = _
+
+  /** Messages of pipelined requests, read before the exchange in progress was complete */
+  private val deferred = new java.util.ArrayDeque[HttpObject]()
 
+  /** Completed when the channel is writable again, for the streamed body waiting for it */
+  private var writable: Promise[Unit] = _
+
+  override def handlerAdded(ctx: ChannelHandlerContext): Unit = {
+    this.ctx = ctx
+    eventLoop = ExecutionContext.fromExecutor(ctx.executor)
+  }
+
+  override def channelActive(ctx: ChannelHandlerContext): Unit = {
+    ctx.read()
+    super.channelActive(ctx)
+  }
+
+  override def channelRead(ctx: ChannelHandlerContext, msg: Any): Unit = msg match {
+    case message: HttpObject => dispatch(message)
+    case other => ReferenceCountUtil.release(other)
   }
 
   override def channelReadComplete(ctx: ChannelHandlerContext): Unit = {
-    ctx.flush()
+    val ex = exchange
+    // A read may not have produced any body content, keep reading while some is wanted
+    if (ex != null && !ex.requestComplete && (ex.demandPending || ex.draining)) ctx.read()
+  }
+
+  override def channelInactive(ctx: ChannelHandlerContext): Unit = {
+    val ex = exchange
+    if (ex != null && !ex.requestComplete && !ex.discardsBody) {
+      ex.body.fail(new IOException("Connection closed before the request body was read"))
+    }
+    if (ex != null && ex.temporaryFiles != null) ex.temporaryFiles.close()
+    exchange = null
+    while (!deferred.isEmpty) ReferenceCountUtil.release(deferred.poll())
+    if (writable != null) {
+      writable.tryFailure(new IOException("Connection closed"))
+      writable = null
+    }
+    super.channelInactive(ctx)
+  }
+
+  override def channelWritabilityChanged(ctx: ChannelHandlerContext): Unit = {
+    if (writable != null && ctx.channel.isWritable) {
+      writable.trySuccess(())
+      writable = null
+    }
+    super.channelWritabilityChanged(ctx)
+  }
+
+  override def userEventTriggered(ctx: ChannelHandlerContext, event: Any): Unit = event match {
+    case _: IdleStateEvent =>
+      logger.debug("Closing idle connection")
+      ctx.close()
+    case _ => super.userEventTriggered(ctx, event)
   }
 
   override def exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable): Unit = {
+    logger.debug("Exception caught in the HTTP handler, closing the connection", cause)
     ctx.close()
   }
+
+  private def dispatch(message: HttpObject): Unit = {
+    if (exchange != null && exchange.requestComplete) {
+      // A pipelined request, handled once the current exchange is complete
+      deferred.add(message)
+    } else {
+      message match {
+        case request: HttpRequest => startExchange(request)
+        case _ =>
+      }
+      message match {
+        case content: HttpContent =>
+          try handleContent(content)
+          finally content.release()
+        case _ =>
+      }
+    }
+  }
+
+  private def startExchange(request: HttpRequest): Unit = {
+    val ex = new Exchange(request)
+    ex.body = new RequestBodySource(() => onEventLoop(bodyDemanded(ex)), () => onEventLoop(ex.bodyCancelled = true))
+    ex.temporaryFiles = temporaryFileCreator.requestScope()
+    exchange = ex
+
+    val attrs = TypedMap(RequestAttrKey.TemporaryFiles -> ex.temporaryFiles)
+    modelConversion.convertRequest(ctx.channel, request, attrs) match {
+      case Success(requestHeader) if request.decoderResult.isSuccess && !ex.unsupportedExpectation =>
+        val (taggedRequest, handled) = handleRequest(requestHeader, ex)
+        handled
+          .flatMap {
+            case Left(result) => prepareResult(ex, taggedRequest, result).map(Left(_))(trampoline)
+            case Right(flow) => Future.successful(Right(flow))
+          }(trampoline)
+          .flatMap {
+            case Left(response) => writeResult(ex, taggedRequest, response)
+            case Right(flow) => upgrade(ex, request, flow)
+          }(eventLoop)
+          .onComplete(responseWritten(ex, _))(eventLoop)
+      case _ =>
+        val status =
+          if (ex.unsupportedExpectation) HttpResponseStatus.EXPECTATION_FAILED
+          else HttpResponseStatus.BAD_REQUEST
+        logger.debug(s"Rejecting invalid request ${request.method} ${request.uri} with $status")
+        ex.keepAlive = false
+        ex.responseStarted = true
+        val response = new DefaultFullHttpResponse(ex.version, status)
+        response.headers.set(DATE, dateHeader.value)
+        HttpUtil.setContentLength(response, 0)
+        HttpUtil.setKeepAlive(response, false)
+        write(response).onComplete(responseWritten(ex, _))(eventLoop)
+    }
+  }
+
+  /**
+    * Run the handler of the request.
+    *
+    * @return The tagged request, and either the result to write or the flow of an accepted WebSocket.
+    */
+  private def handleRequest(requestHeader: RequestHeader,
+                            ex: Exchange): (RequestHeader, Future[Either[Result, Flow[Message, Message, _]]]) = {
+    import server.core.Execution.Implicits.trampoline
+    val errorHandler = application.errorHandler
+    try {
+      val (taggedRequest, handler) = application.requestHandler.handlerForRequest(requestHeader)
+      val handled = handler match {
+        case action: EssentialAction =>
+          action(taggedRequest).run(Source.fromGraph(ex.body)).recoverWith {
+            case NonFatal(e) => errorHandler.onServerError(taggedRequest, e)
+          }.map(Left(_))
+        case ws: WebSocket if ex.isWebSocketUpgrade =>
+          ws(taggedRequest).recoverWith {
+            case NonFatal(e) => errorHandler.onServerError(taggedRequest, e).map(Left(_))
+          }
+        case _: WebSocket =>
+          Future.successful(Left(Results.Status(UPGRADE_REQUIRED)("Upgrade to WebSocket required")
+            .withHeaders(UPGRADE -> "websocket", CONNECTION -> UPGRADE)))
+        case other =>
+          errorHandler.onServerError(taggedRequest, new IllegalStateException(s"Unsupported handler type: $other"))
+            .map(Left(_))
+      }
+      taggedRequest -> handled
+    } catch {
+      case NonFatal(e) => requestHeader -> errorHandler.onServerError(requestHeader, e).map(Left(_))
+    }
+  }
+
+  private def handleContent(content: HttpContent): Unit = {
+    val ex = exchange
+    if (ex != null) {
+      if (ex.discardsBody) {
+        ex.drainedBytes += content.content.readableBytes
+      } else {
+        ex.body.offer(toByteString(content.content))
+        ex.demandPending = false
+      }
+
+      if (content.isInstanceOf[LastHttpContent]) {
+        ex.requestComplete = true
+        if (!ex.discardsBody) ex.body.complete()
+        if (ex.responseComplete) nextExchange()
+      } else if (ex.draining && ex.drainedBytes > config.maxDrainLength) {
+        logger.debug(s"Closing the connection after discarding ${ex.drainedBytes} unread request body bytes")
+        ctx.close()
+      }
+    }
+  }
+
+  /**
+    * Called when the body source is pulled and has nothing buffered.
+    */
+  private def bodyDemanded(ex: Exchange): Unit = {
+    if (!ex.requestComplete && !ex.discardsBody) {
+      if (ex.expectContinue && !ex.continueSent && !ex.responseStarted) {
+        ex.continueSent = true
+        ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE))
+      }
+      ex.demandPending = true
+      ctx.read()
+    }
+  }
+
+  /**
+    * Prepare the result for writing, on the thread that completed it rather than on the event loop: a
+    * [[HttpEntity.Written]] body is written into a buffer of the channel's allocator here, so that encoding it doesn't
+    * hold up the other connections of the event loop. If writing it fails, the error handler's result is written.
+    */
+  private def prepareResult(ex: Exchange, request: RequestHeader, original: Result): Future[PreparedResult] = {
+    val result = RangeResult(request, original)
+    result.body match {
+      case HttpEntity.Written(write, _) if ex.isHead || !isBodiless(ex, result.header.status) =>
+        val content = ctx.alloc.buffer()
+        try {
+          write(new ByteBufOutputStream(content))
+          Future.successful(PreparedResult(result, content))
+        } catch {
+          case NonFatal(e) =>
+            content.release()
+            application.errorHandler.onServerError(request, e).map { failed =>
+              val body = failed.body match {
+                case written: HttpEntity.Written => written.toStrict
+                case other => other
+              }
+              PreparedResult(failed.copy(body = body), null)
+            }(trampoline)
+        }
+      case _ => Future.successful(PreparedResult(result, null))
+    }
+  }
+
+  private def isBodiless(ex: Exchange, status: Int): Boolean =
+    ex.isHead || status == 204 || status == 304 || status < 200
+
+  /**
+    * Write the result. Runs on the event loop, the body is then written from the stream.
+    */
+  private def writeResult(ex: Exchange, request: RequestHeader, prepared: PreparedResult): Future[Unit] = {
+    ex.responseStarted = true
+    val result = prepared.result
+    val response = modelConversion.convertResponseHeader(request, result, ex.version)
+    val status = response.status.code
+    if (!response.headers.contains(DATE)) response.headers.set(DATE, dateHeader.value)
+
+    // Nothing can be read from a client still waiting for 100 Continue, so such a connection can't be reused
+    if (!ex.requestComplete && ((ex.expectContinue && !ex.continueSent) || !config.drainUnreadBody)) {
+      ex.keepAlive = false
+    }
+
+    def isChunkedAllowed = ex.version == HttpVersion.HTTP_1_1
+
+    result.body match {
+      case entity if isBodiless(ex, status) =>
+        if (ex.isHead) {
+          entity.contentLength
+            .orElse(Option(prepared.content).map(_.readableBytes.toLong))
+            .foreach(HttpUtil.setContentLength(response, _))
+        }
+        HttpUtil.setKeepAlive(response, ex.keepAlive)
+        entity match {
+          case file: HttpEntity.File => closeFile(file)
+          case _ =>
+        }
+        if (prepared.content != null) prepared.content.release()
+        writeFull(response, Unpooled.EMPTY_BUFFER)
+
+      case file: HttpEntity.File =>
+        HttpUtil.setContentLength(response, file.length)
+        HttpUtil.setKeepAlive(response, ex.keepAlive)
+        writeFile(response, file).andThen { case _ => closeFile(file) }(eventLoop)
+
+      case HttpEntity.Strict(data, _) =>
+        HttpUtil.setContentLength(response, data.size)
+        HttpUtil.setKeepAlive(response, ex.keepAlive)
+        writeFull(response, toByteBuf(data))
+
+      case HttpEntity.Written(_, _) =>
+        HttpUtil.setContentLength(response, prepared.content.readableBytes)
+        HttpUtil.setKeepAlive(response, ex.keepAlive)
+        writeFull(response, prepared.content)
+
+      case HttpEntity.Streamed(data, contentLength, _) =>
+        contentLength match {
+          case Some(length) => HttpUtil.setContentLength(response, length)
+          case None if isChunkedAllowed => HttpUtil.setTransferEncodingChunked(response, true)
+          case None => ex.keepAlive = false // delimited by closing the connection
+        }
+        HttpUtil.setKeepAlive(response, ex.keepAlive)
+        writeStreamed(response, data.map(bytes => new DefaultHttpContent(toByteBuf(bytes))))
+
+      case HttpEntity.Chunked(chunks, _) =>
+        if (isChunkedAllowed) HttpUtil.setTransferEncodingChunked(response, true) else ex.keepAlive = false
+        HttpUtil.setKeepAlive(response, ex.keepAlive)
+        writeStreamed(response, chunks.map {
+          case server.http.HttpChunk.Chunk(data) =>
+            new DefaultHttpContent(toByteBuf(data))
+          case server.http.HttpChunk.LastChunk(trailers) if isChunkedAllowed =>
+            val last = new DefaultLastHttpContent()
+            trailers.headers.foreach { case (name, value) => last.trailingHeaders.add(name, value) }
+            last
+          case server.http.HttpChunk.LastChunk(_) =>
+            LastHttpContent.EMPTY_LAST_CONTENT
+        })
+    }
+  }
+
+  /**
+    * Complete the WebSocket handshake, then hand the connection over to a [[WebSocketHandler]], after a frame
+    * aggregator enforcing the maximum message length and a handler batching the flushes.
+    */
+  private def upgrade(ex: Exchange, request: HttpRequest, flow: Flow[Message, Message, _]): Future[Unit] = {
+    ex.responseStarted = true
+    ex.keepAlive = false
+    val location = "ws://" + request.headers.get(HttpHeaderNames.HOST, "localhost") + request.uri
+    val factory = new WebSocketServerHandshakerFactory(location, "*", true, config.webSocketMaxFrameLength)
+    factory.newHandshaker(request) match {
+      case null =>
+        toFuture(WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel))
+      case handshaker =>
+        val fullRequest = new DefaultFullHttpRequest(request.protocolVersion, request.method, request.uri,
+          Unpooled.EMPTY_BUFFER, request.headers, EmptyHttpHeaders.INSTANCE)
+        toFuture(handshaker.handshake(ctx.channel, fullRequest)).map { _ =>
+          ex.upgraded = true
+          val pipeline = ctx.pipeline
+          pipeline.addBefore(ctx.name, "webSocketAggregator",
+            new WebSocketFrameAggregator(config.webSocketMaxMessageLength))
+          pipeline.addBefore(ctx.name, "flushConsolidation",
+            new FlushConsolidationHandler(FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES, true))
+          pipeline.replace(ctx.name, "webSocket", new WebSocketHandler(flow))
+          ()
+        }(eventLoop)
+    }
+  }
+
+  private def writeFull(response: HttpResponse, content: ByteBuf): Future[Unit] =
+    write(new DefaultFullHttpResponse(response.protocolVersion, response.status, content, response.headers,
+      EmptyHttpHeaders.INSTANCE))
+
+  private def writeStreamed(response: HttpResponse, contents: Source[HttpContent, _]): Future[Unit] = {
+    import server.core.Execution.Implicits.trampoline
+    write(response).flatMap { _ =>
+      contents
+        .takeWhile(!_.isInstanceOf[LastHttpContent], inclusive = true)
+        .mapAsync(1) {
+          case last: LastHttpContent => write(last).map(_ => true)
+          case content => writeWhenWritable(content).map(_ => false)
+        }
+        .runFold(false)((_, isLast) => isLast)
+        .flatMap(ended => if (ended) Future.successful(()) else write(LastHttpContent.EMPTY_LAST_CONTENT))
+    }
+  }
+
+  /**
+    * Write a file as file regions. Without anything transforming the bytes on their way out, they go through the
+    * transport's sendfile, never entering the JVM heap. Otherwise, eg with TLS or compression, the file is read in
+    * chunks.
+    */
+  private def writeFile(response: HttpResponse, file: HttpEntity.File): Future[Unit] = {
+    val pipeline = ctx.pipeline
+    ctx.write(response)
+    if (pipeline.get(classOf[SslHandler]) == null && pipeline.get(classOf[HttpContentCompressor]) == null) {
+      writeFileRegions(file.path.toFile, file.offset, file.length)
+    } else {
+      if (pipeline.get(classOf[ChunkedWriteHandler]) == null) {
+        pipeline.addBefore(ctx.name, "chunkedWriter", new ChunkedWriteHandler())
+      }
+      Future.fromTry(Try(FileChannel.open(file.path, StandardOpenOption.READ))).flatMap { channel =>
+        write(new HttpChunkedInput(new ChunkedNioFile(channel, file.offset, file.length, FileChunkSize)))
+      }(eventLoop)
+    }
+  }
+
+  /**
+    * Write the rest of a file a region at a time, each one once the previous one was sent.
+    */
+  private def writeFileRegions(file: java.io.File, position: Long, remaining: Long): Future[Unit] =
+    if (remaining <= 0) {
+      write(LastHttpContent.EMPTY_LAST_CONTENT)
+    } else {
+      val length = math.min(remaining, FileRegionSize)
+      write(new DefaultFileRegion(file, position, length)).flatMap { _ =>
+        writeFileRegions(file, position + length, remaining - length)
+      }(eventLoop)
+    }
+
+  private def closeFile(file: HttpEntity.File): Unit =
+    try file.onClose()
+    catch {
+      case NonFatal(e) => logger.error(s"Error closing ${file.path}", e)
+    }
+
+  /**
+    * Write and flush a message without waiting for it to be sent.
+    *
+    * @return A future completed once the channel can take more, right away unless the write buffer is above its high
+    *         water mark.
+    */
+  private def writeWhenWritable(message: Any): Future[Unit] = {
+    val promise = Promise[Unit]()
+    onEventLoop {
+      ctx.writeAndFlush(message).addListener(ChannelFutureListener.CLOSE_ON_FAILURE)
+      if (ctx.channel.isWritable) {
+        promise.success(())
+      } else if (!ctx.channel.isActive) {
+        promise.failure(new IOException("Connection closed"))
+      } else {
+        writable = promise
+      }
+    }
+    promise.future
+  }
+
+  private def write(message: Any): Future[Unit] = toFuture(ctx.writeAndFlush(message))
+
+  private def toFuture(channelFuture: ChannelFuture): Future[Unit] = {
+    val promise = Promise[Unit]()
+    channelFuture.addListener(new ChannelFutureListener {
+      override def operationComplete(future: ChannelFuture): Unit =
+        if (future.isSuccess) promise.success(()) else promise.failure(future.cause)
+    })
+    promise.future
+  }
+
+  /**
+    * Called on the event loop once the response is entirely written, or failed to be.
+    */
+  private def responseWritten(ex: Exchange, outcome: Try[Unit]): Unit = {
+    ex.responseComplete = true
+    ex.temporaryFiles.close()
+    outcome match {
+      case Failure(e) =>
+        logger.debug("Failed to write the response, closing the connection", e)
+        ex.keepAlive = false
+      case Success(_) =>
+    }
+
+    if (ex.upgraded) {
+      // The connection now belongs to the WebSocket handler
+      exchange = null
+      while (!deferred.isEmpty) ReferenceCountUtil.release(deferred.poll())
+    } else if (!ex.keepAlive) {
+      ctx.close()
+    } else if (ex.requestComplete) {
+      nextExchange()
+    } else {
+      // The response is out but the body was not entirely read, discard the rest of it
+      if (!ex.discardsBody) ex.body.fail(new IOException("The response was sent before the request body was read"))
+      ex.draining = true
+      ctx.read()
+    }
+  }
+
+  private def nextExchange(): Unit = {
+    exchange = null
+    val pending = new java.util.ArrayList[HttpObject](deferred)
+    deferred.clear()
+    pending.forEach(dispatch(_))
+    if (exchange == null) ctx.read()
+  }
+
+  private def onEventLoop(block: => Unit): Unit =
+    if (ctx.executor.inEventLoop) block
+    else ctx.executor.execute(new Runnable {
+      override def run(): Unit = block
+    })
 }
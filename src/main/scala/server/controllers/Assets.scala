@@ -0,0 +1,292 @@
+package server.controllers
+
+import java.net.{JarURLConnection, URL}
+import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.{Files, Path, Paths}
+
+import akka.stream.scaladsl.StreamConverters
+import akka.util.ByteString
+import com.google.common.cache.{Cache, CacheBuilder, Weigher}
+import com.google.common.io.ByteStreams
+import com.typesafe.config.ConfigMemorySize
+import javax.inject.{Inject, Provider, Singleton}
+import server.http.HeaderNames._
+import server.http.Status._
+import server.http.{ContentTypes, FileMimeTypes, HttpEntity, HttpErrorHandler}
+import server.mvc.RangeResult.FileValidators
+import server.mvc._
+import server.{Configuration, Environment, Mode}
+
+import scala.collection.JavaConverters._
+import scala.concurrent.Future
+import scala.util.Try
+
+/**
+  * An encoding of precompressed assets.
+  *
+  * @param acceptEncoding The content coding, as found in the Accept-Encoding and Content-Encoding headers.
+  * @param extension      The extension of the precompressed siblings of the assets, eg `gz` for `main.js.gz`.
+  */
+case class AssetEncoding(acceptEncoding: String, extension: String)
+
+object AssetEncoding {
+  val Brotli = AssetEncoding("br", "br")
+  val Gzip = AssetEncoding("gzip", "gz")
+}
+
+/**
+  * Configuration for the assets controller.
+  *
+  * @param path                   The classpath location of the assets.
+  * @param directory              A directory the assets are served from instead of the classpath, if any.
+  * @param urlPrefix              The URL prefix of the assets.
+  * @param checkForMinified       Whether to serve the minified version of an asset (`x.min.js`) if there is one.
+  * @param defaultCacheControl    The Cache-Control header of the assets.
+  * @param aggressiveCacheControl The Cache-Control header of the fingerprinted assets, whose content never changes.
+  * @param defaultCharSet         The charset of text assets.
+  * @param textContentTypes       The content types, besides `text/...`, of the assets sent with a charset.
+  * @param encodings              The precompressed encodings looked for, by order of preference.
+  * @param cacheMaxSize           The maximum number of bytes of asset content kept in memory.
+  * @param cacheMaxFileSize       The maximum size of an asset kept in memory. Larger assets are sent from their file.
+  */
+case class AssetsConfiguration(
+                                path: String = "/public",
+                                directory: Option[String] = None,
+                                urlPrefix: String = "/assets",
+                                checkForMinified: Boolean = true,
+                                defaultCacheControl: String = "public, max-age=3600",
+                                aggressiveCacheControl: String = "public, max-age=31536000, immutable",
+                                defaultCharSet: String = "utf-8",
+                                textContentTypes: Set[String] = Set("application/json", "application/javascript"),
+                                encodings: Seq[AssetEncoding] = Seq(AssetEncoding.Brotli, AssetEncoding.Gzip),
+                                cacheMaxSize: Long = 32 * 1024 * 1024,
+                                cacheMaxFileSize: Long = 256 * 1024
+                              )
+
+object AssetsConfiguration {
+
+  def fromConfiguration(configuration: Configuration, mode: Mode = Mode.Prod): AssetsConfiguration = {
+    val config = configuration.get[Configuration]("play.assets")
+    AssetsConfiguration(
+      path = config.get[String]("path"),
+      directory = config.getOptional[String]("directory"),
+      urlPrefix = config.get[String]("urlPrefix"),
+      checkForMinified = config.getOptional[Boolean]("checkForMinified").getOrElse(mode != Mode.Dev),
+      defaultCacheControl = config.get[String]("defaultCache"),
+      aggressiveCacheControl = config.get[String]("aggressiveCache"),
+      defaultCharSet = config.get[String]("default.charset"),
+      textContentTypes = config.get[Seq[String]]("textContentTypes").toSet,
+      encodings = config.underlying.getConfigList("encodings").asScala.map { encoding =>
+        AssetEncoding(encoding.getString("accept"), encoding.getString("extension"))
+      },
+      cacheMaxSize = config.get[ConfigMemorySize]("cache.maxSize").toBytes,
+      cacheMaxFileSize = config.get[ConfigMemorySize]("cache.maxFileSize").toBytes
+    )
+  }
+}
+
+@Singleton
+class AssetsConfigurationProvider @Inject()(environment: Environment, configuration: Configuration)
+  extends Provider[AssetsConfiguration] {
+  lazy val get = AssetsConfiguration.fromConfiguration(configuration, environment.mode)
+}
+
+/**
+  * Serves static assets, from the classpath or from a directory.
+  *
+  * For clients accepting one of the configured encodings, a precompressed sibling of the asset (eg `main.js.br`) is
+  * sent when there is one. Assets up to [[AssetsConfiguration.cacheMaxFileSize]] are kept in memory, in a cache bounded
+  * to [[AssetsConfiguration.cacheMaxSize]] bytes evicting the least recently used ones, and reloaded when their file
+  * changes. Larger files are sent straight from the filesystem.
+  *
+  * Assets whose name carries a content digest (eg `d41d8cd98f00b204e9800998ecf8427e-main.js` or
+  * `main.3f2a1b9c.js`) are sent with the aggressive Cache-Control. Conditional and range requests are answered by the
+  * server from the ETag and Last-Modified headers, see [[RangeResult]].
+  */
+@Singleton
+class Assets @Inject()(
+                        errorHandler: HttpErrorHandler,
+                        config: AssetsConfiguration,
+                        environment: Environment,
+                        fileMimeTypes: FileMimeTypes,
+                        actionBuilder: DefaultActionBuilder
+                      ) {
+
+  import Assets._
+
+  private val directory: Option[Path] = config.directory.map(dir => Paths.get(dir).toAbsolutePath.normalize)
+
+  /** The content of small assets, by file or resource */
+  private val cache: Cache[String, CachedAsset] = CacheBuilder
+    .newBuilder()
+    .maximumWeight(config.cacheMaxSize)
+    .weigher(new Weigher[String, CachedAsset] {
+      override def weigh(key: String, asset: CachedAsset): Int = asset.content.size
+    })
+    .build()
+
+  /** Resources found not to exist, the classpath doesn't change */
+  private val missingResources: Cache[String, java.lang.Boolean] = CacheBuilder.newBuilder().maximumSize(10000).build()
+
+  /**
+    * Serve the given asset from the configured location.
+    *
+    * @param file The name of the asset.
+    */
+  def at(file: String): Action[AnyContent] = at(config.path, file)
+
+  /**
+    * Serve the given asset.
+    *
+    * @param path              The classpath location of the asset, unused if the assets are served from a directory.
+    * @param file              The name of the asset.
+    * @param aggressiveCaching Whether to use the aggressive Cache-Control whatever the name of the asset.
+    */
+  def at(path: String, file: String, aggressiveCaching: Boolean = false): Action[AnyContent] =
+    actionBuilder.async(BodyParsers.utils.ignore(AnyContentAsEmpty: AnyContent)) { request =>
+      val name = file.stripPrefix("/")
+      if (name.isEmpty || name.endsWith("/") || name.split('/').exists(segment => segment == ".." || segment == ".")) {
+        notFound(request)
+      } else {
+        serve(path, name, acceptedEncodings(request), aggressiveCaching) match {
+          case Some(result) => Future.successful(result)
+          case None => notFound(request)
+        }
+      }
+    }
+
+  private def notFound(request: RequestHeader): Future[Result] =
+    errorHandler.onClientError(request, NOT_FOUND, "Resource not found by Assets controller")
+
+  private def acceptedEncodings(request: RequestHeader): Seq[AssetEncoding] = {
+    val accepted = RequestHeader.acceptHeader(request.headers, ACCEPT_ENCODING)
+    def qValue(coding: String) =
+      accepted.collectFirst { case (q, c) if c.equalsIgnoreCase(coding) => q }
+        .orElse(accepted.collectFirst { case (q, "*") => q })
+        .getOrElse(0.0)
+    config.encodings.filter(encoding => qValue(encoding.acceptEncoding) > 0)
+  }
+
+  private def serve(path: String, name: String, encodings: Seq[AssetEncoding], aggressiveCaching: Boolean) = {
+    val names = if (config.checkForMinified) minifiedNames(name) :+ name else Seq(name)
+    val candidates = for {
+      candidate <- names.iterator
+      encoding <- encodings.iterator.map(Some(_)) ++ Iterator.single(None)
+    } yield candidate -> encoding
+
+    candidates
+      .map {
+        case (candidate, encoding) =>
+          lookup(path, candidate + encoding.fold("")("." + _.extension)).map(asset => (candidate, encoding, asset))
+      }
+      .collectFirst {
+        case Some((candidate, encoding, (validators, entity))) =>
+          val cacheControl =
+            if (aggressiveCaching || isFingerprinted(candidate)) config.aggressiveCacheControl
+            else config.defaultCacheControl
+          val headers = validators.headers ++
+            Seq(CACHE_CONTROL -> cacheControl) ++
+            encoding.map(CONTENT_ENCODING -> _.acceptEncoding) ++
+            (if (config.encodings.nonEmpty) Seq(VARY -> ACCEPT_ENCODING) else Nil)
+          Result(ResponseHeader(OK, headers.toMap), entity(contentType(candidate)))
+      }
+  }
+
+  private def contentType(name: String): Option[String] = {
+    val mimeType = fileMimeTypes.forFileName(name).getOrElse(ContentTypes.BINARY)
+    if (mimeType.startsWith("text/") || config.textContentTypes.contains(mimeType)) {
+      Some(mimeType + "; charset=" + config.defaultCharSet)
+    } else {
+      Some(mimeType)
+    }
+  }
+
+  /**
+    * Find an asset, returning its validators and its entity given its content type.
+    */
+  private def lookup(path: String, name: String): Option[(FileValidators, Option[String] => HttpEntity)] =
+    directory match {
+      case Some(dir) =>
+        val file = dir.resolve(name).normalize
+        if (file.startsWith(dir)) lookupFile(file) else None
+      case None =>
+        val resource = (path.stripPrefix("/").stripSuffix("/") + "/" + name).stripPrefix("/")
+        if (missingResources.getIfPresent(resource) != null) {
+          None
+        } else {
+          val asset = Option(environment.classLoader.getResource(resource)).flatMap(lookupResource(resource, _))
+          if (asset.isEmpty) missingResources.put(resource, true)
+          asset
+        }
+    }
+
+  private def lookupFile(file: Path): Option[(FileValidators, Option[String] => HttpEntity)] =
+    Try(Files.readAttributes(file, classOf[BasicFileAttributes])).toOption.filter(_.isRegularFile).map { attributes =>
+      val validators = RangeResult.validatorsOf(file, attributes)
+      if (validators.size <= config.cacheMaxFileSize) {
+        val key = file.toString
+        val content = Option(cache.getIfPresent(key)) match {
+          case Some(cached) if cached.validators == validators => cached.content
+          case _ =>
+            val content = ByteString.fromArrayUnsafe(Files.readAllBytes(file))
+            cache.put(key, CachedAsset(validators, content))
+            content
+        }
+        validators -> (HttpEntity.Strict(content, _))
+      } else {
+        validators -> (HttpEntity.File(file, 0, validators.size, _))
+      }
+    }
+
+  private def lookupResource(resource: String, url: URL): Option[(FileValidators, Option[String] => HttpEntity)] =
+    url.getProtocol match {
+      case "file" => lookupFile(Paths.get(url.toURI))
+      case _ =>
+        Option(cache.getIfPresent(resource)) match {
+          case Some(cached) =>
+            Some(cached.validators -> (HttpEntity.Strict(cached.content, _)))
+          case None =>
+            val connection = url.openConnection()
+            connection.setUseCaches(false)
+            val isDirectory = connection match {
+              case jar: JarURLConnection => Option(jar.getJarEntry).forall(_.isDirectory)
+              case _ => false
+            }
+            if (isDirectory) {
+              None
+            } else {
+              val validators = FileValidators(connection.getContentLengthLong, connection.getLastModified)
+              if (validators.size <= config.cacheMaxFileSize) {
+                val stream = connection.getInputStream
+                val content = try ByteString.fromArrayUnsafe(ByteStreams.toByteArray(stream)) finally stream.close()
+                cache.put(resource, CachedAsset(validators, content))
+                Some(validators -> (HttpEntity.Strict(content, _)))
+              } else {
+                Some(validators -> (contentType =>
+                  HttpEntity.Streamed(StreamConverters.fromInputStream(() => connection.getInputStream),
+                    Some(validators.size), contentType)))
+              }
+            }
+        }
+    }
+}
+
+object Assets {
+
+  private final case class CachedAsset(validators: FileValidators, content: ByteString)
+
+  /** A digest prefix, as added by sbt-digest, or a hash before the extension, as added by bundlers */
+  private val Fingerprinted = """(?:[0-9a-f]{32,}-.+)|(?:.+[.-][0-9a-f]{8,}\.[^.]+)""".r
+
+  private def isFingerprinted(name: String): Boolean =
+    Fingerprinted.pattern.matcher(name.substring(name.lastIndexOf('/') + 1)).matches
+
+  private def minifiedNames(name: String): Seq[String] = name.lastIndexOf('.') match {
+    case -1 => Nil
+    case i if name.lastIndexOf('/') > i => Nil
+    case i =>
+      val (base, extension) = name.splitAt(i)
+      if (base.endsWith(".min") || base.endsWith("-min")) Nil
+      else Seq(base + ".min" + extension, base + "-min" + extension)
+  }
+}
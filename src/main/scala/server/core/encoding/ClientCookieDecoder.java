@@ -15,8 +15,7 @@
  */
 package server.core.encoding;
 
-import java.text.ParsePosition;
-import java.util.Date;
+import server.core.utils.HttpHeaderDateFormat;
 
 /**
  * A <a href="https://tools.ietf.org/html/rfc6265">RFC6265</a> compliant cookie decoder to be used
@@ -171,9 +170,9 @@ public final class ClientCookieDecoder extends CookieDecoder {
             if (maxAge != Integer.MIN_VALUE) {
                 return maxAge;
             } else if (expires != null) {
-                Date expiresDate = HttpHeaderDateFormat.get().parse(expires, new ParsePosition(0));
-                if (expiresDate != null) {
-                    long maxAgeMillis = expiresDate.getTime() - System.currentTimeMillis();
+                long expiresMillis = HttpHeaderDateFormat.parseMillis(expires);
+                if (expiresMillis != HttpHeaderDateFormat.Invalid()) {
+                    long maxAgeMillis = expiresMillis - System.currentTimeMillis();
                     return (int) (maxAgeMillis / 1000 + (maxAgeMillis % 1000 != 0 ? 1 : 0));
                 }
             }
@@ -1,92 +0,0 @@
-/*
- * Copyright 2012 The Netty Project
- *
- * The Netty Project licenses this file to you under the Apache License,
- * version 2.0 (the "License"); you may not use this file except in compliance
- * with the License. You may obtain a copy of the License at:
- *
- *   http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
- * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
- * License for the specific language governing permissions and limitations
- * under the License.
- */
-package server.core.encoding;
-
-import java.text.ParsePosition;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
-
-/**
- * This DateFormat decodes 3 formats of {@link Date}, but only encodes the one, the first:
- *
- * <ul>
- * <li>Sun, 06 Nov 1994 08:49:37 GMT: standard specification, the only one with valid generation
- * <li>Sun, 06 Nov 1994 08:49:37 GMT: obsolete specification
- * <li>Sun Nov 6 08:49:37 1994: obsolete specification
- * </ul>
- */
-final class HttpHeaderDateFormat extends SimpleDateFormat {
-    private static final long serialVersionUID = -925286159755905325L;
-    private static final ThreadLocal<HttpHeaderDateFormat> FORMAT_THREAD_LOCAL =
-            new ThreadLocal<HttpHeaderDateFormat>() {
-                @Override
-                protected HttpHeaderDateFormat initialValue() {
-                    return new HttpHeaderDateFormat();
-                }
-            };
-    private final SimpleDateFormat format1 = new HttpHeaderDateFormatObsolete1();
-    private final SimpleDateFormat format2 = new HttpHeaderDateFormatObsolete2();
-
-    /**
-     * Standard date format
-     */
-    private HttpHeaderDateFormat() {
-        super("E, dd MMM yyyy HH:mm:ss z", Locale.ENGLISH);
-        setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
-
-    public static HttpHeaderDateFormat get() {
-        return FORMAT_THREAD_LOCAL.get();
-    }
-
-    @Override
-    public Date parse(String text, ParsePosition pos) {
-        Date date = super.parse(text, pos);
-        if (date == null) {
-            date = format1.parse(text, pos);
-        }
-        if (date == null) {
-            date = format2.parse(text, pos);
-        }
-        return date;
-    }
-
-    /**
-     * First obsolete format
-     */
-    private static final class HttpHeaderDateFormatObsolete1 extends SimpleDateFormat {
-        private static final long serialVersionUID = -3178072504225114298L;
-
-        HttpHeaderDateFormatObsolete1() {
-            super("E, dd-MMM-yy HH:mm:ss z", Locale.ENGLISH);
-            setTimeZone(TimeZone.getTimeZone("GMT"));
-        }
-    }
-
-    /**
-     * Second obsolete format
-     */
-    private static final class HttpHeaderDateFormatObsolete2 extends SimpleDateFormat {
-        private static final long serialVersionUID = 3010674519968303714L;
-
-        HttpHeaderDateFormatObsolete2() {
-            super("E MMM d HH:mm:ss yyyy", Locale.ENGLISH);
-            setTimeZone(TimeZone.getTimeZone("GMT"));
-        }
-    }
-}
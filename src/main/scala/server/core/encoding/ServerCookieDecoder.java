@@ -15,6 +15,7 @@
  */
 package server.core.encoding;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Set;
 import java.util.TreeSet;
@@ -45,6 +46,7 @@ public final class ServerCookieDecoder extends CookieDecoder {
     private static final String RFC2965_PATH = "$" + CookieHeaderNames.PATH;
     private static final String RFC2965_DOMAIN = "$" + CookieHeaderNames.DOMAIN;
     private static final String RFC2965_PORT = "$Port";
+    private static final int[] NO_OFFSETS = new int[0];
 
     private ServerCookieDecoder(boolean strict) {
         super(strict);
@@ -57,16 +59,41 @@ public final class ServerCookieDecoder extends CookieDecoder {
      * @return the decoded {@link Cookie}
      */
     public Set<Cookie> decode(String header) {
+        int[] offsets = scan(header);
+        if (offsets.length == 0) {
+            return Collections.emptySet();
+        }
+
+        Set<Cookie> cookies = new TreeSet<Cookie>();
+        for (int index = 0; index < offsets.length / 4; index++) {
+            DefaultCookie cookie = decode(header, offsets, index);
+            if (cookie != null) {
+                cookies.add(cookie);
+            }
+        }
+
+        return cookies;
+    }
+
+    /**
+     * Finds the cookies of the specified Cookie HTTP header value, without decoding them.
+     *
+     * @param header the Cookie header.
+     * @return the offsets of the cookies in the header, four per cookie: the beginning and end of the name, then the
+     * beginning and end of the value, -1 if the cookie has no value
+     */
+    public int[] scan(String header) {
         if (header == null) {
             throw new NullPointerException("header");
         }
         final int headerLen = header.length();
 
         if (headerLen == 0) {
-            return Collections.emptySet();
+            return NO_OFFSETS;
         }
 
-        Set<Cookie> cookies = new TreeSet<Cookie>();
+        int[] offsets = new int[16];
+        int count = 0;
 
         int i = 0;
 
@@ -147,12 +174,28 @@ public final class ServerCookieDecoder extends CookieDecoder {
                 continue;
             }
 
-            DefaultCookie cookie = initCookie(header, nameBegin, nameEnd, valueBegin, valueEnd);
-            if (cookie != null) {
-                cookies.add(cookie);
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
             }
+            offsets[count++] = nameBegin;
+            offsets[count++] = nameEnd;
+            offsets[count++] = valueBegin;
+            offsets[count++] = valueEnd;
         }
 
-        return cookies;
+        return Arrays.copyOf(offsets, count);
+    }
+
+    /**
+     * Decodes one of the cookies found by {@link #scan(String)}.
+     *
+     * @param header  the Cookie header.
+     * @param offsets the offsets of the cookies in the header.
+     * @param index   the index of the cookie.
+     * @return the decoded cookie, or null if it is invalid
+     */
+    public DefaultCookie decode(String header, int[] offsets, int index) {
+        int i = index * 4;
+        return initCookie(header, offsets[i], offsets[i + 1], offsets[i + 2], offsets[i + 3]);
     }
 }
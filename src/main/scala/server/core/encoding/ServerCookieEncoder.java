@@ -17,6 +17,8 @@ package server.core.encoding;
 
 import java.util.*;
 
+import server.core.utils.HttpHeaderDateFormat;
+
 import static server.core.encoding.CookieUtil.*;
 
 /**
@@ -80,34 +82,84 @@ public final class ServerCookieEncoder extends CookieEncoder {
             add(buf, name, value);
         }
 
-        if (cookie.maxAge() != Integer.MIN_VALUE) {
-            add(buf, CookieHeaderNames.MAX_AGE, cookie.maxAge());
-            Date expires =
-                    cookie.maxAge() <= 0
-                            ? new Date(0) // Set expires to the Unix epoch
-                            : new Date(cookie.maxAge() * 1000L + System.currentTimeMillis());
-            add(buf, CookieHeaderNames.EXPIRES, HttpHeaderDateFormat.get().format(expires));
+        addExpiry(buf, cookie.maxAge());
+        addAttributes(buf, cookie.sameSite(), cookie.path(), cookie.domain(), cookie.isSecure(), cookie.isHttpOnly());
+
+        return stripTrailingSeparator(buf);
+    }
+
+    /**
+     * Encodes the attributes of a cookie that don't depend on the time, for {@link #encode(String, String, int, String)}.
+     * Cookies sharing these attributes can share their encoded form.
+     *
+     * @param sameSite the SameSite attribute, or null
+     * @param path     the Path attribute, or null
+     * @param domain   the Domain attribute, or null
+     * @param secure   whether the cookie is secure
+     * @param httpOnly whether the cookie is HTTP only
+     * @return the encoded attributes
+     */
+    public String encodeAttributes(String sameSite, String path, String domain, boolean secure, boolean httpOnly) {
+        StringBuilder buf = new StringBuilder();
+        addAttributes(buf, sameSite, path, domain, secure, httpOnly);
+        return buf.toString();
+    }
+
+    /**
+     * Encodes the specified cookie into a Set-Cookie header value, from its attributes encoded by
+     * {@link #encodeAttributes(String, String, String, boolean, boolean)}.
+     *
+     * @param name       the cookie name
+     * @param value      the cookie value
+     * @param maxAge     the cookie max age, {@link Integer#MIN_VALUE} for none
+     * @param attributes the encoded cookie attributes
+     * @return a single Set-Cookie header value
+     */
+    public String encode(String name, String value, int maxAge, String attributes) {
+        if (value == null) {
+            value = "";
+        }
+
+        validateCookie(name, value);
+
+        StringBuilder buf = new StringBuilder(name.length() + value.length() + attributes.length() + 64);
+        add(buf, name, value);
+        addExpiry(buf, maxAge);
+        buf.append(attributes);
+
+        return stripTrailingSeparator(buf);
+    }
+
+    private static void addExpiry(StringBuilder buf, int maxAge) {
+        if (maxAge != Integer.MIN_VALUE) {
+            add(buf, CookieHeaderNames.MAX_AGE, maxAge);
+            long expires =
+                    maxAge <= 0
+                            ? 0 // Set expires to the Unix epoch
+                            : maxAge * 1000L + System.currentTimeMillis();
+            add(buf, CookieHeaderNames.EXPIRES, HttpHeaderDateFormat.formatMillis(expires));
         }
+    }
 
-        if (cookie.sameSite() != null) {
-            add(buf, CookieHeaderNames.SAMESITE, cookie.sameSite());
+    private static void addAttributes(
+            StringBuilder buf, String sameSite, String path, String domain, boolean secure, boolean httpOnly) {
+        if (sameSite != null) {
+            add(buf, CookieHeaderNames.SAMESITE, sameSite);
         }
 
-        if (cookie.path() != null) {
-            add(buf, CookieHeaderNames.PATH, cookie.path());
+        if (path != null) {
+            add(buf, CookieHeaderNames.PATH, path);
         }
 
-        if (cookie.domain() != null) {
-            add(buf, CookieHeaderNames.DOMAIN, cookie.domain());
+        if (domain != null) {
+            add(buf, CookieHeaderNames.DOMAIN, domain);
         }
-        if (cookie.isSecure()) {
+        if (secure) {
             add(buf, CookieHeaderNames.SECURE);
         }
-        if (cookie.isHttpOnly()) {
+        if (httpOnly) {
             add(buf, CookieHeaderNames.HTTPONLY);
         }
-
-        return stripTrailingSeparator(buf);
     }
 
     /**
@@ -1,11 +1,34 @@
 package server.core.parsers
 
 
-import java.net.URLDecoder
+import java.nio.charset.Charset
+
+import akka.util.{ByteIterator, ByteString}
+
+import scala.collection.immutable.ListMap
+import scala.collection.mutable
 
 /** An object for parsing application/x-www-form-urlencoded data */
 object FormUrlEncodedParser {
 
+  /**
+    * Limits applied while parsing a form body.
+    *
+    * @param maxFields      The maximum number of key/value pairs accepted
+    * @param maxKeyLength   The maximum length in bytes of a single (decoded) key
+    * @param maxValueLength The maximum length in bytes of a single (decoded) value
+    */
+  case class Limits(maxFields: Int = Int.MaxValue, maxKeyLength: Int = Int.MaxValue, maxValueLength: Int = Int.MaxValue)
+
+  object Limits {
+    val Unlimited: Limits = Limits()
+  }
+
+  /**
+    * Thrown when a form body violates one of the configured [[Limits]].
+    */
+  class FormLimitExceededException(message: String) extends IllegalArgumentException(message)
+
   /**
     * Parse the content type "application/x-www-form-urlencoded" which consists of a bunch of & separated key=value
     * pairs, both of which are URL encoded.
@@ -22,21 +45,41 @@ object FormUrlEncodedParser {
   /**
     * Parse the content type "application/x-www-form-urlencoded" which consists of a bunch of & separated key=value
     * pairs, both of which are URL encoded. We are careful in this parser to maintain the original order of the
-    * keys by using OrderPreserving.groupBy as some applications depend on the original browser ordering.
+    * keys as some applications depend on the original browser ordering.
     *
     * @param data     The body content of the request, or whatever needs to be so parsed
     * @param encoding The character encoding of data
     * @return A ListMap of keys to the sequence of values for that key
     */
-  def parse(data: String, encoding: String = "utf-8"): Map[String, Seq[String]] = {
+  def parse(data: String, encoding: String = "utf-8"): Map[String, Seq[String]] =
+    parse(ByteString(data, encoding), Charset.forName(encoding))
 
-    // Generate the pairs of values from the string.
-    val pairs: Seq[(String, String)] = parseToPairs(data, encoding)
-
-    // Group the pairs by the key (first item of the pair) being sure to preserve insertion order
-    server.utils.OrderPreserving.groupBy(pairs)(_._1)
+  /**
+    * Parse the content type "application/x-www-form-urlencoded" directly from the raw body bytes.
+    *
+    * This is a single pass over the bytes: keys and values are percent-decoded into one reusable buffer and grouped
+    * into an insertion ordered multimap as they are found, so no intermediate String of the whole body is created.
+    *
+    * @param data    The body content of the request
+    * @param charset The character encoding used to decode the percent-decoded keys and values
+    * @param limits  The limits to enforce, a [[FormLimitExceededException]] is thrown if any is exceeded
+    * @return A ListMap of keys to the sequence of values for that key
+    */
+  def parse(data: ByteString, charset: Charset, limits: Limits): Map[String, Seq[String]] = {
+    val grouped = mutable.LinkedHashMap.empty[String, mutable.Builder[String, Seq[String]]]
+    foreachPair(data, charset, limits) { (key, value) =>
+      grouped.getOrElseUpdate(key, Seq.newBuilder[String]) += value
+    }
+    val b = ListMap.newBuilder[String, Seq[String]]
+    grouped.foreach { case (key, values) => b += key -> values.result() }
+    b.result()
   }
 
+  /**
+    * Parse the content type "application/x-www-form-urlencoded" directly from the raw body bytes, without limits.
+    */
+  def parse(data: ByteString, charset: Charset): Map[String, Seq[String]] = parse(data, charset, Limits.Unlimited)
+
   /**
     * Parse the content type "application/x-www-form-urlencoded", mapping to a Java compatible format.
     *
@@ -67,8 +110,6 @@ object FormUrlEncodedParser {
     }.asJava
   }
 
-  private[this] val parameterDelimiter = "[&;]".r
-
   /**
     * Do the basic parsing into a sequence of key/value pairs
     *
@@ -77,16 +118,87 @@ object FormUrlEncodedParser {
     * @return The sequence of key/value pairs
     */
   private def parseToPairs(data: String, encoding: String): Seq[(String, String)] = {
-    val split = parameterDelimiter.split(data)
-    if (split.length == 1 && split(0).isEmpty) {
-      Seq.empty
-    } else {
-      split.map { param =>
-        val parts = param.split("=", -1)
-        val key = URLDecoder.decode(parts(0), encoding)
-        val value = URLDecoder.decode(parts.lift(1).getOrElse(""), encoding)
-        key -> value
+    val pairs = Seq.newBuilder[(String, String)]
+    foreachPair(ByteString(data, encoding), Charset.forName(encoding), Limits.Unlimited)((k, v) => pairs += k -> v)
+    pairs.result()
+  }
+
+  /**
+    * Scan the bytes once, calling `f` for every decoded key/value pair in the order they appear.
+    *
+    * Pairs are separated by either `&` or `;`, empty pairs are skipped, and a pair without `=` has an empty value.
+    */
+  private def foreachPair(data: ByteString, charset: Charset, limits: Limits)(f: (String, String) => Unit): Unit = {
+    val buffer = new DecodeBuffer(charset)
+    val it = data.iterator
+
+    var fields = 0
+    var key: String = null
+    var pairStarted = false
+
+    def endPair(): Unit = {
+      if (pairStarted) {
+        fields += 1
+        if (fields > limits.maxFields) {
+          throw new FormLimitExceededException(s"Form has more than ${limits.maxFields} fields")
+        }
+        if (key == null) f(buffer.take(), "") else f(key, buffer.take())
+      }
+      key = null
+      pairStarted = false
+    }
+
+    while (it.hasNext) {
+      val b = it.next()
+      if (b == '&' || b == ';') {
+        endPair()
+      } else if (b == '=' && key == null) {
+        key = buffer.take()
+        pairStarted = true
+      } else {
+        pairStarted = true
+        val max = if (key == null) limits.maxKeyLength else limits.maxValueLength
+        if (buffer.length >= max) {
+          val what = if (key == null) "key" else "value"
+          throw new FormLimitExceededException(s"Form $what is longer than $max bytes")
+        }
+        if (b == '+') {
+          buffer.append(' '.toByte)
+        } else if (b == '%') {
+          buffer.append(((hexDigit(it) << 4) | hexDigit(it)).toByte)
+        } else {
+          buffer.append(b)
+        }
       }
     }
+    endPair()
+  }
+
+  private def hexDigit(it: ByteIterator): Int = {
+    if (!it.hasNext) throw new IllegalArgumentException("Incomplete trailing escape (%) pattern")
+    Character.digit(it.next().toChar, 16) match {
+      case -1 => throw new IllegalArgumentException("Illegal hex characters in escape (%) pattern")
+      case d => d
+    }
+  }
+
+  /**
+    * A growable byte buffer that is reused for every key and value of a single parse.
+    */
+  private final class DecodeBuffer(charset: Charset) {
+    private var bytes = new Array[Byte](64)
+    var length = 0
+
+    def append(b: Byte): Unit = {
+      if (length == bytes.length) bytes = java.util.Arrays.copyOf(bytes, length * 2)
+      bytes(length) = b
+      length += 1
+    }
+
+    def take(): String = {
+      val s = if (length == 0) "" else new String(bytes, 0, length, charset)
+      length = 0
+      s
+    }
   }
 }
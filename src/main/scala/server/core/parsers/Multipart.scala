@@ -138,7 +138,7 @@ object Multipart {
   def handleFilePartAsTemporaryFile(temporaryFileCreator: TemporaryFileCreator): FilePartHandler[TemporaryFile] = {
     case FileInfo(partName, filename, contentType, dispositionType) =>
       val tempFile = temporaryFileCreator.create("multipartBody", "asTemporaryFile")
-      Accumulator(FileIO.toPath(tempFile.path)).mapFuture {
+      Accumulator(temporaryFileCreator.sink(tempFile)).mapFuture {
         case IOResult(_, Failure(error)) => Future.failed(error)
         case IOResult(count, _) =>
           Future.successful(FilePart(partName, filename, contentType, tempFile, count, dispositionType))
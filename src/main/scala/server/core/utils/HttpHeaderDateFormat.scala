@@ -0,0 +1,281 @@
+package server.core.utils
+
+import java.time.Instant
+import java.util.concurrent.atomic.AtomicReference
+
+import server.mvc.ResponseHeader
+
+/**
+  * Formats and parses HTTP dates, without going through a date-time formatter.
+  *
+  * Dates are formatted in the IMF-fixdate format of RFC 7231, eg `Sun, 06 Nov 1994 08:49:37 GMT`. Header dates have
+  * a precision of one second, so the last formatted second is cached: all the responses sent within a second share
+  * the same string.
+  *
+  * Dates are parsed in the three formats a recipient must accept: IMF-fixdate (and RFC 1123 with a numeric offset),
+  * RFC 850 (`Sunday, 06-Nov-94 08:49:37 GMT`) and asctime (`Sun Nov  6 08:49:37 1994`), as well as the
+  * `Sun, 06-Nov-1994 08:49:37 GMT` format common in cookie expiry dates. Two-digit years are taken to be in 1970-2069.
+  */
+private[server] object HttpHeaderDateFormat {
+
+  /**
+    * What [[parseMillis]] returns for invalid dates.
+    */
+  final val Invalid = Long.MinValue
+
+  private final class Formatted(val epochSecond: Long, val value: String)
+
+  private val last = new AtomicReference(new Formatted(Long.MinValue, ""))
+
+  private val DayNames = Array("Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat")
+
+  private val MonthNames = Array("Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec")
+
+  private val SecondsPerDay = 86400L
+
+  /**
+    * Format the given instant, truncated to the second.
+    */
+  def format(instant: Instant): String = format(instant.getEpochSecond)
+
+  /**
+    * Format the given number of milliseconds since the epoch, truncated to the second.
+    */
+  def formatMillis(epochMillis: Long): String = format(Math.floorDiv(epochMillis, 1000L))
+
+  private def format(epochSecond: Long): String = {
+    val cached = last.get
+    if (cached.epochSecond == epochSecond) {
+      cached.value
+    } else {
+      val value = render(epochSecond)
+      last.set(new Formatted(epochSecond, value))
+      value
+    }
+  }
+
+  private def render(epochSecond: Long): String = {
+    val days = Math.floorDiv(epochSecond, SecondsPerDay)
+    val secondOfDay = Math.floorMod(epochSecond, SecondsPerDay).toInt
+    val date = civilFromDays(days)
+    val year = (date >> 9).toInt
+    if (year < 0 || year > 9999) {
+      ResponseHeader.httpDateFormat.format(Instant.ofEpochSecond(epochSecond))
+    } else {
+      val chars = new Array[Char](29)
+      // 1970-01-01 was a Thursday
+      DayNames(Math.floorMod(days + 4, 7L).toInt).getChars(0, 3, chars, 0)
+      chars(3) = ','
+      chars(4) = ' '
+      putDigits(chars, 5, 2, (date & 0x1F).toInt)
+      chars(7) = ' '
+      MonthNames(((date >> 5) & 0xF).toInt - 1).getChars(0, 3, chars, 8)
+      chars(11) = ' '
+      putDigits(chars, 12, 4, year)
+      chars(16) = ' '
+      putDigits(chars, 17, 2, secondOfDay / 3600)
+      chars(19) = ':'
+      putDigits(chars, 20, 2, secondOfDay / 60 % 60)
+      chars(22) = ':'
+      putDigits(chars, 23, 2, secondOfDay % 60)
+      " GMT".getChars(0, 4, chars, 25)
+      new String(chars)
+    }
+  }
+
+  private def putDigits(chars: Array[Char], offset: Int, count: Int, value: Int): Unit = {
+    var remaining = value
+    var i = offset + count - 1
+    while (i >= offset) {
+      chars(i) = ('0' + remaining % 10).toChar
+      remaining /= 10
+      i -= 1
+    }
+  }
+
+  /**
+    * Parse an HTTP date.
+    */
+  def parse(value: String): Option[Instant] = parseMillis(value) match {
+    case Invalid => None
+    case millis => Some(Instant.ofEpochMilli(millis))
+  }
+
+  /**
+    * Parse an HTTP date into a number of milliseconds since the epoch.
+    *
+    * @return The date, or [[Invalid]] if it isn't an HTTP date.
+    */
+  def parseMillis(value: CharSequence): Long = new Parser(value).parse()
+
+  /**
+    * A single use parser, reading the value from left to right.
+    */
+  private final class Parser(value: CharSequence) {
+    private var i = 0
+    private val end = {
+      var e = value.length
+      while (e > 0 && Character.isWhitespace(value.charAt(e - 1))) e -= 1
+      e
+    }
+
+    def parse(): Long = {
+      skipWhitespace()
+      // The day name, not checked against the date
+      val nameLength = skipLetters()
+      if (nameLength < 3) return Invalid
+      if (peek == ',') i += 1
+      skipWhitespace()
+
+      if (isDigit(peek)) {
+        // IMF-fixdate, RFC 850 or cookie date: day, month and year separated by spaces or dashes
+        val day = digits(1, 2)
+        if (peek != ' ' && peek != '-') return Invalid
+        i += 1
+        val month = monthName()
+        if (peek != ' ' && peek != '-') return Invalid
+        i += 1
+        val year = fullYear(digits(2, 4))
+        if (!skip(' ')) return Invalid
+        val seconds = time()
+        if (!skip(' ')) return Invalid
+        val offset = zone()
+        if (i != end || offset == Invalid) Invalid
+        else toMillis(year, month, day, seconds, offset)
+      } else {
+        // asctime: month, space padded day, time and year
+        val month = monthName()
+        if (!skip(' ')) return Invalid
+        if (peek == ' ') i += 1
+        val day = digits(1, 2)
+        if (!skip(' ')) return Invalid
+        val seconds = time()
+        if (!skip(' ')) return Invalid
+        val year = digits(4, 4)
+        if (i != end) Invalid
+        else toMillis(year, month, day, seconds, 0)
+      }
+    }
+
+    private def peek: Char = if (i < end) value.charAt(i) else '\u0000'
+
+    private def isDigit(c: Char): Boolean = c >= '0' && c <= '9'
+
+    private def isLetter(c: Char): Boolean = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+
+    private def skip(c: Char): Boolean = if (peek == c) {
+      i += 1
+      true
+    } else false
+
+    private def skipWhitespace(): Unit = while (i < end && Character.isWhitespace(value.charAt(i))) i += 1
+
+    private def skipLetters(): Int = {
+      val start = i
+      while (isLetter(peek)) i += 1
+      i - start
+    }
+
+    /**
+      * Read between min and max digits, -1 if there are not enough of them.
+      */
+    private def digits(min: Int, max: Int): Int = {
+      var result = 0
+      var count = 0
+      while (count < max && isDigit(peek)) {
+        result = result * 10 + (peek - '0')
+        i += 1
+        count += 1
+      }
+      if (count < min) -1 else result
+    }
+
+    /**
+      * Read a three letter month name, as a month number from 1 to 12, -1 if it isn't one.
+      */
+    private def monthName(): Int = {
+      if (i + 3 > end) return -1
+      var month = 0
+      while (month < 12 && !regionMatches(MonthNames(month))) month += 1
+      i += 3
+      if (month < 12) month + 1 else -1
+    }
+
+    private def regionMatches(name: String): Boolean =
+      Character.toLowerCase(value.charAt(i)) == Character.toLowerCase(name.charAt(0)) &&
+        Character.toLowerCase(value.charAt(i + 1)) == Character.toLowerCase(name.charAt(1)) &&
+        Character.toLowerCase(value.charAt(i + 2)) == Character.toLowerCase(name.charAt(2))
+
+    private def fullYear(year: Int): Int = if (year < 0 || year >= 100) year else if (year < 70) year + 2000 else year + 1900
+
+    /**
+      * Read a time of day, as a number of seconds, -1 if it isn't one.
+      */
+    private def time(): Int = {
+      val hours = digits(2, 2)
+      if (!skip(':')) return -1
+      val minutes = digits(2, 2)
+      if (!skip(':')) return -1
+      val seconds = digits(2, 2)
+      if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59 || seconds < 0 || seconds > 59) -1
+      else hours * 3600 + minutes * 60 + seconds
+    }
+
+    /**
+      * Read the time zone, as an offset from UTC in seconds, [[Invalid]] if it isn't one.
+      */
+    private def zone(): Long = peek match {
+      case '+' | '-' =>
+        val sign = if (peek == '-') -1 else 1
+        i += 1
+        val offset = digits(4, 4)
+        if (offset < 0 || offset / 100 > 18 || offset % 100 > 59) Invalid
+        else sign * (offset / 100 * 3600 + offset % 100 * 60)
+      case _ =>
+        val start = i
+        skipLetters()
+        val name = value.subSequence(start, i).toString
+        if (name.equalsIgnoreCase("GMT") || name.equalsIgnoreCase("UTC") || name.equalsIgnoreCase("UT")) 0 else Invalid
+    }
+
+    private def toMillis(year: Int, month: Int, day: Int, seconds: Int, offset: Long): Long =
+      if (year < 0 || month < 1 || day < 1 || day > daysInMonth(year, month) || seconds < 0) Invalid
+      else ((daysFromCivil(year, month, day) * SecondsPerDay) + seconds - offset) * 1000L
+  }
+
+  private def isLeapYear(year: Int): Boolean = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)
+
+  private def daysInMonth(year: Int, month: Int): Int = month match {
+    case 2 => if (isLeapYear(year)) 29 else 28
+    case 4 | 6 | 9 | 11 => 30
+    case _ => 31
+  }
+
+  /**
+    * The number of days from the epoch to the given date of the proleptic Gregorian calendar.
+    */
+  private def daysFromCivil(year: Int, month: Int, day: Int): Long = {
+    val y = if (month <= 2) year - 1L else year.toLong
+    val era = Math.floorDiv(y, 400L)
+    val yearOfEra = y - era * 400
+    val dayOfYear = (153 * (if (month > 2) month - 3 else month + 9) + 2) / 5 + day - 1
+    val dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear
+    era * 146097 + dayOfEra - 719468
+  }
+
+  /**
+    * The date of the given number of days from the epoch, packed as `year << 9 | month << 5 | day`.
+    */
+  private def civilFromDays(days: Long): Long = {
+    val z = days + 719468
+    val era = Math.floorDiv(z, 146097L)
+    val dayOfEra = z - era * 146097
+    val yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365
+    val dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100)
+    val mp = (5 * dayOfYear + 2) / 153
+    val day = dayOfYear - (153 * mp + 2) / 5 + 1
+    val month = if (mp < 10) mp + 3 else mp - 9
+    val year = yearOfEra + era * 400 + (if (month <= 2) 1 else 0)
+    (year << 9) | (month << 5) | day
+  }
+}
@@ -0,0 +1,96 @@
+package server.core.utils
+
+import scala.collection.immutable.{AbstractMap, ListMap}
+
+/**
+  * The headers of a response: an immutable map with case insensitive keys, iterated in insertion order.
+  *
+  * A response has a handful of headers, so they are kept in a flat array alternating names and values, searched
+  * linearly. This is smaller and faster to build, look up and iterate than a tree map for so few entries, and the
+  * headers are written in the order they were set. Replacing a header keeps its position.
+  */
+private[server] final class ResponseHeaderMap private(entries: Array[String])
+  extends AbstractMap[String, String] {
+
+  override def size: Int = entries.length / 2
+
+  override def isEmpty: Boolean = entries.length == 0
+
+  override def get(key: String): Option[String] = indexOf(key) match {
+    case -1 => None
+    case i => Some(entries(i + 1))
+  }
+
+  override def contains(key: String): Boolean = indexOf(key) >= 0
+
+  override def iterator: Iterator[(String, String)] = new Iterator[(String, String)] {
+    private var i = 0
+
+    def hasNext: Boolean = i < entries.length
+
+    def next(): (String, String) = {
+      if (!hasNext) throw new NoSuchElementException
+      val entry = (entries(i), entries(i + 1))
+      i += 2
+      entry
+    }
+  }
+
+  override def foreach[U](f: ((String, String)) => U): Unit = {
+    var i = 0
+    while (i < entries.length) {
+      f((entries(i), entries(i + 1)))
+      i += 2
+    }
+  }
+
+  override def +[V1 >: String](kv: (String, V1)): Map[String, V1] = kv match {
+    case (name, value: String) => updated(name, value)
+    case _ => ListMap(toSeq: _*) + kv
+  }
+
+  /**
+    * This map with the given header set, replacing any header with the same name.
+    */
+  def updated(name: String, value: String): ResponseHeaderMap = indexOf(name) match {
+    case -1 =>
+      val copy = java.util.Arrays.copyOf(entries, entries.length + 2)
+      copy(entries.length) = name
+      copy(entries.length + 1) = value
+      new ResponseHeaderMap(copy)
+    case i if entries(i) == name && (entries(i + 1) eq value) => this
+    case i =>
+      val copy = entries.clone()
+      copy(i) = name
+      copy(i + 1) = value
+      new ResponseHeaderMap(copy)
+  }
+
+  override def -(key: String): ResponseHeaderMap = indexOf(key) match {
+    case -1 => this
+    case i =>
+      val copy = new Array[String](entries.length - 2)
+      System.arraycopy(entries, 0, copy, 0, i)
+      System.arraycopy(entries, i + 2, copy, i, entries.length - i - 2)
+      new ResponseHeaderMap(copy)
+  }
+
+  private def indexOf(key: String): Int = {
+    var i = 0
+    while (i < entries.length && !entries(i).equalsIgnoreCase(key)) i += 2
+    if (i < entries.length) i else -1
+  }
+}
+
+private[server] object ResponseHeaderMap {
+
+  val empty: ResponseHeaderMap = new ResponseHeaderMap(new Array[String](0))
+
+  /**
+    * The given headers, later ones replacing earlier ones with the same name.
+    */
+  def apply(headers: TraversableOnce[(String, String)]): ResponseHeaderMap = headers match {
+    case map: ResponseHeaderMap => map
+    case _ => headers.foldLeft(empty) { case (map, (name, value)) => map.updated(name, value) }
+  }
+}
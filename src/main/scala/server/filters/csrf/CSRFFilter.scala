@@ -0,0 +1,306 @@
+package server.filters.csrf
+
+import java.nio.charset.{Charset, StandardCharsets}
+import java.util.Locale
+
+import akka.stream.Materializer
+import akka.stream.scaladsl.{Sink, Source}
+import akka.util.ByteString
+import com.typesafe.config.ConfigMemorySize
+import javax.inject.{Inject, Provider, Singleton}
+import server.Configuration
+import server.core.Execution.Implicits.trampoline
+import server.core.parsers.FormUrlEncodedParser
+import server.http.HttpErrorHandler
+import server.http.Status.FORBIDDEN
+import server.libs.crypto.CSRFTokenSigner
+import server.libs.streams.Accumulator
+import server.libs.typedmap.TypedKey
+import server.mvc.Cookie.SameSite
+import server.mvc._
+
+import scala.concurrent.Future
+import scala.util.Try
+
+/**
+  * Configuration for the CSRF filter.
+  *
+  * @param tokenName             The name of the token in the session, the token cookie and form bodies.
+  * @param headerName            The header carrying the token of requests sent by scripts.
+  * @param cookieName            If defined, the token is kept in a cookie of this name rather than in the session.
+  * @param secureCookie          Whether the token cookie is secure.
+  * @param httpOnlyCookie        Whether the token cookie is HTTP only.
+  * @param sameSiteCookie        The SameSite attribute of the token cookie.
+  * @param bodyBufferSize        The most of a form body read looking for the token.
+  * @param uncheckedMethods      The methods of requests that are never checked, as they mustn't have side effects.
+  * @param includedContentTypes  If not empty, only requests of these content types are checked.
+  * @param excludedContentTypes  The content types of requests that are never checked.
+  * @param bypassHeaders         Requests with one of these headers, with the given value or any value for `*`, aren't
+  *                              checked: cross-site forms can't set them.
+  * @param protectHeaders        Only requests with one of these headers, with the given value or any value for `*`,
+  *                              are checked: those carrying the credentials a browser adds by itself.
+  */
+case class CSRFConfig(
+                       tokenName: String = "csrfToken",
+                       headerName: String = "Csrf-Token",
+                       cookieName: Option[String] = None,
+                       secureCookie: Boolean = false,
+                       httpOnlyCookie: Boolean = false,
+                       sameSiteCookie: Option[SameSite] = Some(SameSite.Lax),
+                       bodyBufferSize: Long = 102400,
+                       uncheckedMethods: Set[String] = Set("GET", "HEAD", "OPTIONS", "TRACE"),
+                       includedContentTypes: Set[String] = Set.empty,
+                       excludedContentTypes: Set[String] = Set.empty,
+                       bypassHeaders: Map[String, String] = Map("X-Requested-With" -> "*", "Csrf-Token" -> "nocheck"),
+                       protectHeaders: Map[String, String] = Map("Cookie" -> "*", "Authorization" -> "*")
+                     ) {
+
+  /**
+    * Whether requests of the given content type are checked.
+    */
+  def checksContentType(contentType: Option[String]): Boolean = {
+    val mediaType = contentType.fold("")(_.toLowerCase(Locale.ENGLISH))
+    !excludedContentTypes.contains(mediaType) && (includedContentTypes.isEmpty || includedContentTypes.contains(mediaType))
+  }
+}
+
+object CSRFConfig {
+
+  def fromConfiguration(conf: Configuration): CSRFConfig = {
+    val config = conf.get[Configuration]("play.filters.csrf")
+    def contentTypes(path: String) = config.get[Seq[String]](path).map(_.trim.toLowerCase(Locale.ENGLISH)).toSet
+    CSRFConfig(
+      tokenName = config.get[String]("token.name"),
+      headerName = config.get[String]("header.name"),
+      cookieName = config.get[Option[String]]("cookie.name"),
+      secureCookie = config.get[Boolean]("cookie.secure"),
+      httpOnlyCookie = config.get[Boolean]("cookie.httpOnly"),
+      sameSiteCookie = config.get[Option[String]]("cookie.sameSite").flatMap(SameSite.parse),
+      bodyBufferSize = config.get[ConfigMemorySize]("body.bufferSize").toBytes,
+      uncheckedMethods = config.get[Seq[String]]("method.whiteList").map(_.toUpperCase(Locale.ENGLISH)).toSet,
+      includedContentTypes = contentTypes("contentType.blackList"),
+      excludedContentTypes = contentTypes("contentType.whiteList"),
+      bypassHeaders = config.get[Map[String, String]]("header.bypassHeaders"),
+      protectHeaders = config.get[Map[String, String]]("header.protectHeaders")
+    )
+  }
+}
+
+@Singleton
+class CSRFConfigProvider @Inject()(config: Configuration) extends Provider[CSRFConfig] {
+  lazy val get = CSRFConfig.fromConfiguration(config)
+}
+
+/**
+  * Access to the CSRF token of the current request.
+  */
+object CSRF {
+
+  /**
+    * A CSRF token, to send back under its name in a form, or in the CSRF header.
+    */
+  case class Token(name: String, value: String)
+
+  /**
+    * The CSRF token of the request, if the [[CSRFFilter]] handled it.
+    *
+    * The token is signed with a new nonce for each request, so that it differs in every page, but stands for the same
+    * token, kept for the whole session.
+    */
+  def getToken(implicit request: RequestHeader): Option[Token] = request.attrs.get(TokenInfoKey).map(_.token)
+
+  private[csrf] val TokenInfoKey = TypedKey[TokenInfo]("CSRFTokenInfo")
+
+  /**
+    * The token of a request: the one of its session, or a new one, generated once it is first asked for, that the
+    * filter adds to the session.
+    *
+    * @param sessionToken The signed token of the session, if any, only read when the token is first asked for.
+    */
+  private[csrf] final class TokenInfo(name: String, sessionToken: => Option[String], signer: CSRFTokenSigner) {
+
+    @volatile private var newToken: Option[String] = None
+
+    private lazy val rawToken: String = sessionToken.flatMap(signer.extractSignedToken).getOrElse {
+      val raw = signer.generateToken
+      newToken = Some(signer.signToken(raw))
+      raw
+    }
+
+    lazy val token: Token = Token(name, signer.signToken(rawToken))
+
+    /**
+      * The signed token to keep in the session, if the request had none and one was generated.
+      */
+    def generated: Option[String] = newToken
+  }
+}
+
+/**
+  * A filter protecting against cross-site request forgery, checking that requests with side effects carry the token
+  * of their session, in a header or in their form body.
+  *
+  * The token is kept in the session, or in a cookie, and the same token is used for the whole session: it is only
+  * generated, and added to the session, when a request without one asks for it with [[CSRF.getToken]]. Requests of
+  * unchecked methods or content types, without credentials, or with a bypass header go through without their body
+  * being touched. The token header is checked before the body is read. Otherwise, the form body is read only as far
+  * as the token, up to a limit, and the part read is handed to the action along with the rest of the body, which is
+  * still streamed.
+  *
+  * Enable it by adding `server.filters.csrf.CSRFFilter` to `play.filters.enabled`.
+  */
+@Singleton
+class CSRFFilter @Inject()(config: CSRFConfig, tokenSigner: CSRFTokenSigner, errorHandler: HttpErrorHandler)(
+  implicit mat: Materializer) extends EssentialFilter {
+
+  import CSRF._
+
+  private val FormUrlEncoded = "application/x-www-form-urlencoded"
+  private val MultipartFormData = "multipart/form-data"
+
+  def apply(next: EssentialAction): EssentialAction = EssentialAction { request =>
+    // Only read for checked requests, or once the action asks for the token, not to decode the session of the others
+    lazy val sessionToken = config.cookieName match {
+      case Some(name) => request.cookies.get(name).map(_.value)
+      case None => request.session.get(config.tokenName)
+    }
+    val info = new TokenInfo(config.tokenName, sessionToken, tokenSigner)
+    val withToken = request.addAttr(TokenInfoKey, info)
+
+    if (!mustCheck(request)) {
+      next(withToken).map(result => info.generated.fold(result)(addToken(withToken, result, _)))
+    } else {
+      (sessionToken, request.headers.get(config.headerName)) match {
+        case (None, _) => reject(request, "No CSRF token in the session")
+        case (Some(expected), Some(token)) =>
+          if (tokenSigner.compareSignedTokens(token, expected)) next(withToken)
+          else reject(request, "Invalid CSRF token")
+        case (Some(expected), None) =>
+          formTokenFinder(request) match {
+            case Some(find) => checkBody(withToken, expected, find, next)
+            case None => reject(request, "No CSRF token in the request")
+          }
+      }
+    }
+  }
+
+  private def mustCheck(request: RequestHeader): Boolean =
+    !config.uncheckedMethods.contains(request.method) &&
+      config.checksContentType(request.contentType) &&
+      hasHeader(request, config.protectHeaders) &&
+      !hasHeader(request, config.bypassHeaders)
+
+  private def hasHeader(request: RequestHeader, headers: Map[String, String]): Boolean = headers.exists {
+    case (name, value) => request.headers.get(name).exists(actual => value == "*" || actual == value)
+  }
+
+  private def reject(request: RequestHeader, message: String): Accumulator[ByteString, Result] =
+    Accumulator.done(errorHandler.onClientError(request, FORBIDDEN, message))
+
+  private def addToken(request: RequestHeader, result: Result, token: String): Result = config.cookieName match {
+    case Some(name) =>
+      result.withCookies(Cookie(name, token, secure = config.secureCookie, httpOnly = config.httpOnlyCookie,
+        sameSite = config.sameSiteCookie))
+    case None => result.addingToSession(config.tokenName -> token)(request)
+  }
+
+  /**
+    * Reads the body as far as the token, then hands what was read and the rest of the body to the action if the token
+    * is the one of the session.
+    */
+  private def checkBody(
+                         request: RequestHeader,
+                         expected: String,
+                         find: (ByteString, Boolean) => Option[String],
+                         next: EssentialAction
+                       ): Accumulator[ByteString, Result] =
+    Accumulator.source[ByteString].mapFuture { body =>
+      peek(ByteString.empty, body, find).flatMap {
+        case (read, rest, Some(token)) if tokenSigner.compareSignedTokens(token, expected) =>
+          next(request).run(Source.single(read).filter(_.nonEmpty) ++ rest)
+        case _ =>
+          errorHandler.onClientError(request, FORBIDDEN, "Invalid CSRF token")
+      }
+    }
+
+  /**
+    * Reads the body chunk by chunk until the token is found, the buffer size is reached, or the body ends.
+    *
+    * @return The bytes read, the rest of the body, and the token if it was found.
+    */
+  private def peek(
+                    read: ByteString,
+                    rest: Source[ByteString, _],
+                    find: (ByteString, Boolean) => Option[String]
+                  ): Future[(ByteString, Source[ByteString, _], Option[String])] =
+    find(read, false) match {
+      case found@Some(_) => Future.successful((read, rest, found))
+      case None if read.length >= config.bodyBufferSize => Future.successful((read, rest, None))
+      case None =>
+        rest.prefixAndTail(1).runWith(Sink.head).flatMap {
+          case (Seq(), _) => Future.successful((read, Source.empty, find(read, true)))
+          case (chunk +: _, tail) => peek(read ++ chunk, tail, find)
+        }
+    }
+
+  /**
+    * How to find the token in the beginning of the form body of the request, complete or not, if it has a form body.
+    */
+  private def formTokenFinder(request: RequestHeader): Option[(ByteString, Boolean) => Option[String]] =
+    request.mediaType.flatMap { mediaType =>
+      s"${mediaType.mediaType}/${mediaType.mediaSubType}".toLowerCase(Locale.ENGLISH) match {
+        case FormUrlEncoded =>
+          // A body in a charset this JVM does not know has no token to find
+          Try(request.charset.fold[Charset](StandardCharsets.UTF_8)(Charset.forName)).toOption.map { charset =>
+            (read: ByteString, complete: Boolean) => urlEncodedToken(read, complete, charset)
+          }
+        case MultipartFormData =>
+          mediaType.parameters.collectFirst {
+            case (name, Some(boundary)) if name.equalsIgnoreCase("boundary") =>
+              (read: ByteString, _: Boolean) => multipartToken(read, boundary)
+          }
+        case _ => None
+      }
+    }
+
+  /**
+    * The token among the complete pairs of a URL encoded body, if the body can be parsed.
+    */
+  private def urlEncodedToken(read: ByteString, complete: Boolean, charset: Charset): Option[String] = {
+    val pairs = if (complete) read else read.take(math.max(read.lastIndexOf('&'), read.lastIndexOf(';')) + 1)
+    try {
+      FormUrlEncodedParser.parse(pairs, charset).get(config.tokenName).flatMap(_.headOption)
+    } catch {
+      // Malformed escapes, or more fields than the parser allows
+      case _: IllegalArgumentException => None
+    }
+  }
+
+  /**
+    * The value of the token part of a multipart body, if it was read up to the next boundary.
+    */
+  private def multipartToken(read: ByteString, boundary: String): Option[String] = {
+    // Tokens are ASCII, and this encoding maps each byte to a char
+    val text = read.decodeString(StandardCharsets.ISO_8859_1)
+    val delimiter = "--" + boundary
+    val disposition = "name=\"" + config.tokenName + "\""
+    var from = 0
+    var token: Option[String] = None
+    while (token.isEmpty && from >= 0) {
+      from = text.indexOf(disposition, from)
+      if (from >= 0) {
+        val partStart = text.lastIndexOf(delimiter, from)
+        val headersEnd = if (partStart < 0) -1 else text.indexOf("\r\n\r\n", partStart)
+        // The name must be in the headers of the part, not in some content
+        if (headersEnd > from && (text.charAt(from - 1) == ' ' || text.charAt(from - 1) == ';')) {
+          val valueEnd = text.indexOf("\r\n" + delimiter, headersEnd + 4)
+          if (valueEnd < 0) from = -1
+          else token = Some(text.substring(headersEnd + 4, valueEnd))
+        } else {
+          from += disposition.length
+        }
+      }
+    }
+    token
+  }
+}
@@ -0,0 +1,384 @@
+package server.filters.gzip
+
+import java.io.{IOException, OutputStream}
+import java.util.Locale
+import java.util.zip.{CRC32, Deflater}
+
+import akka.stream.stage.{GraphStage, GraphStageLogic, InHandler, OutHandler}
+import akka.stream.{Attributes, FlowShape, Inlet, Outlet}
+import akka.util.{ByteString, ByteStringBuilder}
+import com.typesafe.config.ConfigMemorySize
+import javax.inject.{Inject, Provider, Singleton}
+import server.Configuration
+import server.core.Execution.Implicits.trampoline
+import server.http.HeaderNames._
+import server.http.Status._
+import server.http.{HttpChunk, HttpEntity}
+import server.mvc._
+
+import scala.util.control.NonFatal
+
+/**
+  * A content coding the [[GzipFilter]] can apply.
+  *
+  * @param name   The name of the coding, as found in the Accept-Encoding and Content-Encoding headers.
+  * @param nowrap Whether the Deflater writes raw deflate data, the gzip header and trailer being added around it.
+  */
+sealed abstract class GzipCoding(val name: String, private[gzip] val nowrap: Boolean)
+
+object GzipCoding {
+
+  /** The gzip format, see RFC 1952 */
+  case object Gzip extends GzipCoding("gzip", nowrap = true)
+
+  /** The zlib format, see RFC 1950, which HTTP calls deflate */
+  case object Deflate extends GzipCoding("deflate", nowrap = false)
+
+  def fromName(name: String): Option[GzipCoding] = name.toLowerCase(Locale.ENGLISH) match {
+    case "gzip" => Some(Gzip)
+    case "deflate" => Some(Deflate)
+    case _ => None
+  }
+}
+
+/**
+  * Configuration for the gzip filter.
+  *
+  * @param codings              The codings to negotiate, in order of preference.
+  * @param compressionLevel     The compression level, from 0 to 9, or -1 for the default level.
+  * @param bufferSize           The size of the output buffer of the compressors.
+  * @param threshold            Bodies of a known length below this number of bytes are not compressed.
+  * @param includedContentTypes If not empty, only these content types are compressed.
+  * @param excludedContentTypes Content types that are never compressed, usually because they are already compressed.
+  *                             A type ending with `/` followed by a star matches all its subtypes.
+  */
+case class GzipFilterConfig(
+                             codings: Seq[GzipCoding] = Seq(GzipCoding.Gzip, GzipCoding.Deflate),
+                             compressionLevel: Int = Deflater.DEFAULT_COMPRESSION,
+                             bufferSize: Int = 8192,
+                             threshold: Long = 1024,
+                             includedContentTypes: Seq[String] = Nil,
+                             excludedContentTypes: Seq[String] = Nil
+                           ) {
+
+  private val (excludedTypes, excludedMainTypes) = splitWildcards(excludedContentTypes)
+  private val (includedTypes, includedMainTypes) = splitWildcards(includedContentTypes)
+
+  private def splitWildcards(contentTypes: Seq[String]): (Set[String], Set[String]) = {
+    val (wildcards, types) = contentTypes.map(_.trim.toLowerCase(Locale.ENGLISH)).partition(_.endsWith("/*"))
+    (types.toSet, wildcards.map(_.stripSuffix("*")).toSet)
+  }
+
+  /**
+    * Whether a body of the given content type may be compressed.
+    */
+  def isCompressible(contentType: Option[String]): Boolean = {
+    val mediaType = contentType.fold("") { value =>
+      val end = value.indexOf(';')
+      (if (end < 0) value else value.substring(0, end)).trim.toLowerCase(Locale.ENGLISH)
+    }
+    val mainType = mediaType.substring(0, mediaType.indexOf('/') + 1)
+    def matches(types: Set[String], mainTypes: Set[String]) =
+      types.contains(mediaType) || mainTypes.contains(mainType)
+
+    (includedContentTypes.isEmpty || matches(includedTypes, includedMainTypes)) &&
+      !matches(excludedTypes, excludedMainTypes)
+  }
+}
+
+object GzipFilterConfig {
+
+  def fromConfiguration(conf: Configuration): GzipFilterConfig = {
+    val config = conf.get[Configuration]("play.filters.gzip")
+    GzipFilterConfig(
+      codings = config.get[Seq[String]]("codings").map { name =>
+        GzipCoding.fromName(name).getOrElse(throw config.reportError("codings", s"Unsupported coding: $name"))
+      },
+      compressionLevel = config.get[Int]("compressionLevel"),
+      bufferSize = config.get[ConfigMemorySize]("bufferSize").toBytes.toInt,
+      threshold = config.get[ConfigMemorySize]("threshold").toBytes,
+      includedContentTypes = config.get[Seq[String]]("contentType.whiteList"),
+      excludedContentTypes = config.get[Seq[String]]("contentType.blackList")
+    )
+  }
+}
+
+@Singleton
+class GzipFilterConfigProvider @Inject()(config: Configuration) extends Provider[GzipFilterConfig] {
+  lazy val get = GzipFilterConfig.fromConfiguration(config)
+}
+
+/**
+  * A filter compressing the responses of clients accepting gzip or deflate.
+  *
+  * Strict bodies are compressed at once, with a Deflater reused by each thread, and keep a Content-Length. Streamed
+  * and chunked bodies are compressed as they are sent, each chunk being flushed so streaming responses are not
+  * delayed. Responses that already have a Content-Encoding, are not to be transformed, have no body, or whose content
+  * type is excluded or body is below the threshold are left untouched, as are file bodies, which the server sends
+  * without copying them. Compressible responses get `Vary: Accept-Encoding`, whether they are compressed or not.
+  *
+  * Enable it by adding `server.filters.gzip.GzipFilter` to `play.filters.enabled`.
+  */
+@Singleton
+class GzipFilter @Inject()(config: GzipFilterConfig) extends EssentialFilter {
+
+  private val strictCompressors: Map[GzipCoding, ThreadLocal[Compressor]] =
+    config.codings.map { coding =>
+      coding -> ThreadLocal.withInitial[Compressor](() =>
+        new Compressor(coding, new Deflater(config.compressionLevel, coding.nowrap), config.bufferSize))
+    }.toMap
+
+  def apply(next: EssentialAction): EssentialAction = EssentialAction { request =>
+    next(request).map(result => compressResult(request, result))
+  }
+
+  private def compressResult(request: RequestHeader, result: Result): Result = {
+    if (!mayCompress(result)) {
+      result
+    } else {
+      val varying = result.withHeaders(result.header.varyWith(ACCEPT_ENCODING))
+      negotiate(request) match {
+        case Some(coding) if !RangeResult.isNotModified(request, result.header) =>
+          writeIfSmall(result.body) match {
+            case small if belowThreshold(small) => varying.copy(body = small)
+            case body =>
+              varying.copy(
+                header = varying.header.copy(headers = varying.header.headers + (CONTENT_ENCODING -> coding.name)),
+                body = compress(coding, body)
+              )
+          }
+        case _ => varying
+      }
+    }
+  }
+
+  private def mayCompress(result: Result): Boolean = {
+    val status = result.header.status
+    status >= OK && status != NO_CONTENT && status != NOT_MODIFIED &&
+      !result.body.isKnownEmpty &&
+      !result.body.isInstanceOf[HttpEntity.File] &&
+      !result.header.headers.contains(CONTENT_ENCODING) &&
+      !result.header.headers.get(CACHE_CONTROL).exists(_.toLowerCase(Locale.ENGLISH).contains("no-transform")) &&
+      config.isCompressible(result.body.contentType)
+  }
+
+  private def belowThreshold(entity: HttpEntity): Boolean = entity.contentLength.exists(_ < config.threshold)
+
+  /**
+    * A written entity below the threshold, written to memory, otherwise the given entity. The length of a written
+    * entity is unknown, so it is written until it reaches the threshold: only that much of a larger one is written
+    * twice.
+    */
+  private def writeIfSmall(entity: HttpEntity): HttpEntity = entity match {
+    case written: HttpEntity.Written if config.threshold > 0 =>
+      val probe = new ThresholdOutputStream(config.threshold)
+      try {
+        written.write(probe)
+        HttpEntity.Strict(probe.bytes, written.contentType)
+      } catch {
+        case NonFatal(_) if probe.exceeded => written
+      }
+    case other => other
+  }
+
+  /**
+    * The accepted coding with the highest quality, the configured order breaking ties.
+    */
+  private def negotiate(request: RequestHeader): Option[GzipCoding] = {
+    val accepted = RequestHeader.acceptHeader(request.headers, ACCEPT_ENCODING)
+    def qValue(coding: GzipCoding) =
+      accepted.collectFirst { case (q, c) if c.equalsIgnoreCase(coding.name) => q }
+        .orElse(accepted.collectFirst { case (q, "*") => q })
+        .getOrElse(0.0)
+    config.codings.map(coding => coding -> qValue(coding)).filter(_._2 > 0) match {
+      case Seq() => None
+      case qualities => Some(qualities.maxBy(_._2)._1)
+    }
+  }
+
+  private def compress(coding: GzipCoding, entity: HttpEntity): HttpEntity = entity match {
+    case HttpEntity.Strict(data, contentType) =>
+      val compressor = strictCompressors(coding).get
+      compressor.reset()
+      HttpEntity.Strict(compressor.compress(data, flush = false) ++ compressor.finish(), contentType)
+    case HttpEntity.Streamed(data, _, contentType) =>
+      val chunks = data.filter(_.nonEmpty).map(HttpChunk.Chunk)
+      HttpEntity.Streamed(chunks.via(new CompressorStage(coding)).collect {
+        case HttpChunk.Chunk(bytes) => bytes
+      }, None, contentType)
+    case HttpEntity.Chunked(chunks, contentType) =>
+      HttpEntity.Chunked(chunks.via(new CompressorStage(coding)), contentType)
+    case HttpEntity.Written(write, contentType) =>
+      HttpEntity.Written({ out =>
+        val compressor = strictCompressors(coding).get
+        compressor.reset()
+        write(new CompressorOutputStream(compressor, out))
+        CompressorOutputStream.writeBytes(compressor.finish(), out)
+      }, contentType)
+    case other => other
+  }
+
+  /**
+    * Compresses the chunks of a body, the trailers of its last chunk being kept. The Deflater is owned by the stream
+    * and released when it stops.
+    */
+  private class CompressorStage(coding: GzipCoding) extends GraphStage[FlowShape[HttpChunk, HttpChunk]] {
+    private val in = Inlet[HttpChunk]("CompressorStage.in")
+    private val out = Outlet[HttpChunk]("CompressorStage.out")
+
+    override val shape: FlowShape[HttpChunk, HttpChunk] = FlowShape.of(in, out)
+
+    override def createLogic(inheritedAttributes: Attributes): GraphStageLogic = new GraphStageLogic(shape) {
+      private var compressor: Compressor = _
+      private var finished = false
+
+      override def preStart(): Unit =
+        compressor = new Compressor(coding, new Deflater(config.compressionLevel, coding.nowrap), config.bufferSize)
+
+      override def postStop(): Unit = if (compressor != null) compressor.end()
+
+      setHandler(in, new InHandler {
+        override def onPush(): Unit = grab(in) match {
+          case HttpChunk.Chunk(data) =>
+            val compressed = compressor.compress(data, flush = true)
+            if (compressed.nonEmpty) push(out, HttpChunk.Chunk(compressed)) else pull(in)
+          case last: HttpChunk.LastChunk =>
+            emitMultiple(out, List(HttpChunk.Chunk(finish()), last), () => completeStage())
+        }
+
+        override def onUpstreamFinish(): Unit =
+          if (!finished) emit(out, HttpChunk.Chunk(finish()), () => completeStage())
+      })
+
+      setHandler(out, new OutHandler {
+        override def onPull(): Unit = pull(in)
+      })
+
+      private def finish(): ByteString = {
+        finished = true
+        compressor.finish()
+      }
+    }
+  }
+}
+
+/**
+  * Writes the given coding of a body with a Deflater. Not thread safe.
+  */
+private[gzip] final class Compressor(coding: GzipCoding, deflater: Deflater, bufferSize: Int) {
+
+  private val buffer = new Array[Byte](bufferSize)
+  private val crc = new CRC32
+  private var headerWritten = false
+
+  /**
+    * Prepare the compressor for a new body.
+    */
+  def reset(): Unit = {
+    deflater.reset()
+    crc.reset()
+    headerWritten = false
+  }
+
+  /**
+    * Compress the given bytes.
+    *
+    * @param flush Whether all the compressed data must be output, so a client can decompress everything received.
+    */
+  def compress(bytes: ByteString, flush: Boolean): ByteString = {
+    val builder = ByteString.newBuilder
+    writeHeader(builder)
+    bytes.asByteBuffers.foreach { byteBuffer =>
+      if (coding.nowrap) crc.update(byteBuffer.duplicate())
+      if (byteBuffer.hasArray) {
+        deflater.setInput(byteBuffer.array, byteBuffer.arrayOffset + byteBuffer.position(), byteBuffer.remaining)
+      } else {
+        val array = new Array[Byte](byteBuffer.remaining)
+        byteBuffer.duplicate().get(array)
+        deflater.setInput(array)
+      }
+      drain(builder, Deflater.NO_FLUSH)
+    }
+    if (flush) drain(builder, Deflater.SYNC_FLUSH)
+    builder.result()
+  }
+
+  /**
+    * Output the end of the compressed data.
+    */
+  def finish(): ByteString = {
+    val builder = ByteString.newBuilder
+    writeHeader(builder)
+    deflater.finish()
+    while (!deflater.finished) {
+      builder.putBytes(buffer, 0, deflater.deflate(buffer))
+    }
+    if (coding.nowrap) {
+      // The gzip trailer: CRC-32 and size modulo 2^32 of the uncompressed data, little endian
+      builder.putInt(crc.getValue.toInt)(java.nio.ByteOrder.LITTLE_ENDIAN)
+      builder.putInt(deflater.getBytesRead.toInt)(java.nio.ByteOrder.LITTLE_ENDIAN)
+    }
+    builder.result()
+  }
+
+  def end(): Unit = deflater.end()
+
+  private def writeHeader(builder: ByteStringBuilder): Unit = if (coding.nowrap && !headerWritten) {
+    builder.putBytes(Compressor.GzipHeader)
+    headerWritten = true
+  }
+
+  private def drain(builder: ByteStringBuilder, flush: Int): Unit = {
+    var written = 0
+    do {
+      written = deflater.deflate(buffer, 0, buffer.length, flush)
+      builder.putBytes(buffer, 0, written)
+    } while (written == buffer.length || (flush == Deflater.NO_FLUSH && !deflater.needsInput))
+  }
+}
+
+private[gzip] object Compressor {
+  // Magic number, deflate method, no flags, no modification time, no extra flags, unknown OS
+  private val GzipHeader = Array[Byte](0x1f, 0x8b.toByte, 8, 0, 0, 0, 0, 0, 0, 0xff.toByte)
+}
+
+/**
+  * Compresses the bytes written to it into the given stream. Finishing the compressed data is left to the caller.
+  */
+private[gzip] final class CompressorOutputStream(compressor: Compressor, out: OutputStream) extends OutputStream {
+
+  override def write(b: Int): Unit = write(Array(b.toByte), 0, 1)
+
+  override def write(b: Array[Byte], off: Int, len: Int): Unit =
+    CompressorOutputStream.writeBytes(compressor.compress(ByteString.fromArray(b, off, len), flush = false), out)
+
+  override def flush(): Unit = out.flush()
+}
+
+private[gzip] object CompressorOutputStream {
+
+  def writeBytes(bytes: ByteString, out: OutputStream): Unit = if (bytes.nonEmpty) out.write(bytes.toArray)
+}
+
+/**
+  * Keeps the bytes written to it, failing once they reach the threshold.
+  */
+private[gzip] final class ThresholdOutputStream(threshold: Long) extends OutputStream {
+
+  private val builder = ByteString.newBuilder
+
+  /** Whether the threshold was reached */
+  var exceeded = false
+
+  def bytes: ByteString = builder.result()
+
+  override def write(b: Int): Unit = write(Array(b.toByte), 0, 1)
+
+  override def write(b: Array[Byte], off: Int, len: Int): Unit = {
+    if (builder.length.toLong + len >= threshold) {
+      exceeded = true
+      throw new IOException(s"Entity over $threshold bytes")
+    }
+    builder.putBytes(b, off, len)
+  }
+}
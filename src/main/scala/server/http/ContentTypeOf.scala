@@ -6,6 +6,7 @@ package server.http
 
 
 import akka.util.ByteString
+import com.google.protobuf.MessageLite
 import play.api.libs.json._
 import play.twirl.api.{Html, JavaScript, Txt, Xml}
 import server.mvc.{Codec, _}
@@ -52,6 +53,12 @@ trait DefaultContentTypeOfs {
     ContentTypeOf[JsValue](Some(ContentTypes.JSON))
   }
 
+  /**
+    * Default content type for Protocol Buffers messages (`application/x-protobuf`).
+    */
+  implicit def contentTypeOf_Protobuf[M <: MessageLite]: ContentTypeOf[M] =
+    ContentTypeOf[M](Some(MimeTypes.PROTOBUF))
+
   /**
     * Default content type for `Txt` values (`text/plain`).
     */
@@ -11,6 +11,7 @@ import javax.inject.Singleton
 import org.slf4j.LoggerFactory
 import server._
 import server.core.encoding.{ClientCookieDecoder, ClientCookieEncoder, ServerCookieDecoder, ServerCookieEncoder}
+import server.core.parsers.FormUrlEncodedParser
 import server.libs.Codecs
 import server.mvc.Cookie.SameSite
 
@@ -69,10 +70,17 @@ case class HttpConfiguration(
   * 1. If the key is fifteen characters or fewer, a warning will be logged.
   * 2. If the key is eight characters or fewer, then an error is thrown and the configuration is invalid.
   *
-  * @param secret   the application secret
-  * @param provider the JCE provider to use. If null, uses the platform default
+  * @param secret    the application secret
+  * @param provider  the JCE provider to use. If null, uses the platform default
+  * @param algorithm the HMAC algorithm signing cookies: HmacSHA1, HmacSHA256 or HmacSHA512
+  * @param previous  the previous application secrets, still accepted when verifying signatures
   */
-case class SecretConfiguration(secret: String = "changeme", provider: Option[String] = None)
+case class SecretConfiguration(
+                                secret: String = "changeme",
+                                provider: Option[String] = None,
+                                algorithm: String = "HmacSHA1",
+                                previous: Seq[String] = Nil
+                              )
 
 object SecretConfiguration {
 
@@ -118,6 +126,8 @@ case class CookiesConfiguration(strict: Boolean = true) {
   * @param path       The path for which this cookie is valid
   * @param sameSite   The cookie's SameSite attribute
   * @param jwt        The JWT specific information
+  * @param cacheSize  The number of decoded session cookies kept, so that the cookie of a returning client isn't
+  *                   verified and decoded again
   */
 case class SessionConfiguration(
                                  cookieName: String = "PLAY_SESSION",
@@ -127,7 +137,8 @@ case class SessionConfiguration(
                                  domain: Option[String] = None,
                                  path: String = "/",
                                  sameSite: Option[SameSite] = Some(SameSite.Lax),
-                                 jwt: JWTConfiguration = JWTConfiguration()
+                                 jwt: JWTConfiguration = JWTConfiguration(),
+                                 cacheSize: Int = 10000
                                )
 
 /**
@@ -140,6 +151,8 @@ case class SessionConfiguration(
   * @param path       The path for which this cookie is valid
   * @param sameSite   The cookie's SameSite attribute
   * @param jwt        The JWT specific information
+  * @param storeExpiresAfter The time after which a flash scope of the server-side flash store expires
+  * @param storeMaxSize      The most memory the flash scopes of the server-side flash store take
   */
 case class FlashConfiguration(
                                cookieName: String = "PLAY_FLASH",
@@ -148,7 +161,9 @@ case class FlashConfiguration(
                                domain: Option[String] = None,
                                path: String = "/",
                                sameSite: Option[SameSite] = Some(SameSite.Lax),
-                               jwt: JWTConfiguration = JWTConfiguration()
+                               jwt: JWTConfiguration = JWTConfiguration(),
+                               storeExpiresAfter: FiniteDuration = 1.minute,
+                               storeMaxSize: Long = 8L * 1024 * 1024
                              )
 
 /**
@@ -156,8 +171,13 @@ case class FlashConfiguration(
   *
   * @param maxMemoryBuffer The maximum size that a request body that should be buffered in memory.
   * @param maxDiskBuffer   The maximum size that a request body should be buffered on disk.
+  * @param formUrlEncoded  The limits applied when parsing application/x-www-form-urlencoded bodies.
   */
-case class ParserConfiguration(maxMemoryBuffer: Long = 102400, maxDiskBuffer: Long = 10485760)
+case class ParserConfiguration(
+                                maxMemoryBuffer: Long = 102400,
+                                maxDiskBuffer: Long = 10485760,
+                                formUrlEncoded: FormUrlEncodedParser.Limits = FormUrlEncodedParser.Limits(1000, 1024, 102400)
+                              )
 
 /**
   * Configuration for action composition.
@@ -242,7 +262,12 @@ object HttpConfiguration {
       parser = ParserConfiguration(
         maxMemoryBuffer =
           config.getDeprecated[ConfigMemorySize]("play.http.parser.maxMemoryBuffer", "parsers.text.maxLength").toBytes,
-        maxDiskBuffer = config.get[ConfigMemorySize]("play.http.parser.maxDiskBuffer").toBytes
+        maxDiskBuffer = config.get[ConfigMemorySize]("play.http.parser.maxDiskBuffer").toBytes,
+        formUrlEncoded = FormUrlEncodedParser.Limits(
+          maxFields = config.get[Int]("play.http.parser.formUrlEncoded.maxFields"),
+          maxKeyLength = config.get[ConfigMemorySize]("play.http.parser.formUrlEncoded.maxKeyLength").toBytes.toInt,
+          maxValueLength = config.get[ConfigMemorySize]("play.http.parser.formUrlEncoded.maxValueLength").toBytes.toInt
+        )
       ),
       actionComposition = ActionCompositionConfiguration(
         controllerAnnotationsFirst = config.get[Boolean]("play.http.actionComposition.controllerAnnotationsFirst"),
@@ -260,7 +285,8 @@ object HttpConfiguration {
         domain = config.getDeprecated[Option[String]]("play.http.session.domain", "session.domain"),
         sameSite = parseSameSite(config, "play.http.session.sameSite"),
         path = sessionPath,
-        jwt = JWTConfigurationParser(config, "play.http.session.jwt")
+        jwt = JWTConfigurationParser(config, "play.http.session.jwt"),
+        cacheSize = config.get[Int]("play.http.session.cacheSize")
       ),
       flash = FlashConfiguration(
         cookieName = config.getDeprecated[String]("play.http.flash.cookieName", "flash.cookieName"),
@@ -269,7 +295,9 @@ object HttpConfiguration {
         domain = config.get[Option[String]]("play.http.flash.domain"),
         sameSite = parseSameSite(config, "play.http.flash.sameSite"),
         path = flashPath,
-        jwt = JWTConfigurationParser(config, "play.http.flash.jwt")
+        jwt = JWTConfigurationParser(config, "play.http.flash.jwt"),
+        storeExpiresAfter = config.get[FiniteDuration]("play.http.flash.store.expiresAfter"),
+        storeMaxSize = config.get[ConfigMemorySize]("play.http.flash.store.maxSize").toBytes
       ),
       fileMimeTypes = FileMimeTypesConfiguration(
         parseFileMimeTypes(config)
@@ -349,7 +377,12 @@ object HttpConfiguration {
 
     val provider = config.getDeprecated[Option[String]]("play.http.secret.provider", "play.crypto.provider")
 
-    SecretConfiguration(String.valueOf(secret), provider)
+    SecretConfiguration(
+      String.valueOf(secret),
+      provider,
+      config.get[String]("play.http.secret.algorithm"),
+      config.get[Seq[String]]("play.http.secret.previous")
+    )
   }
 
   /**
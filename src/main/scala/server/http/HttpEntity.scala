@@ -1,17 +1,21 @@
 package server.http
 
+import java.io.OutputStream
+import java.nio.file.Path
 
 import akka.stream.Materializer
-import akka.stream.scaladsl.Source
+import akka.stream.scaladsl.{FileIO, Source}
 import akka.util.ByteString
 import server.mvc.Headers
 
 import scala.concurrent.Future
+import scala.util.Try
 
 /**
   * An HTTP entity.
   *
-  * HTTP entities come in three flavors, [[HttpEntity.Strict]], [[HttpEntity.Streamed]] and [[HttpEntity.Chunked]].
+  * HTTP entities come in five flavors, [[HttpEntity.Strict]], [[HttpEntity.Streamed]], [[HttpEntity.Chunked]],
+  * [[HttpEntity.File]] and [[HttpEntity.Written]].
   */
 sealed trait HttpEntity {
 
@@ -115,6 +119,82 @@ object HttpEntity {
     def as(contentType: String) = copy(contentType = Option(contentType))
   }
 
+  /**
+    * A region of a file.
+    *
+    * The server writes it straight from the file, without reading it into the heap, when the connection allows it
+    * (eg with sendfile). Otherwise, and for anything transforming the entity, it is available as a data stream.
+    *
+    * @param path        The file.
+    * @param offset      The position of the first byte of the region in the file.
+    * @param length      The length of the region.
+    * @param contentType The content type, if known.
+    * @param onClose     Called once the region was written or its data stream completed, successfully or not.
+    */
+  final case class File(
+                         path: Path,
+                         offset: Long,
+                         length: Long,
+                         contentType: Option[String],
+                         onClose: () => Unit = () => ()
+                       ) extends HttpEntity {
+    def isKnownEmpty = length == 0
+
+    def contentLength = Some(length)
+
+    def dataStream: Source[ByteString, _] =
+      FileIO
+        .fromPath(path, File.ChunkSize, offset)
+        .statefulMapConcat { () =>
+          var remaining = length
+          bytes => {
+            val chunk = bytes.take(math.min(remaining, Int.MaxValue).toInt)
+            remaining -= chunk.size
+            List(chunk -> (remaining == 0))
+          }
+        }
+        .takeWhile({ case (_, last) => !last }, inclusive = true)
+        .collect { case (chunk, _) if chunk.nonEmpty => chunk }
+        .mapMaterializedValue(_.onComplete(_ => onClose())(server.core.Execution.trampoline))
+
+    def as(contentType: String) = copy(contentType = Option(contentType))
+  }
+
+  object File {
+    private val ChunkSize = 8192
+  }
+
+  /**
+    * An entity written by a function to a stream, eg a JSON document written by its generator.
+    *
+    * The server writes it straight into the buffer of the response, before handing the response to the event loop,
+    * so its bytes are held once instead of being encoded first and copied to the connection after. Anything else
+    * reading it, eg a filter, writes it to a [[Strict]] entity. Its length is only known once written.
+    *
+    * @param write       Writes the entity to the given stream, without closing it. May be called more than once.
+    * @param contentType The content type, if known.
+    */
+  final case class Written(write: OutputStream => Unit, contentType: Option[String]) extends HttpEntity {
+    def isKnownEmpty = false
+
+    def contentLength = None
+
+    /**
+      * Write this entity to memory.
+      */
+    def toStrict: Strict = {
+      val builder = ByteString.newBuilder
+      write(builder.asOutputStream)
+      Strict(builder.result(), contentType)
+    }
+
+    def dataStream = Source.single(()).map(_ => toStrict.data).filter(_.nonEmpty)
+
+    override def consumeData(implicit mat: Materializer) = Future.fromTry(Try(toStrict.data))
+
+    def as(contentType: String) = copy(contentType = Option(contentType))
+  }
+
 }
 
 /**
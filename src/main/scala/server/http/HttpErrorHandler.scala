@@ -163,6 +163,23 @@ class DefaultHttpErrorHandler(
     playEditor = Option(editor)
   }
 
+  /**
+    * Whether the client error pages are the default ones. They don't depend on the request, so they are rendered once
+    * and the same result is answered to every client error. Subclasses overriding the methods rendering them get
+    * them rendered for each error.
+    */
+  private val prerenderClientErrors: Boolean = {
+    def isDefault(name: String, parameterTypes: Class[_]*) =
+      getClass.getMethod(name, parameterTypes: _*).getDeclaringClass == classOf[DefaultHttpErrorHandler]
+    isDefault("onBadRequest", classOf[RequestHeader], classOf[String]) &&
+      isDefault("onForbidden", classOf[RequestHeader], classOf[String]) &&
+      isDefault("onNotFound", classOf[RequestHeader], classOf[String]) &&
+      isDefault("onOtherClientError", classOf[RequestHeader], classOf[Int], classOf[String])
+  }
+
+  /** The rendered client error pages, by status code minus 400 */
+  private val clientErrorPages = new java.util.concurrent.atomic.AtomicReferenceArray[Future[Result]](100)
+
   /**
     * Invoked when a client error occurs, that is, an error in the 4xx series.
     *
@@ -172,6 +189,14 @@ class DefaultHttpErrorHandler(
     */
   override def onClientError(request: RequestHeader, statusCode: Int, message: String): Future[Result] =
     statusCode match {
+      case clientError if prerenderClientErrors && statusCode >= 400 && statusCode < 500 =>
+        clientErrorPages.get(statusCode - 400) match {
+          case null =>
+            val page = Future.successful(prerendered(clientErrorPage(statusCode)))
+            clientErrorPages.set(statusCode - 400, page)
+            page
+          case page => page
+        }
       case BAD_REQUEST => onBadRequest(request, message)
       case FORBIDDEN => onForbidden(request, message)
       case NOT_FOUND => onNotFound(request, message)
@@ -182,6 +207,25 @@ class DefaultHttpErrorHandler(
         )
     }
 
+  /**
+    * The given result with its body encoded, so that it can be answered any number of times without being encoded
+    * again.
+    */
+  private def prerendered(result: Result): Result = result.body match {
+    case written: HttpEntity.Written => result.copy(body = written.toStrict)
+    case _ => result
+  }
+
+  /**
+    * The default page of a client error.
+    */
+  private def clientErrorPage(statusCode: Int): Result = statusCode match {
+    case BAD_REQUEST => BadRequest("400 Bad Request")
+    case FORBIDDEN => Forbidden("403 Request Forbidden")
+    case NOT_FOUND => NotFound("404 Not Found")
+    case _ => BadRequest("400 Bad Request")
+  }
+
   /**
     * Invoked when a client makes a bad request.
     *
@@ -189,10 +233,7 @@ class DefaultHttpErrorHandler(
     * @param message The error message.
     */
   protected def onBadRequest(request: RequestHeader, message: String): Future[Result] =
-    Future.successful {
-      implicit val ir: RequestHeader = request
-      BadRequest("400 Bad Request")
-    }
+    Future.successful(clientErrorPage(BAD_REQUEST))
 
   /**
     * Invoked when a client makes a request that was forbidden.
@@ -201,10 +242,7 @@ class DefaultHttpErrorHandler(
     * @param message The error message.
     */
   protected def onForbidden(request: RequestHeader, message: String): Future[Result] =
-    Future.successful {
-      implicit val ir: RequestHeader = request
-      Forbidden("403 Request Forbidden")
-    }
+    Future.successful(clientErrorPage(FORBIDDEN))
 
   /**
     * Invoked when a handler or resource is not found.
@@ -212,16 +250,8 @@ class DefaultHttpErrorHandler(
     * @param request The request that no handler was found to handle.
     * @param message A message.
     */
-  protected def onNotFound(request: RequestHeader, message: String): Future[Result] = {
-    Future.successful {
-      implicit val ir: RequestHeader = request
-      if (config.showDevErrors) {
-        NotFound("404 Not Found")
-      } else {
-        NotFound("404 Not Found")
-      }
-    }
-  }
+  protected def onNotFound(request: RequestHeader, message: String): Future[Result] =
+    Future.successful(clientErrorPage(NOT_FOUND))
 
   /**
     * Invoked when a client error occurs, that is, an error in the 4xx series, which is not handled by any of
@@ -232,7 +262,7 @@ class DefaultHttpErrorHandler(
     * @param message    The error message.
     */
   protected def onOtherClientError(request: RequestHeader, statusCode: Int, message: String): Future[Result] = {
-    Future.successful(BadRequest("400 Bad Request"))
+    Future.successful(clientErrorPage(statusCode))
   }
 
   /**
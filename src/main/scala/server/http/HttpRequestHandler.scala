@@ -103,10 +103,18 @@ object HttpRequestHandler {
         (path.startsWith(context) && (path.length == context.length || path.charAt(context.length) == '/'))
     }
 
+    /**
+      * The actions answering with a client error, built once. The body of the request is ignored, and the error
+      * handler's result is answered as is, so that the default error handler's pre-rendered pages make answering
+      * the unrouted requests of scanners and bots nearly free.
+      */
+    private val clientErrorActions: Map[Int, EssentialAction] = Seq(BAD_REQUEST, NOT_FOUND).map { status =>
+      status -> EssentialAction(req => Accumulator.done(errorHandler.onClientError(req, status)))
+    }.toMap
+
     override def handlerForRequest(request: RequestHeader): (RequestHeader, Handler) = {
 
-      def handleWithStatus(status: Int) =
-        ActionBuilder.ignoringBody.async(BodyParsers.utils.empty)(req => errorHandler.onClientError(req, status))
+      def handleWithStatus(status: Int) = clientErrorActions(status)
 
       /**
         * Call the router to get the handler, but with a couple of types of fallback.
@@ -131,7 +139,7 @@ object HttpRequestHandler {
               routeRequest(request.withMethod(HttpVerbs.GET)) match {
                 case Some(handler: Handler) =>
                   handler match {
-                    //case ws: WebSocket => handleWithStatus(BAD_REQUEST)
+                    case ws: WebSocket => handleWithStatus(BAD_REQUEST)
                     case _ => handler
                   }
                 case None => handleWithStatus(NOT_FOUND)
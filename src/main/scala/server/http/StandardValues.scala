@@ -142,6 +142,21 @@ trait MimeTypes {
     */
   val EVENT_STREAM = "text/event-stream"
 
+  /**
+    * Content-Type of CBOR.
+    */
+  val CBOR = "application/cbor"
+
+  /**
+    * Content-Type of MessagePack.
+    */
+  val MSGPACK = "application/msgpack"
+
+  /**
+    * Content-Type of Protocol Buffers.
+    */
+  val PROTOBUF = "application/x-protobuf"
+
   /**
     * Content-Type of binary data.
     */
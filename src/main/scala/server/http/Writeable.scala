@@ -5,10 +5,15 @@
 package server.http
 
 
+import java.io.{BufferedWriter, OutputStream, OutputStreamWriter}
 import java.nio.file.{Files => JFiles}
 
 import akka.util.ByteString
+import com.fasterxml.jackson.core.JsonGenerator
+import com.google.protobuf.MessageLite
 import play.api.libs.json._
+import play.api.libs.json.jackson.PlayJsonModule
+import server.libs.BinaryJson
 import server.libs.Files.TemporaryFile
 import server.mvc.MultipartFormData.FilePart
 import server.mvc._
@@ -24,9 +29,35 @@ import scala.annotation._
 class Writeable[-A](val transform: A => ByteString, val contentType: Option[String]) {
   def toEntity(a: A): HttpEntity = HttpEntity.Strict(transform(a), contentType)
 
+  /**
+    * Write a value to the given stream, without closing it.
+    *
+    * Writeables created with [[Writeable.streaming]] encode the value straight to the stream, the others write the
+    * bytes of `transform`.
+    */
+  def writeTo(a: A, out: OutputStream): Unit = out.write(transform(a).toArray)
+
   def map[B](f: B => A): Writeable[B] = new Writeable(b => transform(f(b)), contentType)
 }
 
+/**
+  * A `Writeable` encoding its values straight to a stream. Its entities are [[HttpEntity.Written]], written by the
+  * server into the buffer of the response, and `transform` writes to memory.
+  */
+private final class StreamingWriteable[-A](write: (A, OutputStream) => Unit, contentType: Option[String])
+  extends Writeable[A]({ a =>
+    val builder = ByteString.newBuilder
+    write(a, builder.asOutputStream)
+    builder.result()
+  }, contentType) {
+
+  override def toEntity(a: A): HttpEntity = HttpEntity.Written(write(a, _), contentType)
+
+  override def writeTo(a: A, out: OutputStream): Unit = write(a, out)
+
+  override def map[B](f: B => A): Writeable[B] = new StreamingWriteable[B]((b, out) => write(f(b), out), contentType)
+}
+
 /**
   * Helper utilities for `Writeable`.
   */
@@ -43,6 +74,39 @@ object Writeable extends DefaultWriteables {
   def apply[A](transform: A => ByteString)(implicit ct: ContentTypeOf[A]): Writeable[A] =
     new Writeable(transform, ct.mimeType)
 
+  /**
+    * Creates a `Writeable[A]` encoding its values straight to a stream, so a response body isn't first encoded to
+    * memory then copied to the connection.
+    *
+    * @param write Writes a value to the given stream, without closing it.
+    */
+  def streaming[A](write: (A, OutputStream) => Unit, contentType: Option[String]): Writeable[A] =
+    new StreamingWriteable(write, contentType)
+
+  /**
+    * Creates a `Writeable[A]` encoding its values straight to a stream, using a content type for `A` available in the
+    * implicit scope.
+    *
+    * @param write Writes a value to the given stream, without closing it.
+    */
+  def streaming[A](write: (A, OutputStream) => Unit)(implicit ct: ContentTypeOf[A]): Writeable[A] =
+    new StreamingWriteable(write, ct.mimeType)
+
+  /**
+    * Writes a string to a stream with the charset of the codec, encoded in one go rather than through a buffered
+    * writer, whose buffers would be allocated for every response.
+    */
+  private[http] def writeString(str: String, codec: Codec, out: OutputStream): Unit =
+    out.write(str.getBytes(codec.charset))
+
+  /**
+    * Writes `JsValue`s as UTF-8 JSON text, with the same serializers as `Json.toBytes`.
+    */
+  private[http] lazy val jsonMapper = {
+    val mapper = server.libs.Json.newDefaultMapper().registerModule(new PlayJsonModule(JsonParserSettings.settings))
+    mapper.getFactory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+    mapper
+  }
 }
 
 /**
@@ -57,7 +121,7 @@ trait LowPriorityWriteables {
                                                                  implicit codec: Codec,
                                                                  ct: ContentTypeOf[C]
                                                                ): Writeable[C] = {
-    Writeable(content => codec.encode(content.body))
+    Writeable.streaming((content: C, out: OutputStream) => Writeable.writeString(content.body, codec, out))
   }
 
 }
@@ -82,7 +146,12 @@ trait DefaultWriteables extends LowPriorityWriteables {
     * `Writeable` for `NodeSeq` values - literal Scala XML.
     */
   implicit def writeableOf_NodeSeq[C <: scala.xml.NodeSeq](implicit codec: Codec): Writeable[C] = {
-    Writeable(xml => codec.encode(xml.toString))
+    Writeable.streaming { (xml: C, out: OutputStream) =>
+      val writer = new BufferedWriter(new OutputStreamWriter(out, codec.charset))
+      // Serialized node by node rather than as a whole document
+      xml.foreach(node => writer.write(node.toString))
+      writer.flush()
+    }
   }
 
   /**
@@ -109,7 +178,7 @@ trait DefaultWriteables extends LowPriorityWriteables {
     * `Writeable` for `JsValue` values that writes to UTF-8, so they can be sent with the application/json media type.
     */
   implicit def writeableOf_JsValue: Writeable[JsValue] = {
-    Writeable(a => ByteString.fromArrayUnsafe(Json.toBytes(a)))
+    Writeable.streaming((json: JsValue, out: OutputStream) => Writeable.jsonMapper.writeValue(out, json))
   }
 
   /**
@@ -119,6 +188,28 @@ trait DefaultWriteables extends LowPriorityWriteables {
     Writeable(a => codec.encode(Json.stringify(a)), contentType)
   }
 
+  /**
+    * `Writeable` for `JsValue` values encoded as CBOR, so they can be sent with the application/cbor media type.
+    */
+  def writeableOf_JsValueAsCbor: Writeable[JsValue] = {
+    Writeable.streaming(BinaryJson.Cbor.writeTo, Some(MimeTypes.CBOR))
+  }
+
+  /**
+    * `Writeable` for `JsValue` values encoded as MessagePack, so they can be sent with the application/msgpack media
+    * type.
+    */
+  def writeableOf_JsValueAsMsgPack: Writeable[JsValue] = {
+    Writeable.streaming(BinaryJson.MsgPack.writeTo, Some(MimeTypes.MSGPACK))
+  }
+
+  /**
+    * `Writeable` for Protocol Buffers messages.
+    */
+  implicit def writeableOf_Protobuf[M <: MessageLite](implicit ct: ContentTypeOf[M]): Writeable[M] = {
+    Writeable(message => ByteString.fromArrayUnsafe(message.toByteArray))
+  }
+
   /**
     * `Writeable` for `MultipartFormData` when using [[TemporaryFile]]s.
     */
@@ -189,7 +280,8 @@ trait DefaultWriteables extends LowPriorityWriteables {
   /**
     * Straightforward `Writeable` for String values.
     */
-  implicit def wString(implicit codec: Codec): Writeable[String] = Writeable[String](str => codec.encode(str))
+  implicit def wString(implicit codec: Codec): Writeable[String] =
+    Writeable.streaming[String](Writeable.writeString(_, codec, _))
 
   /**
     * Straightforward `Writeable` for Array[Byte] values.
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2009-2019 Lightbend Inc. <https://www.lightbend.com>
+ */
+
+package server.http.websocket
+
+import akka.util.ByteString
+
+/**
+  * A WebSocket message.
+  *
+  * This is a high level API intended for common simple use cases. It allows handling and sending of full
+  * WebSocket messages, as opposed to frames, which a message may be split into. Messages above the configured
+  * maximum length are rejected by closing the connection with [[CloseCodes.TooBig]].
+  */
+sealed trait Message
+
+/**
+  * A text message.
+  *
+  * @param data The text data.
+  */
+case class TextMessage(data: String) extends Message
+
+/**
+  * A binary message.
+  *
+  * @param data The binary data.
+  */
+case class BinaryMessage(data: ByteString) extends Message
+
+/**
+  * A close message.
+  *
+  * @param statusCode The close status code.
+  * @param reason     The reason it was closed.
+  */
+case class CloseMessage(statusCode: Option[Int] = Some(CloseCodes.Regular), reason: String = "") extends Message
+
+object CloseMessage {
+  def apply(statusCode: Int): CloseMessage = CloseMessage(Some(statusCode))
+
+  def apply(statusCode: Int, reason: String): CloseMessage = CloseMessage(Some(statusCode), reason)
+}
+
+/**
+  * A ping message.
+  *
+  * @param data The application data.
+  */
+case class PingMessage(data: ByteString) extends Message
+
+/**
+  * A pong message.
+  *
+  * @param data The application data.
+  */
+case class PongMessage(data: ByteString) extends Message
+
+/**
+  * An exception that, if thrown by a WebSocket source, will cause the WebSocket to be closed with the given close
+  * message. This is a convenience that allows the WebSocket to close with a particular close code without having
+  * to produce generic Messages.
+  */
+case class WebSocketCloseException(message: CloseMessage) extends RuntimeException(message.reason, null, false, false)
+
+/**
+  * WebSocket close codes, see RFC 6455 section 7.4.1.
+  */
+object CloseCodes {
+  val Regular = 1000
+  val GoingAway = 1001
+  val ProtocolError = 1002
+  val Unacceptable = 1003
+  val NoStatus = 1005
+  val ConnectionAbort = 1006
+  val InconsistentData = 1007
+  val PolicyViolated = 1008
+  val TooBig = 1009
+  val ClientRejectsExtension = 1010
+  val UnexpectedCondition = 1011
+  val TLSHandshakeFailure = 1015
+}
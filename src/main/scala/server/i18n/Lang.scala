@@ -3,6 +3,7 @@ package server.i18n
 
 import java.util.Locale
 
+import com.google.common.cache.{Cache, CacheBuilder}
 import javax.inject.{Inject, Provider, Singleton}
 import server.{Application, Configuration, Logger}
 
@@ -151,14 +152,31 @@ class DefaultLangs @Inject()(val availables: Seq[Lang] = Seq(Lang.defaultLang))
     this(Seq(Lang.defaultLang))
   }
 
+  /**
+    * The available lang satisfying each of the [[DefaultLangs.MaxMatches]] candidates seen last, as matching langs is
+    * costly and candidates are few.
+    */
+  private val matches: Cache[Lang, Option[Lang]] =
+    CacheBuilder.newBuilder().maximumSize(DefaultLangs.MaxMatches).build[Lang, Option[Lang]]()
+
+  private def satisfying(candidate: Lang): Option[Lang] = matches.getIfPresent(candidate) match {
+    case null =>
+      val available = availables.find(_.satisfies(candidate))
+      matches.put(candidate, available)
+      available
+    case available => available
+  }
+
   def preferred(candidates: Seq[Lang]): Lang =
     candidates
-      .collectFirst(Function.unlift { lang =>
-        availables.find(_.satisfies(lang))
-      })
+      .collectFirst(Function.unlift(satisfying))
       .getOrElse(availables.headOption.getOrElse(Lang.defaultLang))
 }
 
+private object DefaultLangs {
+  private val MaxMatches = 1024
+}
+
 @Singleton
 class DefaultLangsProvider @Inject()(config: Configuration) extends Provider[Langs] {
 
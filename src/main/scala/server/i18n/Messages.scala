@@ -3,12 +3,15 @@ package server.i18n
 
 import java.net.URL
 
+import com.google.common.cache.{Cache, CacheBuilder}
 import javax.inject.{Inject, Provider, Singleton}
 import server.core.exception.PlayException
+import server.http.HeaderNames.ACCEPT_LANGUAGE
 import server.http.HttpConfiguration
 import server.libs.typedmap.TypedKey
 import server.mvc.Cookie.SameSite
 import server.mvc._
+import server.mvc.request.RequestAttrKey
 import server.utils.{PlayIO, Resources}
 import server.{Application, _}
 
@@ -34,6 +37,12 @@ object Messages extends MessagesImplicits {
     */
   object Attrs {
     val CurrentLang: TypedKey[Lang] = TypedKey("CurrentLang")
+
+    /**
+      * Where [[DefaultMessagesApi.preferred]] keeps the messages it resolved for a request, added by the request
+      * factory.
+      */
+    private[server] val Preferred: TypedKey[PreferredMessages] = TypedKey("PreferredMessages")
   }
 
   private[server] val messagesApiCache = Application.instanceCache[MessagesApi]
@@ -439,20 +448,43 @@ class DefaultMessagesApi @Inject()(
                                     val langCookieSecure: Boolean = false,
                                     val langCookieHttpOnly: Boolean = false,
                                     val langCookieSameSite: Option[SameSite] = None,
-                                    val httpConfiguration: HttpConfiguration = HttpConfiguration()
+                                    val httpConfiguration: HttpConfiguration = HttpConfiguration(),
+                                    cacheSize: Int = 1000
                                   ) extends MessagesApi {
 
+  import DefaultMessagesApi._
   import java.text._
 
   override def preferred(candidates: Seq[Lang]): Messages = {
     MessagesImpl(langs.preferred(candidates), this)
   }
 
-  override def preferred(request: RequestHeader): Messages = {
-    val maybeLangFromRequest = request.transientLang()
-    val maybeLangFromCookie = request.cookies.get(langCookieName).flatMap(c => Lang.get(c.value))
-    val lang = langs.preferred(maybeLangFromRequest.toSeq ++ maybeLangFromCookie.toSeq ++ request.acceptLanguages)
-    MessagesImpl(lang, this)
+  /**
+    * The messages resolved by preference: the transient lang, the lang cookie value and the Accept-Language header.
+    * Clients send back the same few preferences, so the messages of the most recent ones are kept.
+    */
+  private val preferredCache: Option[Cache[Preference, Messages]] =
+    if (cacheSize > 0) Some(CacheBuilder.newBuilder().maximumSize(cacheSize).build()) else None
+
+  /**
+    * The messages of the request are resolved once per request, and from the preferences of recent requests.
+    */
+  override def preferred(request: RequestHeader): Messages = request.attrs.get(Messages.Attrs.Preferred) match {
+    case Some(preferred) => preferred.getOrElseUpdate(this, request)(resolve(request))
+    case None => resolve(request)
+  }
+
+  private def resolve(request: RequestHeader): Messages = {
+    val transientLang = request.transientLang()
+    val langCookie = request.cookies.get(langCookieName).map(_.value)
+    def select = {
+      val candidates = transientLang.toSeq ++ langCookie.flatMap(Lang.get).toSeq ++ request.acceptLanguages
+      MessagesImpl(langs.preferred(candidates), this)
+    }
+    preferredCache match {
+      case Some(cache) => cache.get(Preference(transientLang, langCookie, request.headers.get(ACCEPT_LANGUAGE)), () => select)
+      case None => select
+    }
   }
 
   override def apply(key: String, args: Any*)(implicit lang: Lang): String = {
@@ -514,6 +546,52 @@ class DefaultMessagesApi @Inject()(
 
 }
 
+private object DefaultMessagesApi {
+
+  /**
+    * What the preferred messages of a request are resolved from.
+    */
+  case class Preference(transientLang: Option[Lang], langCookie: Option[String], acceptLanguage: Option[String])
+}
+
+/**
+  * The messages resolved for a request, kept in its [[Messages.Attrs.Preferred]] attribute.
+  *
+  * Requests derived from the request share the attribute, so the messages are only reused for the messages API, the
+  * transient lang, the headers and the cookies they were resolved for.
+  */
+private[server] final class PreferredMessages {
+
+  import PreferredMessages._
+
+  @volatile private var resolved: Resolved = _
+
+  def getOrElseUpdate(messagesApi: MessagesApi, request: RequestHeader)(resolve: => Messages): Messages = {
+    val cookies = request.attrs.get(RequestAttrKey.Cookies).orNull
+    val transientLang = request.transientLang()
+    val current = resolved
+    if (current != null && (current.messagesApi eq messagesApi) && (current.headers eq request.headers) &&
+      (current.cookies eq cookies) && current.transientLang == transientLang) {
+      current.messages
+    } else {
+      val messages = resolve
+      resolved = new Resolved(messagesApi, request.headers, cookies, transientLang, messages)
+      messages
+    }
+  }
+}
+
+private object PreferredMessages {
+
+  private final class Resolved(
+                                val messagesApi: MessagesApi,
+                                val headers: Headers,
+                                val cookies: AnyRef,
+                                val transientLang: Option[Lang],
+                                val messages: Messages
+                              )
+}
+
 @Singleton
 class DefaultMessagesApiProvider @Inject()(
                                             environment: Environment,
@@ -530,7 +608,8 @@ class DefaultMessagesApiProvider @Inject()(
       langCookieSecure = langCookieSecure,
       langCookieHttpOnly = langCookieHttpOnly,
       langCookieSameSite = langCookieSameSite,
-      httpConfiguration = httpConfiguration
+      httpConfiguration = httpConfiguration,
+      cacheSize = config.get[Int]("play.i18n.cacheSize")
     )
   }
 
@@ -10,11 +10,15 @@ import akka.actor.CoordinatedShutdown
 import akka.stream.Materializer
 import com.typesafe.config.Config
 import server._
+import server.controllers.{AssetsConfiguration, AssetsConfigurationProvider}
+import server.filters.csrf.{CSRFConfig, CSRFConfigProvider}
+import server.filters.gzip.{GzipFilterConfig, GzipFilterConfigProvider}
 import server.http.HttpConfiguration._
 import server.http._
 import server.libs.Files.TemporaryFileReaperConfigurationProvider
 import server.libs.Files._
 import server.libs.concurrent._
+import server.libs.crypto.{CSRFTokenSigner, CSRFTokenSignerProvider}
 import server.mvc._
 import server.mvc.request.DefaultRequestFactory
 import server.mvc.request.RequestFactory
@@ -45,10 +49,16 @@ class BuiltinModule
       bind[CookiesConfiguration].toProvider[CookiesConfigurationProvider],
       bind[FlashConfiguration].toProvider[FlashConfigurationProvider],
       bind[SessionConfiguration].toProvider[SessionConfigurationProvider],
+      bind[SessionStoreConfig].toProvider[SessionStoreConfigProvider],
       bind[ActionCompositionConfiguration].toProvider[ActionCompositionConfigurationProvider],
       bind[FileMimeTypesConfiguration].toProvider[FileMimeTypesConfigurationProvider],
       bind[SecretConfiguration].toProvider[SecretConfigurationProvider],
       bind[TemporaryFileReaperConfiguration].toProvider[TemporaryFileReaperConfigurationProvider],
+      bind[TemporaryFileCreatorConfiguration].toProvider[TemporaryFileCreatorConfigurationProvider],
+      bind[AssetsConfiguration].toProvider[AssetsConfigurationProvider],
+      bind[GzipFilterConfig].toProvider[GzipFilterConfigProvider],
+      bind[CSRFConfig].toProvider[CSRFConfigProvider],
+      bind[CSRFTokenSigner].toProvider[CSRFTokenSignerProvider],
       bind[CookieHeaderEncoding].to[DefaultCookieHeaderEncoding],
       bind[RequestFactory].to[DefaultRequestFactory],
       bind[TemporaryFileReaper].to[DefaultTemporaryFileReaper],
@@ -0,0 +1,97 @@
+package server.libs
+
+import java.io.OutputStream
+import java.util.Base64
+
+import akka.util.ByteString
+import com.fasterxml.jackson.core.util.JsonParserDelegate
+import com.fasterxml.jackson.core.{JsonFactory, JsonGenerator, JsonParser, JsonToken, JsonTokenId}
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory
+import org.msgpack.jackson.dataformat.MessagePackFactory
+import play.api.libs.json.jackson.PlayJsonModule
+import play.api.libs.json._
+import server.http.MimeTypes
+
+/**
+  * Reads and writes `JsValue`s in a binary data format sharing the JSON data model.
+  *
+  * Values go through the same Jackson data binding as [[Json]]: they are read and written with the play-json module, so
+  * a CBOR or MessagePack body is read straight into a `JsValue`, and can then be validated with the `Reads` of its JSON
+  * equivalent.
+  *
+  * @param factory  The Jackson factory of the data format.
+  * @param mimeType The media type of the data format.
+  */
+sealed abstract class BinaryJson(factory: => JsonFactory, val mimeType: String) {
+
+  private lazy val mapper: ObjectMapper = {
+    val mapper = Json.newDefaultMapper(factory).registerModule(new PlayJsonModule(JsonParserSettings.settings))
+    mapper.getFactory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+    mapper
+  }
+
+  /**
+    * Parse the given bytes.
+    */
+  def parse(bytes: ByteString): JsValue =
+    mapper.readValue(new BinaryJson.EmbeddedAsString(mapper.getFactory.createParser(bytes.iterator.asInputStream)),
+      classOf[JsValue])
+
+  /**
+    * Encode the given value.
+    */
+  def toBytes(json: JsValue): ByteString = ByteString.fromArrayUnsafe(mapper.writeValueAsBytes(json))
+
+  /**
+    * Encode the given value to the stream, without closing it.
+    */
+  def writeTo(json: JsValue, out: OutputStream): Unit = mapper.writeValue(out, json)
+}
+
+object BinaryJson {
+
+  /**
+    * CBOR, see RFC 7049.
+    */
+  object Cbor extends BinaryJson(new CBORFactory(), MimeTypes.CBOR)
+
+  /**
+    * MessagePack.
+    */
+  object MsgPack extends BinaryJson(new MessagePackFactory(), MimeTypes.MSGPACK)
+
+  /**
+    * Presents the byte strings and extension types of a binary format, which JSON has no equivalent of, as strings,
+    * rendered like Jackson renders them in JSON (base64 for bytes), for the play-json deserializer to read them. The
+    * deserializer also reads numbers from their text, which not every binary parser provides.
+    */
+  private final class EmbeddedAsString(parser: JsonParser) extends JsonParserDelegate(parser) {
+
+    private def asString(token: JsonToken): JsonToken =
+      if (token == JsonToken.VALUE_EMBEDDED_OBJECT) JsonToken.VALUE_STRING else token
+
+    override def nextToken(): JsonToken = asString(delegate.nextToken())
+
+    override def getCurrentToken: JsonToken = asString(delegate.getCurrentToken)
+
+    override def currentToken(): JsonToken = asString(delegate.currentToken())
+
+    override def getCurrentTokenId: Int = currentTokenId()
+
+    override def currentTokenId(): Int = delegate.currentTokenId() match {
+      case JsonTokenId.ID_EMBEDDED_OBJECT => JsonTokenId.ID_STRING
+      case id => id
+    }
+
+    override def getText: String = delegate.currentTokenId() match {
+      case JsonTokenId.ID_EMBEDDED_OBJECT =>
+        delegate.getEmbeddedObject match {
+          case bytes: Array[Byte] => Base64.getEncoder.encodeToString(bytes)
+          case value => String.valueOf(value)
+        }
+      case JsonTokenId.ID_NUMBER_INT | JsonTokenId.ID_NUMBER_FLOAT => delegate.getNumberValue.toString
+      case _ => delegate.getText
+    }
+  }
+}
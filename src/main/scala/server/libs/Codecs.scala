@@ -4,19 +4,48 @@
 
 package server.libs
 
+import java.nio.ByteBuffer
 import java.nio.charset.StandardCharsets
 import java.security.MessageDigest
+import java.util.zip.Checksum
 
-import com.google.common.io.BaseEncoding
+import akka.stream.scaladsl.Sink
+import akka.util.ByteString
+import com.google.common.hash.{Hasher, Hashing}
+import server.core.Execution
+
+import scala.concurrent.Future
 
 /**
  * Utilities for Codecs operations.
+ *
+ * Digests of whole values reuse a `MessageDigest` per thread and algorithm, and hex and base64url are encoded and
+ * decoded with lookup tables, optionally into arrays the caller allocated.
  */
 object Codecs {
 
-  private def hexEncoder        = BaseEncoding.base16.lowerCase
-  private def sha1MessageDigest = MessageDigest.getInstance("SHA-1")
-  private def md5MessageDigest  = MessageDigest.getInstance("MD5")
+  private def threadLocalDigest(algorithm: String): ThreadLocal[MessageDigest] = {
+    // Fails now rather than on first use if the algorithm is missing
+    MessageDigest.getInstance(algorithm)
+    new ThreadLocal[MessageDigest] {
+      override def initialValue(): MessageDigest = MessageDigest.getInstance(algorithm)
+    }
+  }
+
+  private val sha1MessageDigest   = threadLocalDigest("SHA-1")
+  private val md5MessageDigest    = threadLocalDigest("MD5")
+  private val sha256MessageDigest = threadLocalDigest("SHA-256")
+  private val sha512MessageDigest = threadLocalDigest("SHA-512")
+
+  private def messageDigest(algorithm: String): ThreadLocal[MessageDigest] = algorithm match {
+    case "SHA-1"   => sha1MessageDigest
+    case "MD5"     => md5MessageDigest
+    case "SHA-256" => sha256MessageDigest
+    case "SHA-512" => sha512MessageDigest
+    case _         => null
+  }
+
+  private def utf8(text: String): Array[Byte] = text.getBytes(StandardCharsets.UTF_8)
 
   /**
    * Computes the SHA-1 digest for a byte array.
@@ -24,7 +53,7 @@ object Codecs {
    * @param bytes the data to hash
    * @return the SHA-1 digest, encoded as a hex string
    */
-  def sha1(bytes: Array[Byte]): String = toHexString(sha1MessageDigest.digest(bytes))
+  def sha1(bytes: Array[Byte]): String = toHexString(sha1MessageDigest.get.digest(bytes))
 
   /**
    * Computes the MD5 digest for a byte array.
@@ -32,7 +61,7 @@ object Codecs {
    * @param bytes the data to hash
    * @return the MD5 digest, encoded as a hex string
    */
-  def md5(bytes: Array[Byte]): String = toHexString(md5MessageDigest.digest(bytes))
+  def md5(bytes: Array[Byte]): String = toHexString(md5MessageDigest.get.digest(bytes))
 
   /**
    * Computes the MD5 digest for a String.
@@ -40,7 +69,7 @@ object Codecs {
    * @param text the data to hash
    * @return the MD5 digest, encoded as a hex string
    */
-  def md5(text: String): String = toHexString(md5MessageDigest.digest(text.getBytes(StandardCharsets.UTF_8)))
+  def md5(text: String): String = md5(utf8(text))
 
   /**
    * Compute the SHA-1 digest for a `String`.
@@ -48,21 +77,316 @@ object Codecs {
    * @param text the text to hash
    * @return the SHA-1 digest, encoded as a hex string
    */
-  def sha1(text: String): String = toHexString(sha1MessageDigest.digest(text.getBytes(StandardCharsets.UTF_8)))
+  def sha1(text: String): String = sha1(utf8(text))
+
+  /**
+   * Computes the SHA-256 digest for a byte array.
+   *
+   * @param bytes the data to hash
+   * @return the SHA-256 digest, encoded as a hex string
+   */
+  def sha256(bytes: Array[Byte]): String = toHexString(sha256MessageDigest.get.digest(bytes))
+
+  /**
+   * Computes the SHA-256 digest for a `String`.
+   *
+   * @param text the text to hash
+   * @return the SHA-256 digest, encoded as a hex string
+   */
+  def sha256(text: String): String = sha256(utf8(text))
+
+  /**
+   * Computes the SHA-512 digest for a byte array.
+   *
+   * @param bytes the data to hash
+   * @return the SHA-512 digest, encoded as a hex string
+   */
+  def sha512(bytes: Array[Byte]): String = toHexString(sha512MessageDigest.get.digest(bytes))
+
+  /**
+   * Computes the SHA-512 digest for a `String`.
+   *
+   * @param text the text to hash
+   * @return the SHA-512 digest, encoded as a hex string
+   */
+  def sha512(text: String): String = sha512(utf8(text))
+
+  /**
+   * Computes the digest of a `ByteString`, one buffer at a time, without copying it into an array.
+   *
+   * @param algorithm the digest algorithm, eg `SHA-256`
+   * @param data      the data to hash
+   * @return the digest
+   */
+  def digest(algorithm: String, data: ByteString): Array[Byte] = {
+    val digest = acquire(algorithm)
+    data.asByteBuffers.foreach(digest.update)
+    digest.digest()
+  }
+
+  /**
+   * Computes the digest of the remaining bytes of a `ByteBuffer`, consuming them.
+   *
+   * @param algorithm the digest algorithm, eg `SHA-256`
+   * @param data      the data to hash
+   * @return the digest
+   */
+  def digest(algorithm: String, data: ByteBuffer): Array[Byte] = {
+    val digest = acquire(algorithm)
+    digest.update(data)
+    digest.digest()
+  }
+
+  /**
+   * A sink computing the digest of a stream, such as an uploaded file, as it is received.
+   *
+   * @param algorithm the digest algorithm, eg `SHA-256`
+   * @return a sink materializing the digest
+   */
+  def digestSink(algorithm: String): Sink[ByteString, Future[Array[Byte]]] = {
+    // Not one of the thread local digests, as the stream may run on several threads. Created by the first element,
+    // as the zero of the fold is shared by every materialization
+    def create(digest: Option[MessageDigest]) = digest.getOrElse(MessageDigest.getInstance(algorithm))
+    Sink.fold[Option[MessageDigest], ByteString](None) { (previous, bytes) =>
+      val digest = create(previous)
+      bytes.asByteBuffers.foreach(digest.update)
+      Some(digest)
+    }.mapMaterializedValue(_.map(create(_).digest())(Execution.trampoline))
+  }
+
+  private def acquire(algorithm: String): MessageDigest = messageDigest(algorithm) match {
+    case null => MessageDigest.getInstance(algorithm)
+    case cached =>
+      val digest = cached.get
+      digest.reset()
+      digest
+  }
+
+  private val crc32cFactory: () => Checksum =
+    try {
+      // The JDK implementation of Java 9 on is an intrinsic using the CPU instructions
+      val crc32c = Class.forName("java.util.zip.CRC32C").asSubclass(classOf[Checksum])
+      () => crc32c.getDeclaredConstructor().newInstance()
+    } catch {
+      case _: ClassNotFoundException => () => new GuavaCrc32c
+    }
+
+  private final class GuavaCrc32c extends Checksum {
+    private var hasher: Hasher = Hashing.crc32c.newHasher
+    override def update(b: Int): Unit = hasher.putByte(b.toByte)
+    override def update(b: Array[Byte], off: Int, len: Int): Unit = hasher.putBytes(b, off, len)
+    override def getValue: Long = hasher.hash.asInt & 0xffffffffL
+    override def reset(): Unit = hasher = Hashing.crc32c.newHasher
+  }
+
+  /**
+   * Computes the CRC32C checksum of a byte array, as used by storage services to check uploads.
+   *
+   * @param bytes the data to check
+   * @return the checksum, as an unsigned 32 bit value
+   */
+  def crc32c(bytes: Array[Byte]): Long = {
+    val checksum = crc32cFactory()
+    checksum.update(bytes, 0, bytes.length)
+    checksum.getValue
+  }
+
+  /**
+   * Computes the CRC32C checksum of a `ByteString`, one buffer at a time.
+   *
+   * @param data the data to check
+   * @return the checksum, as an unsigned 32 bit value
+   */
+  def crc32c(data: ByteString): Long = {
+    val checksum = crc32cFactory()
+    data.asByteBuffers.foreach { buffer =>
+      if (buffer.hasArray) {
+        checksum.update(buffer.array, buffer.arrayOffset + buffer.position(), buffer.remaining)
+      } else {
+        val chunk = new Array[Byte](math.min(buffer.remaining, 8192))
+        val view = buffer.duplicate()
+        while (view.hasRemaining) {
+          val length = math.min(chunk.length, view.remaining)
+          view.get(chunk, 0, length)
+          checksum.update(chunk, 0, length)
+        }
+      }
+    }
+    checksum.getValue
+  }
+
+  private val HexDigits = "0123456789abcdef".toCharArray
+
+  /** The value of each ASCII char as a hex digit, -1 if it isn't one */
+  private val HexValues: Array[Byte] = {
+    val values = Array.fill[Byte](128)(-1)
+    for (i <- 0 until 16) {
+      values("0123456789abcdef".charAt(i)) = i.toByte
+      values("0123456789ABCDEF".charAt(i)) = i.toByte
+    }
+    values
+  }
 
   /**
    * Converts a byte array into an array of characters that denotes a hexadecimal representation.
    */
-  def toHex(array: Array[Byte]): Array[Char] = toHexString(array).toCharArray
+  def toHex(array: Array[Byte]): Array[Char] = {
+    val chars = new Array[Char](array.length * 2)
+    encodeHex(array, 0, array.length, chars, 0)
+    chars
+  }
 
   /**
    * Converts a byte array into a `String` that denotes a hexadecimal representation.
    */
-  def toHexString(array: Array[Byte]): String = hexEncoder.encode(array)
+  def toHexString(array: Array[Byte]): String = new String(toHex(array))
+
+  /**
+   * Writes the lowercase hexadecimal representation of some bytes into a char array.
+   *
+   * @return the number of chars written, twice the number of bytes
+   */
+  def encodeHex(bytes: Array[Byte], offset: Int, length: Int, out: Array[Char], outOffset: Int): Int = {
+    var i = 0
+    while (i < length) {
+      val b = bytes(offset + i)
+      out(outOffset + 2 * i) = HexDigits((b >> 4) & 0xf)
+      out(outOffset + 2 * i + 1) = HexDigits(b & 0xf)
+      i += 1
+    }
+    length * 2
+  }
 
   /**
    * Transform an hexadecimal String to a byte array.
+   *
+   * @throws IllegalArgumentException if the string isn't hexadecimal
    */
-  def hexStringToByte(hexString: String): Array[Byte] = hexEncoder.decode(hexString.toLowerCase)
+  def hexStringToByte(hexString: String): Array[Byte] = {
+    if (hexString.length % 2 != 0) throw new IllegalArgumentException("Invalid hex string length: " + hexString.length)
+    val bytes = new Array[Byte](hexString.length / 2)
+    if (!decodeHex(hexString, bytes, 0)) throw new IllegalArgumentException("Invalid hex string: " + hexString)
+    bytes
+  }
+
+  /**
+   * Decodes a hexadecimal string, of either case, into a byte array.
+   *
+   * @return whether the string was hexadecimal and of an even length. If not, the bytes written are undefined.
+   */
+  def decodeHex(hex: CharSequence, out: Array[Byte], outOffset: Int): Boolean =
+    hex.length % 2 == 0 && {
+      var i = 0
+      var valid = 0
+      while (i < hex.length / 2) {
+        val high = hexValue(hex.charAt(2 * i))
+        val low = hexValue(hex.charAt(2 * i + 1))
+        // Goes on for invalid digits, so the time doesn't depend on where the first one is
+        valid |= high | low
+        out(outOffset + i) = ((high << 4) | low).toByte
+        i += 1
+      }
+      valid >= 0
+    }
+
+  private def hexValue(c: Char): Int = if (c < 128) HexValues(c) else -1
 
+  private val Base64UrlDigits = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray
+
+  /** The value of each ASCII char as a base64url digit, -1 if it isn't one */
+  private val Base64UrlValues: Array[Byte] = {
+    val values = Array.fill[Byte](128)(-1)
+    for (i <- Base64UrlDigits.indices) values(Base64UrlDigits(i)) = i.toByte
+    values
+  }
+
+  /**
+   * The number of chars of the unpadded base64url representation of the given number of bytes.
+   */
+  def base64UrlLength(bytes: Int): Int = (bytes * 8 + 5) / 6
+
+  /**
+   * Converts a byte array into its unpadded base64url representation, as used in URLs and cookies.
+   */
+  def toBase64Url(array: Array[Byte]): String = {
+    val chars = new Array[Char](base64UrlLength(array.length))
+    encodeBase64Url(array, 0, array.length, chars, 0)
+    new String(chars)
+  }
+
+  /**
+   * Writes the unpadded base64url representation of some bytes into a char array.
+   *
+   * @return the number of chars written, [[base64UrlLength]] of the number of bytes
+   */
+  def encodeBase64Url(bytes: Array[Byte], offset: Int, length: Int, out: Array[Char], outOffset: Int): Int = {
+    var c = outOffset
+    var i = 0
+    // Three bytes to four chars at a time
+    while (i + 3 <= length) {
+      val bits = ((bytes(offset + i) & 0xff) << 16) | ((bytes(offset + i + 1) & 0xff) << 8) | (bytes(offset + i + 2) & 0xff)
+      out(c) = Base64UrlDigits(bits >>> 18)
+      out(c + 1) = Base64UrlDigits((bits >>> 12) & 0x3f)
+      out(c + 2) = Base64UrlDigits((bits >>> 6) & 0x3f)
+      out(c + 3) = Base64UrlDigits(bits & 0x3f)
+      c += 4
+      i += 3
+    }
+    length - i match {
+      case 1 =>
+        val bits = bytes(offset + i) & 0xff
+        out(c) = Base64UrlDigits(bits >>> 2)
+        out(c + 1) = Base64UrlDigits((bits << 4) & 0x3f)
+        c += 2
+      case 2 =>
+        val bits = ((bytes(offset + i) & 0xff) << 8) | (bytes(offset + i + 1) & 0xff)
+        out(c) = Base64UrlDigits(bits >>> 10)
+        out(c + 1) = Base64UrlDigits((bits >>> 4) & 0x3f)
+        out(c + 2) = Base64UrlDigits((bits << 2) & 0x3f)
+        c += 3
+      case _ =>
+    }
+    c - outOffset
+  }
+
+  /**
+   * Transform an unpadded base64url String to a byte array.
+   *
+   * @throws IllegalArgumentException if the string isn't unpadded base64url
+   */
+  def fromBase64Url(base64: String): Array[Byte] = {
+    val bytes = new Array[Byte](base64.length * 6 / 8)
+    if (decodeBase64Url(base64, bytes, 0) < 0) throw new IllegalArgumentException("Invalid base64url string: " + base64)
+    bytes
+  }
+
+  /**
+   * Decodes an unpadded base64url string into a byte array, which must have room for `length * 6 / 8` bytes.
+   *
+   * @return the number of bytes written, or -1 if the string isn't unpadded base64url
+   */
+  def decodeBase64Url(base64: CharSequence, out: Array[Byte], outOffset: Int): Int =
+    if (base64.length % 4 == 1) -1
+    else {
+      var bits = 0
+      var bitCount = 0
+      var o = outOffset
+      var i = 0
+      var valid = true
+      while (valid && i < base64.length) {
+        val c = base64.charAt(i)
+        val value = if (c < 128) Base64UrlValues(c) else -1
+        valid = value >= 0
+        bits = (bits << 6) | value
+        bitCount += 6
+        if (bitCount >= 8) {
+          bitCount -= 8
+          out(o) = (bits >> bitCount).toByte
+          o += 1
+        }
+        i += 1
+      }
+      // The bits left over must be zero, as encoders write them
+      if (valid && (bits & ((1 << bitCount) - 1)) == 0) o - outOffset else -1
+    }
 }
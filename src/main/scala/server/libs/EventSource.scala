@@ -0,0 +1,155 @@
+package server.libs
+
+import akka.NotUsed
+import akka.stream.scaladsl.Flow
+import play.api.libs.json.JsValue
+import server.http.{ContentTypeOf, ContentTypes, Writeable}
+import server.mvc.{Codec, RequestHeader}
+
+import scala.concurrent.duration.FiniteDuration
+
+/**
+  * Helps with the Server-Sent Events (EventSource) protocol.
+  *
+  * {{{
+  *   def prices = Action { request =>
+  *     val updates = marketUpdates(after = EventSource.lastEventId(request))
+  *     Ok.chunked(updates via EventSource.flow via EventSource.heartbeat(15.seconds))
+  *   }
+  * }}}
+  *
+  * Streams are written as fast as the client reads them: once the write buffer of the connection is full, the server
+  * stops pulling the source until the client catches up, see `play.server.http.writeBufferHighWaterMark`.
+  */
+object EventSource {
+
+  /**
+    * The request header a reconnecting client sends, holding the id of the last event it received.
+    */
+  val LastEventIdHeader = "Last-Event-ID"
+
+  /**
+    * The id of the last event received by a reconnecting client, to resume the stream after it.
+    */
+  def lastEventId(request: RequestHeader): Option[String] =
+    request.headers.get(LastEventIdHeader).map(_.trim).filter(_.nonEmpty)
+
+  /**
+    * Makes a `Flow[E, Event, _]`, given an input source.
+    *
+    * Usage example:
+    *
+    * {{{
+    *   val jsonStream: Source[JsValue, Unit] = createJsonSource()
+    *   Ok.chunked(jsonStream via EventSource.flow).as(ContentTypes.EVENT_STREAM)
+    * }}}
+    */
+  def flow[E: EventDataExtractor: EventNameExtractor: EventIdExtractor]: Flow[E, Event, NotUsed] =
+    Flow[E].map(Event(_))
+
+  /**
+    * Sends a comment, which clients ignore, whenever no event was sent for the given interval. This keeps the
+    * connection from being closed as idle by the server and by the proxies in between, and lets the server notice
+    * clients that went away.
+    */
+  def heartbeat(interval: FiniteDuration): Flow[Event, Event, NotUsed] =
+    Flow[Event].keepAlive(interval, () => Event.Heartbeat)
+
+  //------------------
+  // Event
+  //------------------
+
+  /**
+    * An event encoded with the SSE protocol.
+    *
+    * @param data    The data of the event, sent as one `data` field per line.
+    * @param id      The id of the event, which the client sends back in the Last-Event-ID header when reconnecting.
+    * @param name    The type of the event, `message` if none.
+    * @param retry   How long the client should wait before reconnecting.
+    * @param comment A comment, ignored by the client. An event with a comment and no data only sends the comment.
+    */
+  case class Event(
+                    data: String,
+                    id: Option[String],
+                    name: Option[String],
+                    retry: Option[FiniteDuration] = None,
+                    comment: Option[String] = None
+                  ) {
+
+    /**
+      * This event, formatted according to the EventSource protocol.
+      */
+    lazy val formatted: String = {
+      val sb = new StringBuilder
+      comment.foreach(_.split("(\r?\n)|\r", -1).foreach(line => sb.append(':').append(line).append('\n')))
+      name.foreach(sb.append("event: ").append(_).append('\n'))
+      id.foreach(sb.append("id: ").append(_).append('\n'))
+      retry.foreach(duration => sb.append("retry: ").append(duration.toMillis).append('\n'))
+      if (data.nonEmpty || comment.isEmpty) {
+        data.split("(\r?\n)|\r", -1).foreach(line => sb.append("data: ").append(line).append('\n'))
+      }
+      sb.append('\n')
+      sb.toString()
+    }
+  }
+
+  object Event {
+
+    /**
+      * The empty comment sent by [[EventSource.heartbeat]].
+      */
+    val Heartbeat: Event = Event("", None, None, comment = Some(""))
+
+    def apply[A](a: A)(
+      implicit dataExtractor: EventDataExtractor[A],
+      nameExtractor: EventNameExtractor[A],
+      idExtractor: EventIdExtractor[A]
+    ): Event =
+      Event(dataExtractor.eventData(a), idExtractor.eventId(a), nameExtractor.eventName(a))
+
+    implicit def writeable(implicit codec: Codec): Writeable[Event] =
+      Writeable(event => codec.encode(event.formatted))
+
+    implicit def contentType(implicit codec: Codec): ContentTypeOf[Event] =
+      ContentTypeOf(Some(ContentTypes.EVENT_STREAM))
+  }
+
+  //------------------
+  // Event Data Extractor
+  //------------------
+
+  case class EventDataExtractor[A](eventData: A => String)
+
+  trait LowPriorityEventEncoder {
+
+    implicit val stringEvents: EventDataExtractor[String] = EventDataExtractor(identity)
+
+    implicit val jsonEvents: EventDataExtractor[JsValue] = EventDataExtractor(play.api.libs.json.Json.stringify)
+  }
+
+  object EventDataExtractor extends LowPriorityEventEncoder
+
+  //------------------
+  // Event ID Extractor
+  //------------------
+
+  case class EventIdExtractor[E](eventId: E => Option[String])
+
+  trait LowPriorityEventIdExtractor {
+    implicit def non[E]: EventIdExtractor[E] = EventIdExtractor[E](_ => None)
+  }
+
+  object EventIdExtractor extends LowPriorityEventIdExtractor
+
+  //------------------
+  // Event Name Extractor
+  //------------------
+
+  case class EventNameExtractor[E](eventName: E => Option[String])
+
+  trait LowPriorityEventNameExtractor {
+    implicit def non[E]: EventNameExtractor[E] = EventNameExtractor[E](_ => None)
+  }
+
+  object EventNameExtractor extends LowPriorityEventNameExtractor
+}
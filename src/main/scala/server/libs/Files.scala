@@ -5,15 +5,20 @@
 package server.libs
 
 import java.io.{File, IOException}
-import java.lang.ref.Reference
+import java.nio.channels.FileChannel
 import java.nio.file.attribute.BasicFileAttributes
 import java.nio.file.{Files => JFiles, _}
 import java.time.{Clock, Instant}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentLinkedQueue, ConcurrentSkipListMap}
 import java.util.function.Predicate
 
 import akka.actor.{ActorSystem, Cancellable}
+import akka.stream.IOResult
+import akka.stream.scaladsl.{FileIO, Flow, Keep, Sink}
+import akka.util.ByteString
 import com.google.common.base.{FinalizablePhantomReference, FinalizableReferenceQueue}
-import com.google.common.collect.Sets
+import com.typesafe.config.ConfigMemorySize
 import javax.inject.{Inject, Provider, Singleton}
 import org.slf4j.LoggerFactory
 import server.Configuration
@@ -22,7 +27,7 @@ import server.inject.ApplicationLifecycle
 import scala.concurrent.Future
 import scala.concurrent.duration._
 import scala.language.implicitConversions
-import scala.util.{Failure, Try}
+import scala.util.{Failure, Success, Try}
 
 /**
   * FileSystem utilities.
@@ -63,6 +68,19 @@ object Files {
       */
     def delete(file: TemporaryFile): Try[Boolean]
 
+    /**
+      * A sink writing to the given temporary file. Creators enforcing a disk quota account the written bytes here, and
+      * fail the stream with a [[TemporaryFileQuotaExceededException]] once it is exceeded.
+      *
+      * @param file the temporary file to write to.
+      */
+    def sink(file: TemporaryFile): Sink[ByteString, Future[IOResult]] = FileIO.toPath(file.path)
+
+    /**
+      * Creates the scope of the temporary files of a single request.
+      */
+    def requestScope(): TemporaryFileScope = new TemporaryFileScope(this, Long.MaxValue)
+
     /**
       * @return the Java version for the temporary file creator.
       */
@@ -245,36 +263,152 @@ object Files {
   }
 
   /**
-    * Creates temporary folders inside a single temporary folder. deleting all files on a
-    * successful application stop.  Note that this will not clean up the filesystem if the
-    * application / JVM terminates abnormally.
+    * Thrown when writing to a temporary file would exceed a disk quota.
+    */
+  class TemporaryFileQuotaExceededException(message: String) extends IOException(message)
+
+  /**
+    * The temporary files of a single request.
+    *
+    * Files created through the scope count against the size quota of the request, and are all deleted by [[close]],
+    * which the server calls once the response has been sent. Files that should outlive the request must be moved
+    * elsewhere by the action.
+    *
+    * @param underlying the creator of the files.
+    * @param maxSize    the maximum number of bytes written to the files of the request.
+    */
+  final class TemporaryFileScope(underlying: TemporaryFileCreator, maxSize: Long) extends TemporaryFileCreator {
+
+    private val files = new ConcurrentLinkedQueue[TemporaryFile]()
+    private val size = new AtomicLong()
+    @volatile private var closed = false
+
+    override def create(prefix: String, suffix: String): TemporaryFile = track(underlying.create(prefix, suffix))
+
+    override def create(path: Path): TemporaryFile = track(underlying.create(path))
+
+    override def delete(file: TemporaryFile): Try[Boolean] = underlying.delete(file)
+
+    override def sink(file: TemporaryFile): Sink[ByteString, Future[IOResult]] =
+      Flow[ByteString]
+        .map { bytes =>
+          if (size.addAndGet(bytes.size) > maxSize) {
+            throw new TemporaryFileQuotaExceededException(s"Request temporary files exceed $maxSize bytes")
+          }
+          bytes
+        }
+        .toMat(underlying.sink(file))(Keep.right)
+
+    override def requestScope(): TemporaryFileScope = this
+
+    /**
+      * Deletes the files of the scope. Files created afterwards are deleted right away.
+      */
+    def close(): Unit = {
+      closed = true
+      var file = files.poll()
+      while (file != null) {
+        underlying.delete(file)
+        file = files.poll()
+      }
+    }
+
+    private def track(file: TemporaryFile): TemporaryFile = {
+      files.add(file)
+      if (closed) close()
+      file
+    }
+  }
+
+  /**
+    * The live temporary files of a creator, which a [[TemporaryFileReaper]] can reap without listing the temporary
+    * folder.
+    */
+  trait TemporaryFileIndex {
+
+    /**
+      * Deletes the files created and last modified before the given instant.
+      *
+      * @return the deleted files.
+      */
+    def reap(olderThan: Instant): Seq[Path]
+  }
+
+  /**
+    * Creates temporary files inside a single temporary folder, spread over
+    * [[TemporaryFileCreatorConfiguration.shards]] subfolders, deleting all files on a successful application stop.
+    * Note that this will not clean up the filesystem if the application / JVM terminates abnormally.
+    *
+    * Deleted files are truncated and kept, up to [[TemporaryFileCreatorConfiguration.poolSize]] of them, to be
+    * reused by the next created files, so their name may not carry the requested prefix and suffix. A deleted file is
+    * only reused once its [[TemporaryFile]] was garbage collected, so that nothing still refers to it.
+    *
+    * The number of bytes written through [[sink]] to live files is limited by
+    * [[TemporaryFileCreatorConfiguration.maxTotalSize]].
     */
   @Singleton
   class DefaultTemporaryFileCreator @Inject()(
                                                applicationLifecycle: ApplicationLifecycle,
-                                               temporaryFileReaper: TemporaryFileReaper
+                                               temporaryFileReaper: TemporaryFileReaper,
+                                               config: TemporaryFileCreatorConfiguration
                                              ) extends TemporaryFileCreator {
 
+    def this(applicationLifecycle: ApplicationLifecycle, temporaryFileReaper: TemporaryFileReaper) =
+      this(applicationLifecycle, temporaryFileReaper, TemporaryFileCreatorConfiguration())
+
     private val logger = server.Logger(this.getClass)
     private val frq = new FinalizableReferenceQueue()
 
-    // Much of the PhantomReference implementation is taken from
-    // the Google Guava documentation example
-    //
-    // https://google.github.io/guava/releases/19.0/api/docs/com/google/common/base/FinalizableReferenceQueue.html
-    // Keeping references ensures that the FinalizablePhantomReference itself is not garbage-collected.
-    private val references = Sets.newConcurrentHashSet[Reference[TemporaryFile]]()
+    /**
+      * A live temporary file. Keeping the entry in [[entries]], or in [[pending]] once it is pooled, ensures that the
+      * FinalizablePhantomReference itself is not garbage-collected.
+      */
+    private final class Entry(val path: Path, val created: Instant, val sequence: Long) {
+      val size = new AtomicLong()
+      @volatile var reference: FinalizablePhantomReference[TemporaryFile] = _
+    }
+
+    private val entries = new ConcurrentHashMap[Path, Entry]()
+    /** The live entries in creation order, for the reaper */
+    private val creationOrder = new ConcurrentSkipListMap[java.lang.Long, Entry]()
+    private val nextSequence = new AtomicLong()
+    private val totalSize = new AtomicLong()
+
+    private val pool = new ConcurrentLinkedQueue[Path]()
+    /** The paths in the pool, and those waiting for their temporary file to be collected to go back to it */
+    private val pooled = new AtomicInteger()
+    /** The deleted entries waiting for their temporary file to be collected */
+    private val pending = ConcurrentHashMap.newKeySet[Entry]()
 
     private val TempDirectoryPrefix = "playtemp"
     private val playTempFolder: Path = {
       val tmpFolder = JFiles.createTempDirectory(TempDirectoryPrefix)
       temporaryFileReaper.updateTempFolder(tmpFolder)
+      temporaryFileReaper.updateIndex(index)
       tmpFolder
     }
 
+    private val shards: IndexedSeq[Path] =
+      (0 until math.max(config.shards, 1)).map(i => JFiles.createDirectories(playTempFolder.resolve(i.toString)))
+    private val nextShard = new AtomicInteger()
+
+    (0 until config.poolSize).foreach { _ =>
+      pool.add(JFiles.createTempFile(shard(), "pooled", ".tmp"))
+      pooled.incrementAndGet()
+    }
+
+    private def shard(): Path = shards(math.abs(nextShard.getAndIncrement() % shards.size))
+
     override def create(prefix: String, suffix: String): TemporaryFile = {
-      JFiles.createDirectories(playTempFolder)
-      val tempFile = JFiles.createTempFile(playTempFolder, prefix, suffix)
+      val tempFile = pool.poll() match {
+        case null =>
+          val folder = shard()
+          JFiles.createDirectories(folder)
+          JFiles.createTempFile(folder, prefix, suffix)
+        case pooledFile =>
+          pooled.decrementAndGet()
+          pooledFile
+      }
       createReference(new DefaultTemporaryFile(tempFile, this))
     }
 
@@ -282,22 +416,93 @@ object Files {
       createReference(new DefaultTemporaryFile(path, this))
     }
 
-    private def createReference(tempFile: TemporaryFile) = {
-      val path = tempFile.path
-      val reference = new FinalizablePhantomReference[TemporaryFile](tempFile, frq) {
-        override def finalizeReferent(): Unit = {
-          references.remove(this)
-          deletePath(path)
-        }
+    private def createReference(tempFile: DefaultTemporaryFile) = {
+      val entry = new Entry(tempFile.path, Instant.now(), nextSequence.getAndIncrement())
+      tempFile.entry = entry
+      entry.reference = new FinalizablePhantomReference[TemporaryFile](tempFile, frq) {
+        override def finalizeReferent(): Unit =
+          if (pending.remove(entry)) pool.add(entry.path) else release(entry, reuse = false)
+      }
+      creationOrder.put(entry.sequence, entry)
+      Option(entries.put(entry.path, entry)).foreach { replaced =>
+        creationOrder.remove(replaced.sequence)
+        totalSize.addAndGet(-replaced.size.get)
       }
-      references.add(reference)
       tempFile
     }
 
-    override def delete(tempFile: TemporaryFile): Try[Boolean] = {
-      deletePath(tempFile.path)
+    /**
+      * Deletes the file of the given temporary file. Its entry is that of the temporary file itself rather than the
+      * one of its path, as a pooled path may since belong to another temporary file.
+      */
+    override def delete(tempFile: TemporaryFile): Try[Boolean] = entryOf(tempFile) match {
+      case null => deletePath(tempFile.path)
+      case entry => release(entry, reuse = true)
+    }
+
+    private def entryOf(tempFile: TemporaryFile): Entry = tempFile match {
+      case file: DefaultTemporaryFile if file.temporaryFileCreator eq this => file.entry
+      case _ => null
+    }
+
+    override def sink(file: TemporaryFile): Sink[ByteString, Future[IOResult]] = {
+      val entry = entryOf(file)
+      Flow[ByteString]
+        .map { bytes =>
+          if (totalSize.addAndGet(bytes.size) > config.maxTotalSize) {
+            totalSize.addAndGet(-bytes.size)
+            throw new TemporaryFileQuotaExceededException(s"Temporary files exceed ${config.maxTotalSize} bytes")
+          }
+          if (entry != null) entry.size.addAndGet(bytes.size)
+          bytes
+        }
+        .toMat(FileIO.toPath(file.path))(Keep.right)
     }
 
+    override def requestScope(): TemporaryFileScope = new TemporaryFileScope(this, config.maxSizePerRequest)
+
+    /**
+      * Deletes the file of a live entry, or truncates it and keeps it for the pool if it is one of ours and the pool
+      * is not full. The path only goes back to the pool once the temporary file is garbage collected.
+      */
+    private def release(entry: Entry, reuse: Boolean): Try[Boolean] = {
+      if (entries.remove(entry.path, entry)) {
+        creationOrder.remove(entry.sequence)
+        totalSize.addAndGet(-entry.size.get)
+        if (reuse && isPoolable(entry.path) && reserveInPool()) {
+          val truncated = Try(FileChannel.open(entry.path, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING).close())
+          if (truncated.isSuccess) {
+            pending.add(entry)
+            Success(true)
+          } else {
+            pooled.decrementAndGet()
+            entry.reference.clear()
+            deletePath(entry.path)
+          }
+        } else {
+          entry.reference.clear()
+          deletePath(entry.path)
+        }
+      } else if (pending.contains(entry)) {
+        // Already deleted, and waiting to be reused
+        Success(false)
+      } else {
+        deletePath(entry.path)
+      }
+    }
+
+    private def reserveInPool(): Boolean =
+      pooled.incrementAndGet() <= config.poolSize || {
+        pooled.decrementAndGet()
+        false
+      }
+
+    /** Files created in the shards, and not moved elsewhere */
+    private def isPoolable(path: Path): Boolean =
+      config.poolSize > 0 && path.getParent != null && path.getParent.getParent == playTempFolder &&
+        JFiles.isRegularFile(path)
+
     private def deletePath(path: Path): Try[Boolean] = {
       logger.debug(s"deletePath: deleting = $path")
       Try(JFiles.deleteIfExists(path)).recoverWith {
@@ -307,6 +512,28 @@ object Files {
       }
     }
 
+    private object index extends TemporaryFileIndex {
+      override def reap(olderThan: Instant): Seq[Path] = {
+        val reaped = Seq.newBuilder[Path]
+        // Iterates once over the entries, the ones still written to being left for the next run
+        val iterator = creationOrder.values.iterator
+        var done = false
+        while (!done && iterator.hasNext) {
+          val entry = iterator.next()
+          if (!entry.created.isBefore(olderThan)) {
+            done = true
+          } else if (entries.get(entry.path) eq entry) {
+            val lastModified = Try(JFiles.getLastModifiedTime(entry.path).toInstant).getOrElse(entry.created)
+            if (lastModified.isBefore(olderThan)) {
+              release(entry, reuse = false)
+              reaped += entry.path
+            }
+          }
+        }
+        reaped.result()
+      }
+    }
+
     /**
       * A temporary file hold a reference to a real path, and will delete
       * it when the reference is garbage collected.
@@ -315,6 +542,8 @@ object Files {
                                                                      val path: Path,
                                                                      val temporaryFileCreator: TemporaryFileCreator
                                                                    ) extends TemporaryFile {
+      @volatile private[DefaultTemporaryFileCreator] var entry: Entry = _
+
       def file: File = path.toFile
     }
 
@@ -342,8 +571,48 @@ object Files {
     }
   }
 
+  /**
+    * Configuration for the DefaultTemporaryFileCreator.
+    *
+    * @param shards            the number of subfolders the temporary files are spread over.  Default 16.
+    * @param poolSize          the number of deleted files kept to be reused.  Default 16.
+    * @param maxTotalSize      the maximum number of bytes written to all live temporary files.  Default unlimited.
+    * @param maxSizePerRequest the maximum number of bytes written to the temporary files of a request.  Default unlimited.
+    */
+  case class TemporaryFileCreatorConfiguration(
+                                                shards: Int = 16,
+                                                poolSize: Int = 16,
+                                                maxTotalSize: Long = Long.MaxValue,
+                                                maxSizePerRequest: Long = Long.MaxValue
+                                              )
+
+  object TemporaryFileCreatorConfiguration {
+    def fromConfiguration(config: Configuration): TemporaryFileCreatorConfiguration = {
+      def size(key: String): Long =
+        config.getOptional[ConfigMemorySize](key).fold(Long.MaxValue)(_.toBytes)
+
+      TemporaryFileCreatorConfiguration(
+        shards = config.get[Int]("play.temporaryFile.shards"),
+        poolSize = config.get[Int]("play.temporaryFile.poolSize"),
+        maxTotalSize = size("play.temporaryFile.maxTotalSize"),
+        maxSizePerRequest = size("play.temporaryFile.maxSizePerRequest")
+      )
+    }
+  }
+
+  @Singleton
+  class TemporaryFileCreatorConfigurationProvider @Inject()(configuration: Configuration)
+    extends Provider[TemporaryFileCreatorConfiguration] {
+    lazy val get = TemporaryFileCreatorConfiguration.fromConfiguration(configuration)
+  }
+
   trait TemporaryFileReaper {
     def updateTempFolder(folder: Path): Unit
+
+    /**
+      * Gives the index of the live temporary files, reaped instead of the listing of the temporary folder.
+      */
+    def updateIndex(index: TemporaryFileIndex): Unit = ()
   }
 
   @Singleton
@@ -354,6 +623,7 @@ object Files {
     private val blockingDispatcherName = "play.akka.blockingIoDispatcher"
     private val blockingExecutionContext = actorSystem.dispatchers.lookup(blockingDispatcherName)
     private var playTempFolder: Option[Path] = None
+    @volatile private var index: Option[TemporaryFileIndex] = None
     private var cancellable: Option[Cancellable] = None
 
     // Use an overridable clock here so we can swap it out for testing.
@@ -366,36 +636,48 @@ object Files {
       playTempFolder = Option(folder)
     }
 
+    override def updateIndex(index: TemporaryFileIndex): Unit = {
+      this.index = Option(index)
+    }
+
     def secondsAgo: Instant = clock.instant().minusSeconds(config.olderThan.toSeconds)
 
     def reap(): Future[Seq[Path]] = {
       logger.debug(s"reap: reaping old files from $playTempFolder")
       Future {
-        playTempFolder
-          .map { f =>
-            import scala.compat.java8.StreamConverters._
-
-            val directoryStream = JFiles.list(f)
-
-            try {
-              val reaped = directoryStream
-                .filter(new Predicate[Path]() {
-                  override def test(p: Path): Boolean = {
-                    val lastModifiedTime = JFiles.getLastModifiedTime(p).toInstant
-                    lastModifiedTime.isBefore(secondsAgo)
-                  }
-                })
-                .toScala[List]
-
-              reaped.foreach(delete)
-              reaped
-            } finally {
-              directoryStream.close()
-            }
+        index match {
+          // Only visits the files old enough, in creation order
+          case Some(live) => live.reap(secondsAgo)
+          case None => reapFolder()
+        }
+      }(blockingExecutionContext)
+    }
 
+    private def reapFolder(): Seq[Path] = {
+      playTempFolder
+        .map { f =>
+          import scala.compat.java8.StreamConverters._
+
+          val directoryStream = JFiles.list(f)
+
+          try {
+            val reaped = directoryStream
+              .filter(new Predicate[Path]() {
+                override def test(p: Path): Boolean = {
+                  val lastModifiedTime = JFiles.getLastModifiedTime(p).toInstant
+                  lastModifiedTime.isBefore(secondsAgo)
+                }
+              })
+              .toScala[List]
+
+            reaped.foreach(delete)
+            reaped
+          } finally {
+            directoryStream.close()
           }
-          .getOrElse(Seq.empty)
-      }(blockingExecutionContext)
+
+        }
+        .getOrElse(Seq.empty)
     }
 
     def delete(path: Path): Unit = {
@@ -4,15 +4,19 @@
 
 package server.libs;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator.Feature;
 import com.fasterxml.jackson.databind.*;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 
 import java.io.IOException;
 
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
 /**
  * Helper functions to handle JsonNode values.
  */
@@ -20,8 +24,25 @@ public class Json {
     private static final ObjectMapper defaultObjectMapper = newDefaultMapper();
     private static volatile ObjectMapper objectMapper = null;
 
+    private static final ObjectMapper cborMapper = newDefaultMapper(new CBORFactory());
+
+    private static final ObjectMapper msgpackMapper = newDefaultMapper(new MessagePackFactory());
+
     public static ObjectMapper newDefaultMapper() {
-        ObjectMapper mapper = new ObjectMapper();
+        return configure(new ObjectMapper());
+    }
+
+    /**
+     * Creates a mapper configured like the default one, reading and writing the data format of the given factory.
+     *
+     * @param factory the factory of the data format, eg a CBORFactory for CBOR.
+     * @return a new ObjectMapper.
+     */
+    public static ObjectMapper newDefaultMapper(JsonFactory factory) {
+        return configure(new ObjectMapper(factory));
+    }
+
+    private static ObjectMapper configure(ObjectMapper mapper) {
         mapper.registerModule(new Jdk8Module());
         mapper.registerModule(new JavaTimeModule());
         mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
@@ -43,6 +64,24 @@ public class Json {
         }
     }
 
+    /**
+     * Gets the ObjectMapper used to serialize and deserialize objects to and from CBOR.
+     *
+     * @return the CBOR ObjectMapper
+     */
+    public static ObjectMapper cborMapper() {
+        return cborMapper;
+    }
+
+    /**
+     * Gets the ObjectMapper used to serialize and deserialize objects to and from MessagePack.
+     *
+     * @return the MessagePack ObjectMapper
+     */
+    public static ObjectMapper msgpackMapper() {
+        return msgpackMapper;
+    }
+
     private static String generateJson(Object o, boolean prettyPrint, boolean escapeNonASCII) {
         try {
             ObjectWriter writer = mapper().writer();
@@ -3,11 +3,10 @@
 package server.libs.crypto
 
 import java.nio.charset.StandardCharsets
-import java.security.{MessageDigest, SecureRandom}
+import java.security.MessageDigest
 import java.time.Clock
 
 import javax.inject.{Inject, Provider, Singleton}
-import server.libs.Codecs
 
 
 /**
@@ -71,13 +70,6 @@ trait CSRFTokenSigner {
   */
 class DefaultCSRFTokenSigner @Inject()(signer: CookieSigner, clock: Clock) extends CSRFTokenSigner {
 
-  // If you're running on an older version of Windows, you may be using
-  // SHA1PRNG.  So immediately calling nextBytes with a seed length
-  // of 440 bits (NIST SP800-90A) will do a more than decent
-  // self-seeding for a SHA-1 based PRNG.
-  private val random = new SecureRandom()
-  random.nextBytes(new Array[Byte](55))
-
   /**
     * Sign a token.  This produces a new token, that has this token signed with a nonce.
     *
@@ -101,7 +93,7 @@ class DefaultCSRFTokenSigner @Inject()(signer: CookieSigner, clock: Clock) exten
     */
   def extractSignedToken(token: String): Option[String] = {
     token.split("-", 3) match {
-      case Array(signature, nonce, raw) if isEqual(signature, signer.sign(nonce + "-" + raw)) => Some(raw)
+      case Array(signature, nonce, raw) if signer.verify(nonce + "-" + raw, signature) => Some(raw)
       case _ => None
     }
   }
@@ -109,11 +101,7 @@ class DefaultCSRFTokenSigner @Inject()(signer: CookieSigner, clock: Clock) exten
   /**
     * Generate a cryptographically secure token
     */
-  def generateToken: String = {
-    val bytes = new Array[Byte](12)
-    random.nextBytes(bytes)
-    Codecs.toHexString(bytes)
-  }
+  def generateToken: String = SecureRandomPool.shared.nextHex(12)
 
   /**
     * Generate a signed token
@@ -6,6 +6,7 @@ package server.libs.crypto
 
 
 import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
 
 import javax.crypto.Mac
 import javax.crypto.spec.SecretKeySpec
@@ -42,6 +43,16 @@ trait CookieSigner {
     * @return A hexadecimal encoded signature.
     */
   def sign(message: String): String
+
+  /**
+    * Verifies the signature of the given String, in constant time for signatures of the expected length.
+    *
+    * @param message   The signed message.
+    * @param signature The hexadecimal encoded signature.
+    * @return Whether the signature is the one of the message.
+    */
+  def verify(message: String, signature: String): Boolean =
+    MessageDigest.isEqual(signature.getBytes(StandardCharsets.US_ASCII), sign(message).getBytes(StandardCharsets.US_ASCII))
 }
 
 @Singleton
@@ -50,14 +61,37 @@ class CookieSignerProvider @Inject()(secretConfiguration: SecretConfiguration) e
 }
 
 /**
-  * Uses an HMAC-SHA1 for signing cookies.
+  * Uses an HMAC for signing cookies, HMAC-SHA1 unless `play.http.secret.algorithm` says otherwise.
+  *
+  * The keys are derived from the secrets once, and each thread keeps initialized `Mac` instances, cloned from
+  * prototypes, rather than looking up the provider and initializing a new one for every signature. Signatures are
+  * verified against the application secret, then against the previous secrets, so that cookies signed before the
+  * secret was rotated stay valid.
   */
 class DefaultCookieSigner @Inject()(secretConfiguration: SecretConfiguration) extends CookieSigner {
 
-  private lazy val HmacSHA1 = "HmacSHA1"
+  private val algorithm = secretConfiguration.algorithm
+
+  private def newMac(): Mac = secretConfiguration.provider.fold(Mac.getInstance(algorithm))(p => Mac.getInstance(algorithm, p))
+
+  /**
+    * Initialized `Mac` instances of the application secret, then of the previous secrets, per thread.
+    */
+  private lazy val macs: Seq[ThreadLocal[Mac]] = (secretConfiguration.secret +: secretConfiguration.previous).map { secret =>
+    val prototype = newMac()
+    prototype.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), algorithm))
+    ThreadLocal.withInitial[Mac](() =>
+      try prototype.clone().asInstanceOf[Mac]
+      catch {
+        case _: CloneNotSupportedException =>
+          val mac = newMac()
+          mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), algorithm))
+          mac
+      })
+  }
 
   /**
-    * Signs the given String with HMAC-SHA1 using the given key.
+    * Signs the given String with the HMAC using the given key.
     *
     * By default this uses the platform default JSSE provider.  This can be overridden by defining
     * `play.http.secret.provider` in `application.conf`.
@@ -67,13 +101,13 @@ class DefaultCookieSigner @Inject()(secretConfiguration: SecretConfiguration) ex
     * @return A hexadecimal encoded signature.
     */
   def sign(message: String, key: Array[Byte]): String = {
-    val mac = secretConfiguration.provider.fold(Mac.getInstance(HmacSHA1))(p => Mac.getInstance(HmacSHA1, p))
-    mac.init(new SecretKeySpec(key, HmacSHA1))
+    val mac = newMac()
+    mac.init(new SecretKeySpec(key, algorithm))
     Codecs.toHexString(mac.doFinal(message.getBytes(StandardCharsets.UTF_8)))
   }
 
   /**
-    * Signs the given String with HMAC-SHA1 using the application’s secret key.
+    * Signs the given String with the HMAC using the application’s secret key.
     *
     * By default this uses the platform default JSSE provider.  This can be overridden by defining
     * `play.http.secret.provider` in `application.conf`.
@@ -81,8 +115,29 @@ class DefaultCookieSigner @Inject()(secretConfiguration: SecretConfiguration) ex
     * @param message The message to sign.
     * @return A hexadecimal encoded signature.
     */
-  def sign(message: String): String = {
-    sign(message, secretConfiguration.secret.getBytes(StandardCharsets.UTF_8))
+  def sign(message: String): String = Codecs.toHexString(mac(macs.head, message))
+
+  /**
+    * Verifies the signature of the given String with the application’s secret key, then with the previous ones.
+    *
+    * The signature is decoded and compared byte by byte, in constant time for signatures of the expected length.
+    */
+  override def verify(message: String, signature: String): Boolean = {
+    val expected = DefaultCookieSigner.fromHex(signature)
+    expected != null && macs.exists(m => MessageDigest.isEqual(expected, mac(m, message)))
   }
 
+  private def mac(mac: ThreadLocal[Mac], message: String): Array[Byte] =
+    mac.get.doFinal(message.getBytes(StandardCharsets.UTF_8))
+}
+
+private object DefaultCookieSigner {
+
+  /**
+    * The bytes of a hexadecimal string, null if it isn't one.
+    */
+  def fromHex(hex: String): Array[Byte] = {
+    val bytes = new Array[Byte](hex.length / 2)
+    if (Codecs.decodeHex(hex, bytes, 0)) bytes else null
+  }
 }
@@ -0,0 +1,139 @@
+package server.libs.crypto
+
+import java.security.{NoSuchAlgorithmException, SecureRandom}
+
+import server.libs.Codecs
+
+/**
+  * Random bytes for tokens, nonces and ids, drawn from a generator per thread.
+  *
+  * A shared `SecureRandom` synchronizes every call, and may block on entropy, so each thread has its own
+  * deterministic random bit generator, seeded from the shared `SecureRandom` and reseeded from it once it generated
+  * `reseedBytes` bytes or after `reseedInterval` milliseconds. Each thread also draws bytes from its generator a buffer
+  * at a time, and encodes ids straight from the buffer.
+  *
+  * @param reseedBytes    The number of bytes a generator generates before it is reseeded.
+  * @param reseedInterval The most milliseconds a generator is used before it is reseeded.
+  */
+final class SecureRandomPool(reseedBytes: Long = 1L << 20, reseedInterval: Long = 10L * 60 * 1000) {
+
+  import SecureRandomPool._
+
+  private val seeds = new SecureRandom()
+
+  private final class Generator {
+    private val random = newGenerator()
+    private val buffer = new Array[Byte](BufferSize)
+    private var position = BufferSize
+    private var generated = 0L
+    private var seeded = 0L
+
+    reseed()
+
+    private def reseed(): Unit = {
+      // Drawn with nextBytes, which unlike generateSeed never blocks. The new seed supplements the state of the
+      // generator, rather than replacing it
+      val seed = new Array[Byte](SeedSize)
+      seeds.nextBytes(seed)
+      random.setSeed(seed)
+      generated = 0
+      seeded = System.currentTimeMillis
+    }
+
+    private def refill(): Unit = {
+      if (generated >= reseedBytes || System.currentTimeMillis - seeded >= reseedInterval) reseed()
+      random.nextBytes(buffer)
+      generated += BufferSize
+      position = 0
+    }
+
+    /**
+      * The offset in the buffer of the given number of new random bytes, which may be at most the buffer size.
+      */
+    def take(length: Int): Int = {
+      if (BufferSize - position < length) refill()
+      val offset = position
+      position += length
+      offset
+    }
+
+    def nextBytes(bytes: Array[Byte]): Unit = {
+      var filled = 0
+      while (filled < bytes.length) {
+        val length = math.min(BufferSize, bytes.length - filled)
+        val offset = take(length)
+        System.arraycopy(buffer, offset, bytes, filled, length)
+        // Bytes handed out are never kept
+        java.util.Arrays.fill(buffer, offset, offset + length, 0: Byte)
+        filled += length
+      }
+    }
+
+    def nextId(length: Int): String = {
+      val offset = take(length)
+      val chars = new Array[Char](Codecs.base64UrlLength(length))
+      Codecs.encodeBase64Url(buffer, offset, length, chars, 0)
+      java.util.Arrays.fill(buffer, offset, offset + length, 0: Byte)
+      new String(chars)
+    }
+
+    def nextHex(length: Int): String = {
+      val offset = take(length)
+      val chars = new Array[Char](length * 2)
+      Codecs.encodeHex(buffer, offset, length, chars, 0)
+      java.util.Arrays.fill(buffer, offset, offset + length, 0: Byte)
+      new String(chars)
+    }
+  }
+
+  private val generators = new ThreadLocal[Generator] {
+    override def initialValue(): Generator = new Generator
+  }
+
+  /**
+    * Fill the given array with random bytes.
+    */
+  def nextBytes(bytes: Array[Byte]): Unit = generators.get.nextBytes(bytes)
+
+  /**
+    * A random id of the given number of bytes, encoded as unpadded URL safe base64.
+    */
+  def nextId(bytes: Int): String = {
+    require(bytes > 0 && bytes <= MaxIdBytes, s"Ids are 1 to $MaxIdBytes bytes")
+    generators.get.nextId(bytes)
+  }
+
+  /**
+    * A random id of the given number of bytes, hex encoded.
+    */
+  def nextHex(bytes: Int): String = {
+    require(bytes > 0 && bytes <= MaxIdBytes, s"Ids are 1 to $MaxIdBytes bytes")
+    generators.get.nextHex(bytes)
+  }
+}
+
+object SecureRandomPool {
+
+  /**
+    * The pool shared by the session ids, CSRF tokens and JWT ids.
+    */
+  lazy val shared: SecureRandomPool = new SecureRandomPool()
+
+  private val BufferSize = 512
+  private val MaxIdBytes = 64
+
+  /** 440 bits, the seed length NIST SP800-90A requires of SHA-1 and SHA-256 based generators */
+  private val SeedSize = 55
+
+  /** DRBG is the NIST SP800-90A generator of Java 9 on, SHA1PRNG the generator of older JVMs */
+  private val Algorithms = Seq("DRBG", "SHA1PRNG")
+
+  private def newGenerator(): SecureRandom = Algorithms.iterator.map { algorithm =>
+    try Some(SecureRandom.getInstance(algorithm))
+    catch {
+      case _: NoSuchAlgorithmException => None
+    }
+  }.collectFirst {
+    case Some(random) => random
+  }.getOrElse(new SecureRandom())
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2009-2019 Lightbend Inc. <https://www.lightbend.com>
+ */
+
+package server.libs.streams
+
+import java.util.Locale
+
+import akka.NotUsed
+import akka.stream.scaladsl.{Compression, Flow}
+import akka.util.ByteString
+
+/**
+ * Flows for decompressing request bodies, the request side counterpart of [[GzipFlow]].
+ *
+ * Decompression is incremental: each input chunk is inflated as it arrives and no output chunk is ever larger than
+ * `maxBytesPerChunk`, so the memory used does not depend on the size of the body. Callers are still expected to limit
+ * the total decompressed size, eg with a max length body parser, to protect against zip bombs.
+ */
+object InflateFlow {
+
+  /**
+   * The default upper bound of a single decompressed chunk.
+   */
+  val DefaultMaxBytesPerChunk: Int = 64 * 1024
+
+  /**
+   * Create a Flow that decompresses a gzip stream.
+   */
+  def gunzip(maxBytesPerChunk: Int = DefaultMaxBytesPerChunk): Flow[ByteString, ByteString, NotUsed] =
+    Compression.gunzip(maxBytesPerChunk)
+
+  /**
+   * Create a Flow that decompresses a deflate (zlib) stream.
+   */
+  def inflate(maxBytesPerChunk: Int = DefaultMaxBytesPerChunk): Flow[ByteString, ByteString, NotUsed] =
+    Compression.inflate(maxBytesPerChunk)
+
+  /**
+   * Create a Flow that undoes the given Content-Encoding header value.
+   *
+   * Codings are listed in the order they were applied, so they are undone in reverse order. `identity` is ignored.
+   *
+   * @return The decompression flow, or None if one of the codings is not supported.
+   */
+  def forContentEncoding(
+      contentEncoding: String,
+      maxBytesPerChunk: Int = DefaultMaxBytesPerChunk
+  ): Option[Flow[ByteString, ByteString, NotUsed]] = {
+    val codings = contentEncoding
+      .split(',')
+      .iterator
+      .map(_.trim.toLowerCase(Locale.ENGLISH))
+      .filter(coding => coding.nonEmpty && coding != "identity")
+      .toList
+      .reverse
+
+    codings.foldLeft(Option(Flow[ByteString])) { (flow, coding) =>
+      val decoder = coding match {
+        case "gzip" | "x-gzip" => Some(gunzip(maxBytesPerChunk))
+        case "deflate"         => Some(inflate(maxBytesPerChunk))
+        case _                 => None
+      }
+      for (f <- flow; d <- decoder) yield f.via(d)
+    }
+  }
+}
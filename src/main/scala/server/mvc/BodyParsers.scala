@@ -9,21 +9,26 @@ import java.nio.charset.StandardCharsets._
 import java.nio.charset._
 import java.nio.file.Files
 import java.util.Locale
+import java.util.zip.{DataFormatException, ZipException}
 
 import akka.actor.ActorSystem
 import akka.stream._
 import akka.stream.scaladsl.{Flow, Sink, StreamConverters}
 import akka.stream.stage._
 import akka.util.ByteString
+import com.google.protobuf.{MessageLite, Parser}
 import javax.inject.Inject
 import play.api.libs.json.{JsError, JsValue, Json, Reads}
 import server.core.parsers.{FormUrlEncodedParser, Multipart}
 import server.data.Form
+import server.http.HeaderNames.{CONTENT_ENCODING, CONTENT_LENGTH, TRANSFER_ENCODING}
 import server.http.Status._
-import server.http.{DefaultHttpErrorHandler, HttpConfiguration, HttpErrorHandler, ParserConfiguration}
-import server.libs.Files.{SingletonTemporaryFileCreator, TemporaryFile, TemporaryFileCreator}
-import server.libs.streams.Accumulator
+import server.http.{DefaultHttpErrorHandler, HttpConfiguration, HttpErrorHandler, MimeTypes, ParserConfiguration}
+import server.libs.Files.{SingletonTemporaryFileCreator, TemporaryFile, TemporaryFileCreator, TemporaryFileQuotaExceededException}
+import server.libs.BinaryJson
+import server.libs.streams.{Accumulator, InflateFlow}
 import server.mvc.MultipartFormData.{BadPart, FilePart}
+import server.mvc.request.RequestAttrKey
 import server.utils.PlayIO
 import server.{Application, Logger}
 
@@ -69,6 +74,32 @@ sealed trait AnyContent {
     case _ => None
   }
 
+  /**
+    * application/cbor
+    */
+  def asCbor: Option[JsValue] = this match {
+    case AnyContentAsCbor(cbor) => Some(cbor)
+    case _ => None
+  }
+
+  /**
+    * application/msgpack or application/x-msgpack
+    */
+  def asMsgPack: Option[JsValue] = this match {
+    case AnyContentAsMsgPack(msgpack) => Some(msgpack)
+    case _ => None
+  }
+
+  /**
+    * application/x-protobuf or application/protobuf, parsed as a message of the given parser.
+    *
+    * @throws com.google.protobuf.InvalidProtocolBufferException if the body is not a valid message.
+    */
+  def asProtobuf[M <: MessageLite](parser: Parser[M]): Option[M] = this match {
+    case AnyContentAsProtobuf(bytes) => Some(parser.parseFrom(bytes.asByteBuffer))
+    case _ => None
+  }
+
   /**
     * multipart/form-data
     */
@@ -150,6 +181,21 @@ case class AnyContentAsXml(xml: NodeSeq) extends AnyContent
   */
 case class AnyContentAsJson(json: JsValue) extends AnyContent
 
+/**
+  * AnyContent - CBOR body
+  */
+case class AnyContentAsCbor(cbor: JsValue) extends AnyContent
+
+/**
+  * AnyContent - MessagePack body
+  */
+case class AnyContentAsMsgPack(msgpack: JsValue) extends AnyContent
+
+/**
+  * AnyContent - Protocol Buffers body, kept as bytes since the message type is only known to the action.
+  */
+case class AnyContentAsProtobuf(bytes: ByteString) extends AnyContent
+
 /**
   * AnyContent - Multipart form data body
   */
@@ -415,21 +461,25 @@ trait BodyParserUtils {
   ): BodyParser[Either[MaxSizeExceeded, A]] =
     BodyParser(s"maxLength=$maxLength, wrapping=$parser") { request =>
       import server.core.Execution.Implicits.trampoline
-      val takeUpToFlow = Flow.fromGraph(new BodyParsers.TakeUpTo(maxLength))
-
-      // Apply the request
-      val parserSink = parser.apply(request).toSink
-
-      Accumulator(takeUpToFlow.toMat(parserSink) { (statusFuture, resultFuture) =>
-        statusFuture.flatMap {
-          case exceeded: MaxSizeExceeded => Future.successful(Right(Left(exceeded)))
-          case _ =>
-            resultFuture.map {
-              case Left(result) => Left(result)
-              case Right(a) => Right(Right(a))
-            }
-        }
-      })
+      if (BodyParsers.declaredLengthExceeds(request, maxLength)) {
+        Accumulator.done(Right(Left(MaxSizeExceeded(maxLength))))
+      } else {
+        val takeUpToFlow = Flow.fromGraph(new BodyParsers.TakeUpTo(maxLength))
+
+        // Apply the request
+        val parserSink = parser.apply(request).toSink
+
+        Accumulator(takeUpToFlow.toMat(parserSink) { (statusFuture, resultFuture) =>
+          statusFuture.flatMap {
+            case exceeded: MaxSizeExceeded => Future.successful(Right(Left(exceeded)))
+            case _ =>
+              resultFuture.map {
+                case Left(result) => Left(result)
+                case Right(a) => Right(Right(a))
+              }
+          }
+        })
+      }
     }
 }
 
@@ -470,6 +520,13 @@ trait PlayBodyParsers extends BodyParserUtils {
 
   private[server] def temporaryFileCreator: TemporaryFileCreator
 
+  /**
+    * The creator of the temporary files of the given request: its scope when the server provides one, so that the
+    * files count against the request quota and are deleted with the request.
+    */
+  private def temporaryFileCreatorFor(request: RequestHeader): TemporaryFileCreator =
+    request.attrs.get(RequestAttrKey.TemporaryFiles).getOrElse(temporaryFileCreator)
+
   /**
     * Unlimited size.
     */
@@ -637,10 +694,10 @@ trait PlayBodyParsers extends BodyParserUtils {
           .strict[ByteString, RawBuffer](
           { maybeStrictBytes =>
             Future.successful(
-              RawBuffer(memoryThreshold, temporaryFileCreator, maybeStrictBytes.getOrElse(ByteString.empty))
+              RawBuffer(memoryThreshold, temporaryFileCreatorFor(request), maybeStrictBytes.getOrElse(ByteString.empty))
             )
           }, {
-            val buffer = RawBuffer(memoryThreshold, temporaryFileCreator)
+            val buffer = RawBuffer(memoryThreshold, temporaryFileCreatorFor(request))
             val sink = Sink.fold[RawBuffer, ByteString](buffer) { (bf, bs) =>
               bf.push(bs); bf
             }
@@ -701,10 +758,17 @@ trait PlayBodyParsers extends BodyParserUtils {
     * @tparam A the type to read and validate from the body.
     * @param reader a Json reader for type A.
     */
-  def json[A](implicit reader: Reads[A]): BodyParser[A] =
-    BodyParser("json reader") { request =>
+  def json[A](implicit reader: Reads[A]): BodyParser[A] = validate("json reader", "Json", json)
+
+  /**
+    * Validate the JsValue produced by the given parser with a Json reader.
+    */
+  private def validate[A](name: String, format: String, parser: BodyParser[JsValue])(
+    implicit reader: Reads[A]
+  ): BodyParser[A] =
+    BodyParser(name) { request =>
       import server.core.Execution.Implicits.trampoline
-      json(request).mapFuture {
+      parser(request).mapFuture {
         case Left(simpleResult) =>
           Future.successful(Left(simpleResult))
         case Right(jsValue) =>
@@ -714,12 +778,129 @@ trait PlayBodyParsers extends BodyParserUtils {
               Future.successful(Right(a))
             }
             .recoverTotal { jsError =>
-              val msg = s"Json validation error ${JsError.toFlatForm(jsError)}"
+              val msg = s"$format validation error ${JsError.toFlatForm(jsError)}"
               createBadResult(msg)(request).map(Left.apply)
             }
       }
     }
 
+  // -- Binary parsers
+
+  /**
+    * Parse the body as CBOR without checking the Content-Type.
+    *
+    * @param maxLength Max length (in bytes) allowed or returns EntityTooLarge HTTP response.
+    */
+  def tolerantCbor(maxLength: Long): BodyParser[JsValue] =
+    tolerantBodyParser[JsValue]("cbor", maxLength, "Invalid CBOR") { (_, bytes) =>
+      BinaryJson.Cbor.parse(bytes)
+    }
+
+  /**
+    * Parse the body as CBOR without checking the Content-Type.
+    */
+  def tolerantCbor: BodyParser[JsValue] = tolerantCbor(DefaultMaxTextLength)
+
+  /**
+    * Parse the body as CBOR if the Content-Type is application/cbor.
+    *
+    * @param maxLength Max length (in bytes) allowed or returns EntityTooLarge HTTP response.
+    */
+  def cbor(maxLength: Long): BodyParser[JsValue] = when(
+    _.contentType.exists(_.equalsIgnoreCase(MimeTypes.CBOR)),
+    tolerantCbor(maxLength),
+    createBadResult("Expecting application/cbor body", UNSUPPORTED_MEDIA_TYPE)
+  )
+
+  /**
+    * Parse the body as CBOR if the Content-Type is application/cbor.
+    */
+  def cbor: BodyParser[JsValue] = cbor(DefaultMaxTextLength)
+
+  /**
+    * Parse the body as CBOR if the Content-Type is application/cbor, validating the result with the Json reader.
+    *
+    * @tparam A the type to read and validate from the body.
+    * @param reader a Json reader for type A.
+    */
+  def cbor[A](implicit reader: Reads[A]): BodyParser[A] = validate("cbor reader", "CBOR", cbor)
+
+  /**
+    * Parse the body as MessagePack without checking the Content-Type.
+    *
+    * @param maxLength Max length (in bytes) allowed or returns EntityTooLarge HTTP response.
+    */
+  def tolerantMsgPack(maxLength: Long): BodyParser[JsValue] =
+    tolerantBodyParser[JsValue]("msgpack", maxLength, "Invalid MessagePack") { (_, bytes) =>
+      BinaryJson.MsgPack.parse(bytes)
+    }
+
+  /**
+    * Parse the body as MessagePack without checking the Content-Type.
+    */
+  def tolerantMsgPack: BodyParser[JsValue] = tolerantMsgPack(DefaultMaxTextLength)
+
+  /**
+    * Parse the body as MessagePack if the Content-Type is application/msgpack or application/x-msgpack.
+    *
+    * @param maxLength Max length (in bytes) allowed or returns EntityTooLarge HTTP response.
+    */
+  def msgPack(maxLength: Long): BodyParser[JsValue] = when(
+    _.contentType.exists(m => m.equalsIgnoreCase(MimeTypes.MSGPACK) || m.equalsIgnoreCase("application/x-msgpack")),
+    tolerantMsgPack(maxLength),
+    createBadResult("Expecting application/msgpack or application/x-msgpack body", UNSUPPORTED_MEDIA_TYPE)
+  )
+
+  /**
+    * Parse the body as MessagePack if the Content-Type is application/msgpack or application/x-msgpack.
+    */
+  def msgPack: BodyParser[JsValue] = msgPack(DefaultMaxTextLength)
+
+  /**
+    * Parse the body as MessagePack if the Content-Type is application/msgpack or application/x-msgpack, validating
+    * the result with the Json reader.
+    *
+    * @tparam A the type to read and validate from the body.
+    * @param reader a Json reader for type A.
+    */
+  def msgPack[A](implicit reader: Reads[A]): BodyParser[A] = validate("msgpack reader", "MessagePack", msgPack)
+
+  /**
+    * Parse the body as a Protocol Buffers message without checking the Content-Type.
+    *
+    * @param parser    The parser of the expected message type, eg `MyMessage.parser()`.
+    * @param maxLength Max length (in bytes) allowed or returns EntityTooLarge HTTP response.
+    */
+  def tolerantProtobuf[M <: MessageLite](parser: Parser[M], maxLength: Long): BodyParser[M] =
+    tolerantBodyParser[M]("protobuf", maxLength, "Invalid Protobuf") { (_, bytes) =>
+      parser.parseFrom(bytes.asByteBuffer)
+    }
+
+  /**
+    * Parse the body as a Protocol Buffers message without checking the Content-Type.
+    */
+  def tolerantProtobuf[M <: MessageLite](parser: Parser[M]): BodyParser[M] =
+    tolerantProtobuf(parser, DefaultMaxTextLength)
+
+  /**
+    * Parse the body as a Protocol Buffers message if the Content-Type is application/x-protobuf or
+    * application/protobuf.
+    *
+    * @param parser    The parser of the expected message type, eg `MyMessage.parser()`.
+    * @param maxLength Max length (in bytes) allowed or returns EntityTooLarge HTTP response.
+    */
+  def protobuf[M <: MessageLite](parser: Parser[M], maxLength: Long): BodyParser[M] = when(
+    _.contentType.exists(m => m.equalsIgnoreCase(MimeTypes.PROTOBUF) || m.equalsIgnoreCase("application/protobuf")),
+    tolerantProtobuf(parser, maxLength),
+    createBadResult("Expecting application/x-protobuf or application/protobuf body", UNSUPPORTED_MEDIA_TYPE)
+  )
+
+  /**
+    * Parse the body as a Protocol Buffers message if the Content-Type is application/x-protobuf or
+    * application/protobuf.
+    */
+  def protobuf[M <: MessageLite](parser: Parser[M]): BodyParser[M] = protobuf(parser, DefaultMaxTextLength)
+
   // -- Form parser
 
   /**
@@ -831,8 +1012,12 @@ trait PlayBodyParsers extends BodyParserUtils {
     * Store the body content into a temporary file.
     */
   def temporaryFile: BodyParser[TemporaryFile] = BodyParser("temporaryFile") { request =>
-    val tempFile = temporaryFileCreator.create("requestBody", "asTemporaryFile")
-    file(tempFile)(request).map(_ => Right(tempFile))(server.core.Execution.Implicits.trampoline)
+    import server.core.Execution.Implicits.trampoline
+    val creator = temporaryFileCreatorFor(request)
+    val tempFile = creator.create("requestBody", "asTemporaryFile")
+    Accumulator(creator.sink(tempFile))
+      .mapFuture(result => Future.fromTry(result.status).map(_ => Right(tempFile)))
+      .recoverWith(temporaryFileQuotaExceeded(request))
   }
 
   // -- FormUrlEncoded
@@ -846,9 +1031,8 @@ trait PlayBodyParsers extends BodyParserUtils {
     tolerantBodyParser("formUrlEncoded", maxLength, "Error parsing application/x-www-form-urlencoded") {
       (request, bytes) =>
 
-        val charset = request.charset.getOrElse("UTF-8")
-        val urlEncodedString = bytes.decodeString("UTF-8")
-        FormUrlEncodedParser.parse(urlEncodedString, charset)
+        val charset = request.charset.fold(UTF_8)(Charset.forName)
+        FormUrlEncodedParser.parse(bytes, charset, config.formUrlEncoded)
     }
 
   /**
@@ -930,13 +1114,27 @@ trait PlayBodyParsers extends BodyParserUtils {
         logger.trace("Parsing AnyContent as json")
         json(maxLengthOrDefault)(request).map(_.right.map(j => AnyContentAsJson(j)))
 
+      case Some(MimeTypes.CBOR) =>
+        logger.trace("Parsing AnyContent as cbor")
+        cbor(maxLengthOrDefault)(request).map(_.right.map(c => AnyContentAsCbor(c)))
+
+      case Some(MimeTypes.MSGPACK) | Some("application/x-msgpack") =>
+        logger.trace("Parsing AnyContent as msgpack")
+        msgPack(maxLengthOrDefault)(request).map(_.right.map(m => AnyContentAsMsgPack(m)))
+
+      case Some(MimeTypes.PROTOBUF) | Some("application/protobuf") =>
+        logger.trace("Parsing AnyContent as protobuf")
+        tolerantBodyParser[ByteString]("protobuf", maxLengthOrDefault, "Invalid Protobuf")((_, bytes) => bytes)
+          .apply(request)
+          .map(_.right.map(b => AnyContentAsProtobuf(b)))
+
       case Some("application/x-www-form-urlencoded") =>
         logger.trace("Parsing AnyContent as urlFormEncoded")
         formUrlEncoded(maxLengthOrDefault)(request).map(_.right.map(d => AnyContentAsFormUrlEncoded(d)))
 
       case Some("multipart/form-data") =>
         logger.trace("Parsing AnyContent as multipartFormData")
-        multipartFormData(Multipart.handleFilePartAsTemporaryFile(temporaryFileCreator), maxLengthOrDefaultLarge)
+        multipartFormData(Multipart.handleFilePartAsTemporaryFile(temporaryFileCreatorFor(request)), maxLengthOrDefaultLarge)
           .apply(request)
           .map(_.right.map(m => AnyContentAsMultipartFormData(m)))
 
@@ -951,8 +1149,7 @@ trait PlayBodyParsers extends BodyParserUtils {
   /**
     * Parse the content as multipart/form-data
     */
-  def multipartFormData: BodyParser[MultipartFormData[TemporaryFile]] =
-    multipartFormData(Multipart.handleFilePartAsTemporaryFile(temporaryFileCreator))
+  def multipartFormData: BodyParser[MultipartFormData[TemporaryFile]] = multipartFormData(DefaultMaxDiskLength)
 
   /**
     * Parse the content as multipart/form-data
@@ -960,7 +1157,9 @@ trait PlayBodyParsers extends BodyParserUtils {
     * @param maxLength Max length (in bytes) allowed or returns EntityTooLarge HTTP response.
     */
   def multipartFormData(maxLength: Long): BodyParser[MultipartFormData[TemporaryFile]] =
-    multipartFormData(Multipart.handleFilePartAsTemporaryFile(temporaryFileCreator), maxLength)
+    BodyParser("multipartFormData") { request =>
+      multipartFormData(Multipart.handleFilePartAsTemporaryFile(temporaryFileCreatorFor(request)), maxLength)(request)
+    }
 
   /**
     * Parse the content as multipart/form-data
@@ -975,12 +1174,90 @@ trait PlayBodyParsers extends BodyParserUtils {
                             maxLength: Long = DefaultMaxDiskLength
                           ): BodyParser[MultipartFormData[A]] = {
     BodyParser("multipartFormData") { request =>
-      val bodyAccumulator =
-        Multipart.multipartParser(DefaultMaxTextLength, filePartHandler, errorHandler).apply(request)
-      enforceMaxLength(request, maxLength, bodyAccumulator)
+      withContentDecoding(request) { decodedRequest =>
+        val bodyAccumulator =
+          Multipart.multipartParser(DefaultMaxTextLength, filePartHandler, errorHandler).apply(decodedRequest)
+        enforceMaxLength(decodedRequest, maxLength, bodyAccumulator)
+          .recoverWith(temporaryFileQuotaExceeded(decodedRequest))(server.core.Execution.Implicits.trampoline)
+      }
     }
   }
 
+  // -- Content-Encoding
+
+  /**
+    * Decompress the body according to the request Content-Encoding before handing it to the given parser.
+    *
+    * gzip and deflate are supported. The built-in buffering parsers (text, json, xml, form url encoded, multipart)
+    * already do this, this is for wrapping other parsers, eg `parse.decompressed(parse.raw)`.
+    *
+    * @param parser    The parser to feed the decompressed body to.
+    * @param maxLength Max length (in bytes) of the decompressed body allowed or returns EntityTooLarge HTTP response.
+    */
+  def decompressed[A](parser: BodyParser[A], maxLength: Long = DefaultMaxDiskLength): BodyParser[A] =
+    BodyParser(s"decompressed, maxLength=$maxLength, wrapping=$parser") { request =>
+      withContentDecoding(request) { decodedRequest =>
+        enforceMaxLength(decodedRequest, maxLength, parser(decodedRequest))
+      }
+    }
+
+  /**
+    * Run the accumulator created for the request behind a decompression stage if the request has a Content-Encoding.
+    *
+    * The accumulator is created with a request that no longer has the Content-Encoding and Content-Length headers, and
+    * is expected to enforce its own max length, which then applies to the decompressed bytes. Unsupported encodings are
+    * answered with 415 and corrupt compressed data with 400.
+    */
+  private[server] def withContentDecoding[A](request: RequestHeader)(
+    accumulator: RequestHeader => Accumulator[ByteString, Either[Result, A]]
+  ): Accumulator[ByteString, Either[Result, A]] = {
+    import server.core.Execution.Implicits.trampoline
+    request.headers.get(CONTENT_ENCODING) match {
+      case None => accumulator(request)
+      case Some(contentEncoding) =>
+        InflateFlow.forContentEncoding(contentEncoding) match {
+          case Some(decompress) =>
+            val decodedRequest = request.withHeaders(request.headers.remove(CONTENT_ENCODING, CONTENT_LENGTH))
+            accumulator(decodedRequest).through(decompress).recoverWith {
+              case e if isDecompressionError(e) =>
+                logger.debug("Error decompressing request body", e)
+                createBadResult("Error decoding " + contentEncoding + " body: " + e.getMessage)(request).map(Left(_))
+            }
+          case None =>
+            Accumulator.done(
+              createBadResult("Unsupported Content-Encoding " + contentEncoding, UNSUPPORTED_MEDIA_TYPE)(request)
+                .map(Left.apply)
+            )
+        }
+    }
+  }
+
+  // The decompression stages wrap the underlying zip errors in their own parsing exceptions
+  @scala.annotation.tailrec
+  private def isDecompressionError(e: Throwable): Boolean = e match {
+    case null => false
+    case _: ZipException | _: DataFormatException => true
+    case other => isDecompressionError(other.getCause)
+  }
+
+  // Answers 413 when writing the body to temporary files exceeded a quota
+  private def temporaryFileQuotaExceeded[A](
+                                             request: RequestHeader
+                                           ): PartialFunction[Throwable, Future[Either[Result, A]]] = {
+    case e if isTemporaryFileQuotaExceeded(e) =>
+      logger.debug("Request body exceeds the temporary file quota", e)
+      createBadResult("Request Entity Too Large", REQUEST_ENTITY_TOO_LARGE)(request)
+        .map(Left.apply)(server.core.Execution.Implicits.trampoline)
+  }
+
+  // The file sinks wrap the upstream error
+  @scala.annotation.tailrec
+  private def isTemporaryFileQuotaExceeded(e: Throwable): Boolean = e match {
+    case null => false
+    case _: TemporaryFileQuotaExceededException => true
+    case other => isTemporaryFileQuotaExceeded(other.getCause)
+  }
+
   protected def createBadResult(msg: String, statusCode: Int = BAD_REQUEST): RequestHeader => Future[Result] = {
     request =>
       errorHandler.onClientError(request, statusCode, msg)
@@ -988,25 +1265,33 @@ trait PlayBodyParsers extends BodyParserUtils {
 
   /**
     * Enforce the max length on the stream consumed by the given accumulator.
+    *
+    * A request whose Content-Length already exceeds the max length is rejected straight away, without reading any of
+    * its body.
     */
   private[server] def enforceMaxLength[A](
                                          request: RequestHeader,
                                          maxLength: Long,
                                          accumulator: Accumulator[ByteString, Either[Result, A]]
                                        ): Accumulator[ByteString, Either[Result, A]] = {
-    val takeUpToFlow = Flow.fromGraph(new BodyParsers.TakeUpTo(maxLength))
-    Accumulator(takeUpToFlow.toMat(accumulator.toSink) { (statusFuture, resultFuture) =>
+    if (BodyParsers.declaredLengthExceeds(request, maxLength)) {
       import server.core.Execution.Implicits.trampoline
-      val defaultCtx = materializer.executionContext
-      statusFuture.flatMap {
-        case MaxSizeExceeded(_) =>
-          val badResult = Future
-            .successful(())
-            .flatMap(_ => createBadResult("Request Entity Too Large", REQUEST_ENTITY_TOO_LARGE)(request))(defaultCtx)
-          badResult.map(Left(_))
-        case MaxSizeNotExceeded => resultFuture
-      }
-    })
+      Accumulator.done(createBadResult("Request Entity Too Large", REQUEST_ENTITY_TOO_LARGE)(request).map(Left.apply))
+    } else {
+      val takeUpToFlow = Flow.fromGraph(new BodyParsers.TakeUpTo(maxLength))
+      Accumulator(takeUpToFlow.toMat(accumulator.toSink) { (statusFuture, resultFuture) =>
+        import server.core.Execution.Implicits.trampoline
+        val defaultCtx = materializer.executionContext
+        statusFuture.flatMap {
+          case MaxSizeExceeded(_) =>
+            val badResult = Future
+              .successful(())
+              .flatMap(_ => createBadResult("Request Entity Too Large", REQUEST_ENTITY_TOO_LARGE)(request))(defaultCtx)
+            badResult.map(Left(_))
+          case MaxSizeNotExceeded => resultFuture
+        }
+      })
+    }
   }
 
   /**
@@ -1020,39 +1305,48 @@ trait PlayBodyParsers extends BodyParserUtils {
   protected def tolerantBodyParser[A](name: String, maxLength: Long, errorMessage: String)(
     parser: (RequestHeader, ByteString) => A
   ): BodyParser[A] =
-    BodyParser(name + ", maxLength=" + maxLength) { request =>
-      import server.core.Execution.Implicits.trampoline
+    BodyParser(name + ", maxLength=" + maxLength) { rawRequest =>
+      withContentDecoding(rawRequest)(request => tolerantBodyAccumulator(request, maxLength, errorMessage)(parser))
+    }
 
-      def parseBody(bytes: ByteString): Future[Either[Result, A]] = {
-        try {
-          Future.successful(Right(parser(request, bytes)))
-        } catch {
-          case NonFatal(e) =>
-            logger.debug(errorMessage, e)
-            createBadResult(errorMessage + ": " + e.getMessage)(request).map(Left(_))
-        }
+  /**
+    * The accumulator behind [[tolerantBodyParser]], buffering the (already decoded) body up to maxLength.
+    */
+  private def tolerantBodyAccumulator[A](request: RequestHeader, maxLength: Long, errorMessage: String)(
+    parser: (RequestHeader, ByteString) => A
+  ): Accumulator[ByteString, Either[Result, A]] = {
+    import server.core.Execution.Implicits.trampoline
+
+    def parseBody(bytes: ByteString): Future[Either[Result, A]] = {
+      try {
+        Future.successful(Right(parser(request, bytes)))
+      } catch {
+        case NonFatal(e) =>
+          logger.debug(errorMessage, e)
+          createBadResult(errorMessage + ": " + e.getMessage)(request).map(Left(_))
       }
-      import server.core.Execution.Implicits.trampoline
-      Accumulator.strict[ByteString, Either[Result, A]](
-        // If the body was strict
-        {
-          case Some(bytes) if bytes.size <= maxLength =>
-            parseBody(bytes)
-          case None =>
-            parseBody(ByteString.empty)
-          case _ =>
-            createBadResult("Request Entity Too Large", REQUEST_ENTITY_TOO_LARGE)(request).map(Left.apply)
-        },
-        // Otherwise, use an enforce max length accumulator on a folding sink
-        enforceMaxLength(
-          request,
-          maxLength,
-          Accumulator(
-            Sink.fold[ByteString, ByteString](ByteString.empty)((state, bs) => state ++ bs)
-          ).mapFuture(parseBody)
-        ).toSink
-      )
     }
+    import server.core.Execution.Implicits.trampoline
+    Accumulator.strict[ByteString, Either[Result, A]](
+      // If the body was strict
+      {
+        case Some(bytes) if bytes.size <= maxLength =>
+          parseBody(bytes)
+        case None =>
+          parseBody(ByteString.empty)
+        case _ =>
+          createBadResult("Request Entity Too Large", REQUEST_ENTITY_TOO_LARGE)(request).map(Left.apply)
+      },
+      // Otherwise, use an enforce max length accumulator on a folding sink
+      enforceMaxLength(
+        request,
+        maxLength,
+        Accumulator(
+          Sink.fold[ByteString, ByteString](ByteString.empty)((state, bs) => state ++ bs)
+        ).mapFuture(parseBody)
+      ).toSink
+    )
+  }
 }
 
 /**
@@ -1080,6 +1374,16 @@ object BodyParsers extends BodyParsers {
 
   object utils extends BodyParserUtils
 
+  /**
+    * Whether the Content-Length header of the request declares a body longer than maxLength.
+    *
+    * The Content-Length is ignored if the request also has a Transfer-Encoding, since it is then not the length of
+    * the body.
+    */
+  private[server] def declaredLengthExceeds(request: RequestHeader, maxLength: Long): Boolean =
+    !request.headers.hasHeader(TRANSFER_ENCODING) &&
+      request.headers.get(CONTENT_LENGTH).exists(length => Try(length.trim.toLong).toOption.exists(_ > maxLength))
+
   private[server] def takeUpTo(maxLength: Long): Graph[FlowShape[ByteString, ByteString], Future[MaxSizeStatus]] =
     new TakeUpTo(maxLength)
 
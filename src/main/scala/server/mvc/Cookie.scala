@@ -2,19 +2,22 @@ package server.mvc
 
 import java.net.{URLDecoder, URLEncoder}
 import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
 import java.util.{Base64, Date, Locale}
 
+import com.google.common.cache.{Cache, CacheBuilder}
 import io.jsonwebtoken._
 import javax.inject.Inject
 import server.MarkerContexts.SecurityMarkerContext
-import server.core.encoding.DefaultCookie
+import server.core.encoding.{DefaultCookie, ServerCookieDecoder}
 import server.http.{CookiesConfiguration, HttpConfiguration, JWTConfiguration, SecretConfiguration}
 import server.inject.SimpleModule
 import server.libs.Scala
-import server.libs.crypto.{CookieSigner, CookieSignerProvider}
+import server.libs.crypto.{CookieSigner, CookieSignerProvider, SecureRandomPool}
 import server.mvc.Cookie.SameSite
 import server.{Logger, Mode}
 
+import scala.annotation.tailrec
 import scala.collection.JavaConverters._
 import scala.collection.immutable.ListMap
 import scala.util.Try
@@ -152,6 +155,70 @@ object Cookies extends CookieHeaderEncoding {
 
 }
 
+/**
+  * The cookies of a `Cookie` header, decoded as they are looked up.
+  *
+  * Requests often carry many cookies the application never reads, so the header is only scanned once for the offsets
+  * of the cookie names and values, and a cookie is only decoded when it is asked for. As when decoding the whole
+  * header, invalid cookies are skipped and the first cookie of a given name wins.
+  */
+private[mvc] final class CookieHeaderCookies(header: String, decoder: ServerCookieDecoder) extends Cookies {
+
+  import CookieHeaderCookies._
+
+  /** The name and value offsets of the cookies, four per cookie */
+  private lazy val offsets = decoder.scan(header)
+
+  /** The cookies decoded so far by index, Invalid for invalid ones */
+  private lazy val decoded = new Array[Cookie](offsets.length / 4)
+
+  override def get(name: String): Option[Cookie] = {
+    var found: Cookie = null
+    var i = 0
+    while (found == null && i < decoded.length) {
+      if (nameMatches(i, name)) found = cookieAt(i)
+      i += 1
+    }
+    Option(found)
+  }
+
+  private def nameMatches(index: Int, name: String): Boolean = {
+    val begin = offsets(index * 4)
+    offsets(index * 4 + 1) - begin == name.length && header.regionMatches(begin, name, 0, name.length)
+  }
+
+  /**
+    * The cookie at the given index, null if it is invalid.
+    */
+  private def cookieAt(index: Int): Cookie = decoded(index) match {
+    case null =>
+      val cookie = decoder.decode(header, offsets, index) match {
+        case null => Invalid
+        case c => Cookie(c.name, c.value)
+      }
+      decoded(index) = cookie
+      if (cookie eq Invalid) null else cookie
+    case cookie if cookie eq Invalid => null
+    case cookie => cookie
+  }
+
+  /** All the valid cookies, the first of each name */
+  private lazy val all: Seq[Cookie] = {
+    val names = scala.collection.mutable.HashSet.empty[String]
+    (0 until decoded.length).flatMap(i => Option(cookieAt(i))).filter(cookie => names.add(cookie.name))
+  }
+
+  override def foreach[U](f: Cookie => U): Unit = all.foreach(f)
+
+  def iterator: Iterator[Cookie] = all.iterator
+
+  override def toString = all.map(cookie => cookie.name -> cookie).toMap.toString
+}
+
+private object CookieHeaderCookies {
+  private val Invalid = Cookie("", "")
+}
+
 /**
   * Logic for encoding and decoding `Cookie` and `Set-Cookie` headers.
   */
@@ -187,12 +254,7 @@ trait CookieHeaderEncoding {
   }
 
   def fromCookieHeader(header: Option[String]): Cookies = header match {
-    case Some(headerValue) =>
-      fromMap(
-        decodeCookieHeader(headerValue)
-          .groupBy(_.name)
-          .mapValues(_.head)
-      )
+    case Some(headerValue) => new CookieHeaderCookies(headerValue, config.serverDecoder)
     case None => fromMap(Map.empty)
   }
 
@@ -214,20 +276,39 @@ trait CookieHeaderEncoding {
     * @param cookies the Cookies to encode
     * @return a valid Set-Cookie header value
     */
-  def encodeSetCookieHeader(cookies: Seq[Cookie]): String = {
+  def encodeSetCookieHeader(cookies: Seq[Cookie]): String =
+    encodeSetCookieHeaders(cookies).mkString(SetCookieHeaderSeparator)
+
+  /**
+    * Encodes cookies as Set-Cookie HTTP headers, one per cookie.
+    *
+    * The attributes of cookies that don't depend on the time are encoded once for all the cookies sharing them, as
+    * those of the session and flash cookies.
+    *
+    * @param cookies the Cookies to encode
+    * @return the Set-Cookie header values
+    */
+  def encodeSetCookieHeaders(cookies: Seq[Cookie]): Seq[String] = {
     val encoder = config.serverEncoder
-    val newCookies = cookies.map { cookie =>
+    cookies.map { cookie =>
       val c = Cookie.validatePrefix(cookie)
-      val nc = new DefaultCookie(c.name, c.value)
-      nc.setMaxAge(c.maxAge.getOrElse(Integer.MIN_VALUE))
-      nc.setPath(c.path)
-      c.domain.foreach(nc.setDomain)
-      nc.setSecure(c.secure)
-      nc.setHttpOnly(c.httpOnly)
-      nc.setSameSite(c.sameSite.map(_.value).orNull)
-      encoder.encode(nc)
+      encoder.encode(c.name, c.value, c.maxAge.getOrElse(Integer.MIN_VALUE), encodedAttributes(c))
+    }
+  }
+
+  /** The encoded attributes of the cookies, shared by the cookies with the same attributes */
+  private val attributesCache = new ConcurrentHashMap[CookieHeaderEncoding.Attributes, String]()
+
+  private def encodedAttributes(cookie: Cookie): String = {
+    val attributes = CookieHeaderEncoding.Attributes(cookie.path, cookie.domain, cookie.secure, cookie.httpOnly, cookie.sameSite)
+    attributesCache.get(attributes) match {
+      case null =>
+        val encoded = config.serverEncoder.encodeAttributes(
+          cookie.sameSite.map(_.value).orNull, cookie.path, cookie.domain.orNull, cookie.secure, cookie.httpOnly)
+        if (attributesCache.size < CookieHeaderEncoding.MaxCachedAttributes) attributesCache.put(attributes, encoded)
+        encoded
+      case encoded => encoded
     }
-    newCookies.mkString(SetCookieHeaderSeparator)
   }
 
   /**
@@ -328,6 +409,14 @@ trait CookieHeaderEncoding {
   }
 }
 
+private object CookieHeaderEncoding {
+
+  private case class Attributes(path: String, domain: Option[String], secure: Boolean, httpOnly: Boolean, sameSite: Option[SameSite])
+
+  /** Distinct cookie attributes encoded once, past which they are encoded for every cookie */
+  private val MaxCachedAttributes = 64
+}
+
 /**
   * The default implementation of `CookieHeaders`.
   */
@@ -481,6 +570,62 @@ trait CookieDataCodec {
     * Decodes from an encoded `String`.
     */
   def decode(data: String): Map[String, String]
+
+  /**
+    * The number of decoded values kept by the codecs that cache them, 0 for none.
+    */
+  protected def cacheSize: Int = 0
+}
+
+/**
+  * A bounded cache of decoded cookie values, keyed by the encoded value.
+  *
+  * Clients send the same cookie back with every request, so codecs keep what they decoded, until it expires, rather
+  * than verifying and decoding it again. Values that fail to decode aren't kept.
+  *
+  * @param maxSize the number of values kept, least recently used ones being evicted first, 0 to keep none
+  * @param clock   the clock the expiry times are checked against, the one the codec checks them with
+  */
+private[mvc] final class CookieDataCache(maxSize: Int, clock: java.time.Clock = java.time.Clock.systemUTC()) {
+
+  import CookieDataCache._
+
+  private val entries: Option[Cache[String, Entry]] =
+    if (maxSize > 0) Some(CacheBuilder.newBuilder().maximumSize(maxSize).build()) else None
+
+  /**
+    * The data of the given encoded value, decoded if it isn't cached.
+    *
+    * @param decode decodes the value, returning its data and the time in milliseconds at which the data expires,
+    *               [[Uncached]] if it mustn't be kept.
+    */
+  def getOrDecode(encoded: String)(decode: => (Map[String, String], Long)): Map[String, String] = entries match {
+    case None => decode._1
+    case Some(cache) =>
+      val now = clock.millis()
+      val cached = cache.getIfPresent(encoded)
+      if (cached != null && cached.expiresAt > now) {
+        cached.data
+      } else {
+        val (data, expiresAt) = decode
+        if (expiresAt > now && encoded.length <= MaxCachedLength) cache.put(encoded, new Entry(data, expiresAt))
+        else if (cached != null) cache.invalidate(encoded)
+        data
+      }
+  }
+}
+
+private[mvc] object CookieDataCache {
+
+  /**
+    * The expiry time of data that mustn't be cached.
+    */
+  final val Uncached = Long.MinValue
+
+  /** Values longer than browsers keep aren't cached */
+  private val MaxCachedLength = 4096
+
+  private final class Entry(val data: Map[String, String], val expiresAt: Long)
 }
 
 /**
@@ -498,6 +643,8 @@ trait UrlEncodedCookieDataCodec extends CookieDataCodec {
 
   def isSigned: Boolean
 
+  private lazy val decodeCache = new CookieDataCache(cacheSize)
+
   /**
     * Encodes the data as a `String`.
     */
@@ -516,7 +663,13 @@ trait UrlEncodedCookieDataCodec extends CookieDataCodec {
   /**
     * Decodes from an encoded `String`.
     */
-  def decode(data: String): Map[String, String] = {
+  def decode(data: String): Map[String, String] = decodeCache.getOrDecode(data)(decodeWithExpiry(data))
+
+  /**
+    * Decodes from an encoded `String`, along with the time the data expires at: signed data never expires, while
+    * data failing the authentication check or unsigned data isn't cached.
+    */
+  private[mvc] def decodeWithExpiry(data: String): (Map[String, String], Long) = {
 
     def urldecode(data: String): Map[String, String] = {
       // In some cases we've seen clients ignore the Max-Age and Expires on a cookie, and fail to properly clear the
@@ -542,37 +695,22 @@ trait UrlEncodedCookieDataCodec extends CookieDataCodec {
       }
     }
 
-    // Do not change this unless you understand the security issues behind timing attacks.
-    // This method intentionally runs in constant time if the two strings have the same length.
-    // If it didn't, it would be vulnerable to a timing attack.
-    def safeEquals(a: String, b: String) = {
-      if (a.length != b.length) {
-        false
-      } else {
-        var equal = 0
-        for (i <- Array.range(0, a.length)) {
-          equal |= a(i) ^ b(i)
-        }
-        equal == 0
-      }
-    }
-
     try {
       if (isSigned) {
         val splitted = data.split("-", 2)
         val message = splitted.tail.mkString("-")
-        if (safeEquals(splitted(0), cookieSigner.sign(message)))
-          urldecode(message)
+        if (cookieSigner.verify(message, splitted(0)))
+          urldecode(message) -> Long.MaxValue
         else {
           logger.warn("Cookie failed message authentication check")(SecurityMarkerContext)
-          Map.empty[String, String]
+          Map.empty[String, String] -> CookieDataCache.Uncached
         }
-      } else urldecode(data)
+      } else urldecode(data) -> CookieDataCache.Uncached
     } catch {
       // fail gracefully is the session cookie is corrupted
       case NonFatal(e) =>
         logger.warn("Could not decode cookie", e)(SecurityMarkerContext)
-        Map.empty[String, String]
+        Map.empty[String, String] -> CookieDataCache.Uncached
     }
   }
 }
@@ -590,6 +728,8 @@ trait JWTCookieDataCodec extends CookieDataCodec {
 
   private lazy val formatter = new JWTCookieDataCodec.JWTFormatter(secretConfiguration, jwtConfiguration, clock)
 
+  private lazy val decodeCache = new CookieDataCache(cacheSize, clock)
+
   /**
     * Encodes the data as a `String`.
     */
@@ -601,7 +741,14 @@ trait JWTCookieDataCodec extends CookieDataCodec {
   /**
     * Decodes from an encoded `String`.
     */
-  override def decode(encodedString: String): Map[String, String] = {
+  override def decode(encodedString: String): Map[String, String] =
+    decodeCache.getOrDecode(encodedString)(decodeWithExpiry(encodedString))
+
+  /**
+    * Decodes from an encoded `String`, along with the time the data expires at: the expiration time of the JWT, plus
+    * the allowed clock skew.
+    */
+  private[mvc] def decodeWithExpiry(encodedString: String): (Map[String, String], Long) = {
     import scala.collection.JavaConverters._
 
     try {
@@ -610,14 +757,19 @@ trait JWTCookieDataCodec extends CookieDataCodec {
 
       // Pull out the JWT data claim and only return that.
       val data = claimMap(jwtConfiguration.dataClaim).asInstanceOf[java.util.Map[String, AnyRef]]
+      // The not before claim is checked by the parser, so only the expiration time matters from now on
+      val expiresAt = claimMap.get(Claims.EXPIRATION) match {
+        case Some(seconds: Number) => seconds.longValue * 1000 + jwtConfiguration.clockSkew.toMillis
+        case _ => Long.MaxValue
+      }
       data.asScala.mapValues { v =>
         v.toString
-      }.toMap
+      }.toMap -> expiresAt
     } catch {
       case e: IllegalStateException =>
         // Used in the case where the header algorithm does not match.
         logger.error(e.getMessage)
-        Map.empty
+        Map.empty[String, String] -> CookieDataCache.Uncached
 
       // We want to warn specifically about premature and expired JWT,
       // because they depend on clock skew and can cause silent user error
@@ -625,12 +777,12 @@ trait JWTCookieDataCodec extends CookieDataCodec {
       case e: PrematureJwtException =>
         val id = e.getClaims.getId
         logger.warn(s"decode: premature JWT found! id = $id, message = ${e.getMessage}")(SecurityMarkerContext)
-        Map.empty
+        Map.empty[String, String] -> CookieDataCache.Uncached
 
       case e: ExpiredJwtException =>
         val id = e.getClaims.getId
         logger.warn(s"decode: expired JWT found! id = $id, message = ${e.getMessage}")(SecurityMarkerContext)
-        Map.empty
+        Map.empty[String, String] -> CookieDataCache.Uncached
 
       case e: io.jsonwebtoken.SignatureException =>
         // Thrown when an invalid cookie signature is found -- this can be confusing to end users
@@ -643,11 +795,11 @@ trait JWTCookieDataCodec extends CookieDataCodec {
             + "This usually indicates the browser has a leftover cookie from another Play application, so clearing "
             + "cookies may resolve this error message."
         )
-        Map.empty
+        Map.empty[String, String] -> CookieDataCache.Uncached
 
       case NonFatal(e) =>
         logger.warn(s"decode: could not decode JWT: ${e.getMessage}", e)(SecurityMarkerContext)
-        Map.empty
+        Map.empty[String, String] -> CookieDataCache.Uncached
     }
   }
 
@@ -656,6 +808,9 @@ trait JWTCookieDataCodec extends CookieDataCodec {
 
   /** The clock used for checking expires / not before code */
   protected def clock: java.time.Clock = java.time.Clock.systemUTC()
+
+  /** The clock the expiry times returned by [[decodeWithExpiry]] are checked against */
+  private[mvc] def expiryClock: java.time.Clock = clock
 }
 
 object JWTCookieDataCodec {
@@ -678,12 +833,18 @@ object JWTCookieDataCodec {
       override def now(): Date = java.util.Date.from(clock.instant())
     }
 
-    private val base64EncodedSecret: String = {
+    private def base64Encoded(secret: String): String = {
       Base64.getEncoder.encodeToString(
-        secretConfiguration.secret.getBytes(StandardCharsets.UTF_8)
+        secret.getBytes(StandardCharsets.UTF_8)
       )
     }
 
+    private val base64EncodedSecret: String = base64Encoded(secretConfiguration.secret)
+
+    // JWTs signed before the secret was rotated stay valid until they expire
+    private val base64EncodedPreviousSecrets: List[String] =
+      secretConfiguration.previous.map(base64Encoded).toList
+
     /**
       * Parses encoded JWT against configuration, returns all JWT claims.
       *
@@ -691,12 +852,7 @@ object JWTCookieDataCodec {
       * @return the map of claims
       */
     def parse(encodedString: String): Map[String, AnyRef] = {
-      val jws: Jws[Claims] = Jwts
-        .parser()
-        .setClock(jwtClock)
-        .setSigningKey(base64EncodedSecret)
-        .setAllowedClockSkewSeconds(jwtConfiguration.clockSkew.toSeconds)
-        .parseClaimsJws(encodedString)
+      val jws: Jws[Claims] = parseClaimsJws(encodedString, base64EncodedSecret, base64EncodedPreviousSecrets)
 
       val headerAlgorithm = jws.getHeader.getAlgorithm
       if (headerAlgorithm != jwtConfiguration.signatureAlgorithm) {
@@ -708,6 +864,31 @@ object JWTCookieDataCodec {
       jws.getBody.asScala.toMap
     }
 
+    /**
+      * Parses the JWT with the given key, or, if its signature does not match, with the first of the previous keys it
+      * matches.
+      */
+    @tailrec
+    private def parseClaimsJws(encodedString: String, key: String, previousKeys: List[String]): Jws[Claims] = {
+      val jws =
+        try {
+          Right(
+            Jwts
+              .parser()
+              .setClock(jwtClock)
+              .setSigningKey(key)
+              .setAllowedClockSkewSeconds(jwtConfiguration.clockSkew.toSeconds)
+              .parseClaimsJws(encodedString)
+          )
+        } catch {
+          case e: io.jsonwebtoken.SignatureException if previousKeys.nonEmpty => Left(e)
+        }
+      jws match {
+        case Right(claims) => claims
+        case Left(_) => parseClaimsJws(encodedString, previousKeys.head, previousKeys.tail)
+      }
+    }
+
     /**
       * Formats the input claims to a JWT string, and adds extra date related claims.
       *
@@ -740,13 +921,9 @@ object JWTCookieDataCodec {
     }
   }
 
-  /** Utility object to generate random nonces for JWT from SecureRandom */
+  /** Utility object to generate random nonces for JWT from the shared [[SecureRandomPool]] */
   private[server] object JWTIDGenerator {
-    private val sr = new java.security.SecureRandom()
-
-    def generateId(): String = {
-      new java.math.BigInteger(130, sr).toString(32)
-    }
+    def generateId(): String = SecureRandomPool.shared.nextId(16)
   }
 
 }
@@ -765,21 +942,63 @@ trait FallbackCookieDataCodec extends CookieDataCodec {
     jwtCodec.encode(data)
   }
 
-  def decode(encodedData: String): Map[String, String] = {
-    // Per https://github.com/playframework/playframework/pull/7053#issuecomment-285220730
-    encodedData match {
-      case signedEncoding if signedEncoding.contains('=') =>
-        //  It's a legacy session with at least one value.
-        signedCodec.decode(signedEncoding)
+  // Only JWTs expire, so their clock is the one expiry times are checked against
+  private lazy val decodeCache = new CookieDataCache(cacheSize, jwtCodec.expiryClock)
 
-      case jwtEncoding if jwtEncoding.contains('.') =>
-        // It's a JWT session.
-        jwtCodec.decode(jwtEncoding)
+  def decode(encodedData: String): Map[String, String] =
+    decodeCache.getOrDecode(encodedData) {
+      // Per https://github.com/playframework/playframework/pull/7053#issuecomment-285220730
+      encodedData match {
+        case signedEncoding if signedEncoding.contains('=') =>
+          //  It's a legacy session with at least one value.
+          signedCodec.decodeWithExpiry(signedEncoding)
 
-      case emptyLegacyEncoding =>
-        // It's an empty legacy session.
-        signedCodec.decode(emptyLegacyEncoding)
+        case jwtEncoding if jwtEncoding.contains('.') =>
+          // It's a JWT session.
+          jwtCodec.decodeWithExpiry(jwtEncoding)
+
+        case emptyLegacyEncoding =>
+          // It's an empty legacy session.
+          signedCodec.decodeWithExpiry(emptyLegacyEncoding)
+      }
     }
+}
+
+/**
+  * A codec keeping the data in a [[SessionStore]], the cookie only carrying a signed random id.
+  */
+trait ServerSideCookieDataCodec extends CookieDataCodec {
+
+  def cookieSigner: CookieSigner
+
+  protected def store: SessionStore
+
+  /**
+    * Stores the data under a new id, and encodes the signed id.
+    */
+  override def encode(data: Map[String, String]): String = {
+    val id = SecureRandomPool.shared.nextId(16)
+    store.put(id, data)
+    cookieSigner.sign(id) + "-" + id
+  }
+
+  /**
+    * Verifies the signed id, and reads its data from the store. Unknown, expired or forged ids have no data.
+    */
+  override def decode(data: String): Map[String, String] =
+    verifiedId(data).flatMap(store.get).getOrElse(Map.empty)
+
+  /**
+    * Removes the data of an encoded value that a result replaced or discarded, so that a copy of the cookie that
+    * carried it can no longer be used. Forged ids are ignored.
+    */
+  def remove(data: String): Unit = verifiedId(data).foreach(store.remove)
+
+  private def verifiedId(data: String): Option[String] = data.indexOf('-') match {
+    case -1 => None
+    case i =>
+      val id = data.substring(i + 1)
+      if (cookieSigner.verify(id, data.substring(0, i))) Some(id) else None
   }
 }
 
@@ -816,3 +1035,18 @@ class LegacyCookiesModule
       server.inject.bind[FlashCookieBaker].to[LegacyFlashCookieBaker]
     )
   })
+
+/**
+  * A cookie module that keeps the session data in a server-side [[SessionStore]], and the flash data in a
+  * [[FlashStore]], the cookies only carrying signed ids.
+  */
+class ServerSideSessionCookiesModule
+  extends SimpleModule((env, conf) => {
+    Seq(
+      server.inject.bind[CookieSigner].toProvider[CookieSignerProvider],
+      server.inject.bind[SessionStore].toProvider[SessionStoreProvider],
+      server.inject.bind[FlashStore].toProvider[FlashStoreProvider],
+      server.inject.bind[SessionCookieBaker].to[ServerSideSessionCookieBaker],
+      server.inject.bind[FlashCookieBaker].to[ServerSideFlashCookieBaker]
+    )
+  })
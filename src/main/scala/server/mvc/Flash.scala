@@ -135,6 +135,20 @@ class LegacyFlashCookieBaker @Inject()(
   def this() = this(FlashConfiguration(), SecretConfiguration(), new CookieSignerProvider(SecretConfiguration()).get)
 }
 
+/**
+  * A flash cookie baker keeping the flash data in a [[FlashStore]], the cookie only carrying a signed flash id.
+  *
+  * @param config       flash configuration
+  * @param cookieSigner the cookie signer of the flash ids
+  * @param store        the flash store
+  */
+class ServerSideFlashCookieBaker @Inject()(
+                                            val config: FlashConfiguration,
+                                            val cookieSigner: CookieSigner,
+                                            protected val store: FlashStore
+                                          ) extends FlashCookieBaker
+  with ServerSideCookieDataCodec
+
 object Flash extends CookieBaker[Flash] with UrlEncodedCookieDataCodec {
 
   val emptyCookie = new Flash
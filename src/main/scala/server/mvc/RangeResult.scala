@@ -0,0 +1,233 @@
+package server.mvc
+
+import java.lang.Long.toHexString
+import java.nio.charset.StandardCharsets.US_ASCII
+import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.{Files, Path}
+import java.util.concurrent.ThreadLocalRandom
+
+import akka.stream.scaladsl.Source
+import akka.util.ByteString
+import com.google.common.cache.{Cache, CacheBuilder}
+import server.core.utils.HttpHeaderDateFormat
+import server.http.HeaderNames._
+import server.http.HttpEntity
+import server.http.Status._
+
+import scala.util.Try
+
+/**
+  * Conditional (RFC 7232) and range (RFC 7233) requests for results.
+  *
+  * The server applies it to every result: a `200 OK` to a GET or HEAD request is turned into a `304 Not Modified`
+  * when the `If-None-Match` or `If-Modified-Since` request header matches its `ETag` or `Last-Modified` header, and,
+  * if its entity is a file or strict, a GET with a `Range` header is answered with the requested ranges.
+  */
+object RangeResult {
+
+  /**
+    * The validators of a file.
+    *
+    * @param size               The size of the file.
+    * @param lastModified       The modification time of the file, in milliseconds.
+    * @param etag               A weak entity tag, derived from the size and the modification time.
+    * @param lastModifiedHeader The modification time, formatted for the Last-Modified header.
+    */
+  final case class FileValidators(size: Long, lastModified: Long, etag: String, lastModifiedHeader: String) {
+
+    /**
+      * The headers of a response sending the file.
+      */
+    def headers: Seq[(String, String)] =
+      Seq(ETAG -> etag, LAST_MODIFIED -> lastModifiedHeader, ACCEPT_RANGES -> "bytes")
+  }
+
+  object FileValidators {
+    def apply(size: Long, lastModified: Long): FileValidators =
+      FileValidators(
+        size,
+        lastModified,
+        "W/\"" + toHexString(size) + "-" + toHexString(lastModified) + "\"",
+        HttpHeaderDateFormat.formatMillis(lastModified)
+      )
+  }
+
+  /** Requests with more ranges are answered with the whole entity */
+  private val MaxRanges = 16
+
+  private val validatorsCache: Cache[Path, FileValidators] = CacheBuilder.newBuilder().maximumSize(4096).build()
+
+  /**
+    * The validators of the given file, cached while its size and modification time don't change.
+    */
+  def validatorsOf(path: Path): FileValidators =
+    validatorsOf(path, Files.readAttributes(path, classOf[BasicFileAttributes]))
+
+  /**
+    * The validators of the given file, from attributes just read.
+    */
+  def validatorsOf(path: Path, attributes: BasicFileAttributes): FileValidators = {
+    val size = attributes.size
+    val lastModified = attributes.lastModifiedTime.toMillis
+    validatorsCache.getIfPresent(path) match {
+      case cached if cached != null && cached.size == size && cached.lastModified == lastModified => cached
+      case _ =>
+        val validators = FileValidators(size, lastModified)
+        validatorsCache.put(path, validators)
+        validators
+    }
+  }
+
+  /**
+    * Answer the conditional or range request for the given result.
+    */
+  def apply(request: RequestHeader, result: Result): Result = {
+    val isGet = request.method == "GET"
+    if (result.header.status != OK || !(isGet || request.method == "HEAD")) {
+      result
+    } else if (isNotModified(request, result.header)) {
+      closeEntity(result.body)
+      Result(result.header.copy(status = NOT_MODIFIED), HttpEntity.NoEntity)
+    } else {
+      request.headers.get(RANGE) match {
+        case Some(range) if isGet && isRangeable(result.body) && isRangeCurrent(request, result.header) =>
+          val length = result.body.contentLength.get
+          parseRanges(range, length) match {
+            case None => result
+            case Some(Nil) =>
+              closeEntity(result.body)
+              Result(
+                result.header.copy(status = REQUESTED_RANGE_NOT_SATISFIABLE,
+                  headers = result.header.headers + (CONTENT_RANGE -> s"bytes */$length")),
+                HttpEntity.NoEntity
+              )
+            case Some(Seq((first, last))) =>
+              Result(
+                result.header.copy(status = PARTIAL_CONTENT,
+                  headers = result.header.headers + (CONTENT_RANGE -> s"bytes $first-$last/$length")),
+                slice(result.body, first, last)
+              )
+            case Some(ranges) =>
+              Result(result.header.copy(status = PARTIAL_CONTENT), multipartByteRanges(result.body, ranges, length))
+          }
+        case _ => result
+      }
+    }
+  }
+
+  private[server] def isNotModified(request: RequestHeader, header: ResponseHeader): Boolean =
+    request.headers.get(IF_NONE_MATCH) match {
+      case Some(ifNoneMatch) =>
+        // If-Modified-Since is ignored when If-None-Match is present
+        header.headers.get(ETAG).exists { etag =>
+          ifNoneMatch.trim == "*" || ifNoneMatch.split(',').exists(tag => opaqueTag(tag) == opaqueTag(etag))
+        }
+      case None =>
+        val notModified = for {
+          ifModifiedSince <- request.headers.get(IF_MODIFIED_SINCE).flatMap(HttpHeaderDateFormat.parse)
+          lastModified <- header.headers.get(LAST_MODIFIED).flatMap(HttpHeaderDateFormat.parse)
+        } yield !lastModified.isAfter(ifModifiedSince)
+        notModified.getOrElse(false)
+    }
+
+  /** For the weak comparison of entity tags */
+  private def opaqueTag(tag: String): String = tag.trim.stripPrefix("W/")
+
+  /**
+    * Whether the representation the ranges were computed from, identified by If-Range, is still the current one.
+    * Entity tags must match strongly, so a weak one never does.
+    */
+  private def isRangeCurrent(request: RequestHeader, header: ResponseHeader): Boolean =
+    request.headers.get(IF_RANGE).map(_.trim) match {
+      case None => true
+      case Some(tag) if tag.startsWith("\"") => header.headers.get(ETAG).exists(_.trim == tag)
+      case Some(tag) if tag.startsWith("W/") => false
+      case Some(date) =>
+        val lastModified = header.headers.get(LAST_MODIFIED).flatMap(HttpHeaderDateFormat.parse)
+        HttpHeaderDateFormat.parse(date).exists(lastModified.contains)
+    }
+
+  private def isRangeable(entity: HttpEntity): Boolean = entity match {
+    case _: HttpEntity.File | _: HttpEntity.Strict => !entity.isKnownEmpty
+    case _ => false
+  }
+
+  private val RangeSpec = """(\d*)-(\d*)""".r
+
+  /**
+    * Parse the ranges of a Range header.
+    *
+    * @return None if the header is not a valid byte ranges set, in which case it is ignored, otherwise the
+    *         satisfiable ranges, sorted and coalesced.
+    */
+  private[mvc] def parseRanges(value: String, length: Long): Option[Seq[(Long, Long)]] = {
+    val trimmed = value.trim
+    if (!trimmed.regionMatches(true, 0, "bytes=", 0, 6)) {
+      None
+    } else {
+      val specs = trimmed.substring(6).split(',').map(_.trim).filter(_.nonEmpty)
+      if (specs.isEmpty || specs.length > MaxRanges) {
+        None
+      } else {
+        Try(specs.toList.flatMap {
+          case RangeSpec("", "") => throw new IllegalArgumentException("Empty range")
+          case RangeSpec("", suffix) =>
+            val suffixLength = suffix.toLong
+            if (suffixLength > 0) Some(math.max(length - suffixLength, 0L) -> (length - 1)) else None
+          case RangeSpec(first, last) =>
+            val firstPos = first.toLong
+            val lastPos = if (last.isEmpty) length - 1 else last.toLong
+            if (last.nonEmpty && lastPos < firstPos) throw new IllegalArgumentException("Invalid range")
+            if (firstPos < length) Some(firstPos -> math.min(lastPos, length - 1)) else None
+          case _ => throw new IllegalArgumentException("Invalid range")
+        }).toOption.map(coalesce)
+      }
+    }
+  }
+
+  private def coalesce(ranges: List[(Long, Long)]): Seq[(Long, Long)] =
+    ranges.sortBy(_._1).foldLeft(List.empty[(Long, Long)]) {
+      case ((first, last) :: merged, (nextFirst, nextLast)) if nextFirst <= last + 1 =>
+        (first, math.max(last, nextLast)) :: merged
+      case (merged, range) => range :: merged
+    }.reverse
+
+  private def slice(entity: HttpEntity, first: Long, last: Long): HttpEntity = entity match {
+    case file: HttpEntity.File => file.copy(offset = file.offset + first, length = last - first + 1)
+    case strict: HttpEntity.Strict => strict.copy(data = strict.data.slice(first.toInt, last.toInt + 1))
+    case other => other
+  }
+
+  /**
+    * A multipart/byteranges entity, streamed from the ranges of the given entity.
+    */
+  private def multipartByteRanges(entity: HttpEntity, ranges: Seq[(Long, Long)], length: Long): HttpEntity = {
+    val boundary = toHexString(ThreadLocalRandom.current.nextLong())
+    val partHeaders = ranges.map {
+      case (first, last) =>
+        val contentType = entity.contentType.fold("")(CONTENT_TYPE + ": " + _ + "\r\n")
+        ByteString(s"\r\n--$boundary\r\n${contentType}Content-Range: bytes $first-$last/$length\r\n\r\n", US_ASCII)
+    }
+    val end = ByteString(s"\r\n--$boundary--\r\n", US_ASCII)
+    val contentLength = partHeaders.map(_.size.toLong).sum + ranges.map { case (f, l) => l - f + 1 }.sum + end.size
+
+    val parts = ranges.zip(partHeaders).map {
+      case ((first, last), partHeader) =>
+        val data = slice(entity, first, last) match {
+          case file: HttpEntity.File => file.copy(onClose = () => ()).dataStream
+          case other => other.dataStream
+        }
+        Source.single(partHeader).concat(data)
+    }
+    val data = parts.foldLeft(Source.empty[ByteString])(_ concat _).concat(Source.single(end))
+      .watchTermination() { (_, done) =>
+        done.onComplete(_ => closeEntity(entity))(server.core.Execution.trampoline)
+      }
+    HttpEntity.Streamed(data, Some(contentLength), Some("multipart/byteranges; boundary=" + boundary))
+  }
+
+  private def closeEntity(entity: HttpEntity): Unit = entity match {
+    case file: HttpEntity.File => file.onClose()
+    case _ =>
+  }
+}
@@ -40,6 +40,9 @@ trait AcceptExtractors {
     val Html = Accepting(MimeTypes.HTML)
     val Xml = Accepting(MimeTypes.XML)
     val JavaScript = Accepting(MimeTypes.JAVASCRIPT)
+    val Cbor = Accepting(MimeTypes.CBOR)
+    val MsgPack = Accepting(MimeTypes.MSGPACK)
+    val Protobuf = Accepting(MimeTypes.PROTOBUF)
   }
 
 }
@@ -5,21 +5,22 @@
 package server.mvc
 
 import java.lang.{StringBuilder => JStringBuilder}
-import java.nio.file.{Files, Path}
+import java.net.{HttpURLConnection, JarURLConnection, URL, URLConnection}
+import java.nio.file.{Path, Paths}
 import java.time.{ZoneOffset, ZonedDateTime}
 import java.time.format.DateTimeFormatter
 
-import akka.stream.scaladsl.{FileIO, Source, StreamConverters}
+import akka.stream.scaladsl.{Source, StreamConverters}
 import akka.util.ByteString
 import server.{Logger, Mode}
-import server.core.utils.{CaseInsensitiveOrdered, HttpHeaderParameterEncoding}
+import server.core.utils.{HttpHeaderDateFormat, HttpHeaderParameterEncoding, ResponseHeaderMap}
 import server.http.HeaderNames._
 import server.http.{FileMimeTypes, _}
 import server.i18n.{Lang, MessagesApi}
 
 import scala.collection.JavaConverters._
-import scala.collection.immutable.TreeMap
 import scala.concurrent.ExecutionContext
+import scala.util.Try
 
 /**
   * A simple HTTP response header, used for standard responses.
@@ -37,7 +38,8 @@ final class ResponseHeader(
   private[server] def this(status: Int, _headers: java.util.Map[String, String], reasonPhrase: Option[String]) =
     this(status, _headers.asScala.toMap, reasonPhrase)
 
-  val headers: Map[String, String] = TreeMap[String, String]()(CaseInsensitiveOrdered) ++ _headers
+  /** Case insensitive, in the order they were set, see [[ResponseHeaderMap]] */
+  val headers: Map[String, String] = ResponseHeaderMap(_headers)
 
   // validate headers so we know this response header is well formed
   for ((name, value) <- headers) {
@@ -92,7 +94,7 @@ object ResponseHeader {
              headers: Map[String, String] = Map.empty,
              reasonPhrase: Option[String] = None
            ): ResponseHeader =
-    new ResponseHeader(status, headers)
+    new ResponseHeader(status, headers, reasonPhrase)
 
   def unapply(rh: ResponseHeader): Option[(Int, Map[String, String], Option[String])] =
     if (rh eq null) None else Some((rh.status, rh.headers, rh.reasonPhrase))
@@ -151,7 +153,7 @@ case class Result(
     */
   def withDateHeaders(headers: (String, ZonedDateTime)*): Result = {
     copy(header = header.copy(headers = header.headers ++ headers.map {
-      case (name, dateTime) => (name, dateTime.format(ResponseHeader.httpDateFormat))
+      case (name, dateTime) => (name, HttpHeaderDateFormat.format(dateTime.toInstant))
     }))
   }
 
@@ -326,27 +328,48 @@ case class Result(
                    flashBaker: CookieBaker[Flash] = new DefaultFlashCookieBaker(),
                    requestHasFlash: Boolean = false
                  ): Result = {
+    val cookies = cookiesToBake(sessionBaker, flashBaker, requestHasFlash)
+    if (cookies.isEmpty) {
+      this
+    } else {
+      val values = header.headers.get(SET_COOKIE).filter(_.nonEmpty) ++ cookieHeaderEncoding.encodeSetCookieHeaders(cookies)
+      withHeaders(SET_COOKIE -> values.mkString(cookieHeaderEncoding.SetCookieHeaderSeparator))
+    }
+  }
 
-    val allCookies = {
-      val setCookieCookies = cookieHeaderEncoding.decodeSetCookieHeader(header.headers.getOrElse(SET_COOKIE, ""))
-      val session = newSession.map { data =>
-        if (data.isEmpty) sessionBaker.discard.toCookie else sessionBaker.encodeAsCookie(data)
-      }
-      val flash = newFlash
-        .map { data =>
-          if (data.isEmpty) flashBaker.discard.toCookie else flashBaker.encodeAsCookie(data)
-        }
-        .orElse {
-          if (requestHasFlash) Some(flashBaker.discard.toCookie) else None
-        }
-      setCookieCookies ++ session ++ flash ++ newCookies
+  /**
+    * The values of the Set-Cookie headers of this result, one per cookie: those already in its Set-Cookie header, as
+    * they are, then its cookies baked in the same order as [[bakeCookies]].
+    */
+  def setCookieHeaders(
+                        cookieHeaderEncoding: CookieHeaderEncoding,
+                        sessionBaker: CookieBaker[Session],
+                        flashBaker: CookieBaker[Flash],
+                        requestHasFlash: Boolean
+                      ): Seq[String] = {
+    val existing = header.headers.get(SET_COOKIE) match {
+      case Some(value) => cookieHeaderEncoding.SetCookieHeaderSeparatorRegex.split(value).toSeq.map(_.trim).filter(_.nonEmpty)
+      case None => Nil
     }
+    existing ++ cookieHeaderEncoding.encodeSetCookieHeaders(cookiesToBake(sessionBaker, flashBaker, requestHasFlash))
+  }
 
-    if (allCookies.isEmpty) {
-      this
-    } else {
-      withHeaders(SET_COOKIE -> cookieHeaderEncoding.encodeSetCookieHeader(allCookies))
+  private def cookiesToBake(
+                             sessionBaker: CookieBaker[Session],
+                             flashBaker: CookieBaker[Flash],
+                             requestHasFlash: Boolean
+                           ): Seq[Cookie] = {
+    val session = newSession.map { data =>
+      if (data.isEmpty) sessionBaker.discard.toCookie else sessionBaker.encodeAsCookie(data)
     }
+    val flash = newFlash
+      .map { data =>
+        if (data.isEmpty) flashBaker.discard.toCookie else flashBaker.encodeAsCookie(data)
+      }
+      .orElse {
+        if (requestHasFlash) Some(flashBaker.discard.toCookie) else None
+      }
+    session.toSeq ++ flash ++ newCookies
   }
 }
 
@@ -454,9 +477,9 @@ trait Results {
       )
     }
 
-    private def streamFile(file: Source[ByteString, _], name: String, length: Long, inline: Boolean)(
-      implicit fileMimeTypes: FileMimeTypes
-    ): Result = {
+    private def fileResult(name: String, inline: Boolean, headers: Seq[(String, String)])(
+      entity: Option[String] => HttpEntity
+    )(implicit fileMimeTypes: FileMimeTypes): Result = {
       Result(
         ResponseHeader(
           status,
@@ -468,13 +491,9 @@ trait Results {
               HttpHeaderParameterEncoding.encodeToBuilder("filename", name, builder)
               builder.toString
             }
-          )
+          ) ++ headers
         ),
-        HttpEntity.Streamed(
-          file,
-          Some(length),
-          fileMimeTypes.forFileName(name).orElse(Some(server.http.ContentTypes.BINARY))
-        )
+        entity(fileMimeTypes.forFileName(name).orElse(Some(server.http.ContentTypes.BINARY)))
       )
     }
 
@@ -495,11 +514,13 @@ trait Results {
     }
 
     /**
-      * Send a path.
+      * Send a path. The server writes it straight from the file when the connection allows it, see [[HttpEntity.File]],
+      * and answers conditional and range requests for it, see [[RangeResult]].
       *
       * @param content  The path to send.
       * @param inline   Use Content-Disposition inline or attachment.
       * @param fileName Function to retrieve the file name. By default the name of the file is used.
+      * @param onClose  Called once the file was sent, or failed to be.
       */
     def sendPath(
                   content: Path,
@@ -507,12 +528,10 @@ trait Results {
                   fileName: Path => String = _.getFileName.toString,
                   onClose: () => Unit = () => ()
                 )(implicit ec: ExecutionContext, fileMimeTypes: FileMimeTypes): Result = {
-      val io = FileIO
-        .fromPath(content)
-        .mapMaterializedValue(_.onComplete { _ =>
-          onClose()
-        })
-      streamFile(io, fileName(content), Files.size(content), inline)(fileMimeTypes)
+      val validators = RangeResult.validatorsOf(content)
+      fileResult(fileName(content), inline, validators.headers)(
+        HttpEntity.File(content, 0, validators.size, _, onClose)
+      )(fileMimeTypes)
     }
 
     /**
@@ -527,9 +546,52 @@ trait Results {
                       classLoader: ClassLoader = Results.getClass.getClassLoader,
                       inline: Boolean = true
                     )(implicit fileMimeTypes: FileMimeTypes): Result = {
-      val stream = classLoader.getResourceAsStream(resource)
+      val url = classLoader.getResource(resource)
       val fileName = resource.split('/').last
-      streamFile(StreamConverters.fromInputStream(() => stream), fileName, stream.available(), inline)
+      if (url.getProtocol == "file") {
+        val path = Paths.get(url.toURI)
+        val validators = RangeResult.validatorsOf(path)
+        fileResult(fileName, inline, validators.headers)(HttpEntity.File(path, 0, validators.size, _))
+      } else {
+        // Eg in a jar, the length and modification time come from the entry. The connection is only opened again
+        // if the body is read, which it isn't for HEAD requests and not modified or range errors.
+        val (length, lastModified) = resourceMetadata(url)
+        val headers = if (length >= 0 && lastModified > 0) {
+          val validators = RangeResult.FileValidators(length, lastModified)
+          Seq(ETAG -> validators.etag, LAST_MODIFIED -> validators.lastModifiedHeader)
+        } else Nil
+        val data = StreamConverters.fromInputStream(() => openConnection(url).getInputStream)
+        fileResult(fileName, inline, headers)(HttpEntity.Streamed(data, Some(length).filter(_ >= 0), _))
+      }
+    }
+
+    /**
+      * A connection to a resource, not shared with other connections, so that it is closed with its stream.
+      */
+    private def openConnection(url: URL): URLConnection = {
+      val connection = url.openConnection()
+      connection.setUseCaches(false)
+      connection
+    }
+
+    /**
+      * The length, -1 if unknown, and modification time, 0 if unknown, of a resource, closing what the connection
+      * opened to get them.
+      */
+    private def resourceMetadata(url: URL): (Long, Long) = openConnection(url) match {
+      case jar: JarURLConnection =>
+        // From the entry, as the header fields of the connection would open the jar file once more
+        try {
+          (jar.getContentLengthLong, Option(jar.getJarEntry).fold(0L)(entry => math.max(entry.getTime, 0L)))
+        } finally Try(jar.getJarFile.close())
+      case http: HttpURLConnection =>
+        try {
+          (http.getContentLengthLong, http.getLastModified)
+        } finally http.disconnect()
+      case connection =>
+        try {
+          (connection.getContentLengthLong, connection.getLastModified)
+        } finally Try(connection.getInputStream.close())
     }
 
     /**
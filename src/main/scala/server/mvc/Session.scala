@@ -107,6 +107,8 @@ trait SessionCookieBaker extends CookieBaker[Session] with CookieDataCodec {
 
   override def sameSite = config.sameSite
 
+  override protected def cacheSize: Int = config.cacheSize
+
   def deserialize(data: Map[String, String]) = new Session(data)
 
   def serialize(session: Session): Map[String, String] = session.data
@@ -140,6 +142,23 @@ class LegacySessionCookieBaker @Inject()(val config: SessionConfiguration, val c
   def this() = this(SessionConfiguration(), new CookieSignerProvider(SecretConfiguration()).get)
 }
 
+/**
+  * A session cookie baker keeping the session data in a [[SessionStore]], the cookie only carrying a signed session id.
+  *
+  * The data is only read from the store when the request session is first used, and only written back when a result
+  * sets a new session, under a new id, the data of the previous id being removed.
+  *
+  * @param config       session configuration
+  * @param cookieSigner the cookie signer of the session ids
+  * @param store        the session store
+  */
+class ServerSideSessionCookieBaker @Inject()(
+                                              val config: SessionConfiguration,
+                                              val cookieSigner: CookieSigner,
+                                              protected val store: SessionStore
+                                            ) extends SessionCookieBaker
+  with ServerSideCookieDataCodec
+
 object Session extends CookieBaker[Session] with FallbackCookieDataCodec {
 
   lazy val emptyCookie = new Session
@@ -0,0 +1,324 @@
+package server.mvc
+
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.attribute.FileTime
+import java.nio.file.{Files, NoSuchFileException, Path, Paths, StandardCopyOption}
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.typesafe.config.ConfigMemorySize
+import io.netty.buffer.{ByteBuf, ByteBufUtil, PooledByteBufAllocator, Unpooled}
+import javax.inject.{Inject, Provider, Singleton}
+import server.http.FlashConfiguration
+import server.inject.ApplicationLifecycle
+import server.{Configuration, Logger}
+
+import scala.concurrent.Future
+import scala.concurrent.duration._
+import scala.util.control.NonFatal
+
+/**
+  * Stores the data of server-side sessions by session id, for the [[ServerSideSessionCookieBaker]].
+  *
+  * The data stored under an id never changes: a modified session is stored under a new id, and the data of the id
+  * the request came with is removed once the response replacing or discarding it is sent.
+  */
+trait SessionStore {
+
+  /**
+    * The data of the given session, if it is stored and not expired.
+    */
+  def get(id: String): Option[Map[String, String]]
+
+  /**
+    * Store the data of a session.
+    */
+  def put(id: String, data: Map[String, String]): Unit
+
+  /**
+    * Remove a session.
+    */
+  def remove(id: String): Unit
+}
+
+object SessionStore {
+
+  private val logger = Logger(classOf[SessionStore])
+
+  /**
+    * Whether the given string may be a session id. Ids are URL safe base64, so they are also valid file names.
+    */
+  private[mvc] def isValidId(id: String): Boolean =
+    id.nonEmpty && id.length <= 64 && id.forall(c => Character.isLetterOrDigit(c) || c == '-' || c == '_')
+
+  /**
+    * Write the data of a session: the number of entries, then each key and value as a length prefixed UTF-8 string.
+    */
+  private[mvc] def write(data: Map[String, String], buf: ByteBuf): Unit = {
+    buf.writeInt(data.size)
+    data.foreach {
+      case (key, value) =>
+        writeString(key, buf)
+        writeString(value, buf)
+    }
+  }
+
+  private def writeString(value: String, buf: ByteBuf): Unit = {
+    buf.writeInt(ByteBufUtil.utf8Bytes(value))
+    ByteBufUtil.writeUtf8(buf, value)
+  }
+
+  /**
+    * Read the data of a session written by [[write]].
+    */
+  private[mvc] def read(buf: ByteBuf): Map[String, String] = {
+    val builder = Map.newBuilder[String, String]
+    var remaining = buf.readInt()
+    while (remaining > 0) {
+      builder += readString(buf) -> readString(buf)
+      remaining -= 1
+    }
+    builder.result()
+  }
+
+  private def readString(buf: ByteBuf): String = {
+    val length = buf.readInt()
+    val value = buf.toString(buf.readerIndex, length, UTF_8)
+    buf.skipBytes(length)
+    value
+  }
+
+  /**
+    * Read the data of a session, if it can be read. The data of unreadable sessions is dropped.
+    */
+  private[mvc] def readSafely(buf: ByteBuf): Option[Map[String, String]] =
+    try Some(read(buf))
+    catch {
+      case NonFatal(e) =>
+        logger.warn("Dropping the unreadable data of a session", e)
+        None
+    }
+}
+
+/**
+  * The server-side session store configuration.
+  *
+  * @param implementation Where the sessions are stored, `off-heap` or `file`.
+  * @param expiresAfter   The time after which a session that wasn't used expires.
+  * @param maxSize        The most memory the sessions of the off-heap store take, least recently used ones being
+  *                       evicted first.
+  * @param directory      The directory of the file store.
+  */
+case class SessionStoreConfig(
+                               implementation: String = "off-heap",
+                               expiresAfter: FiniteDuration = 1.day,
+                               maxSize: Long = 64L * 1024 * 1024,
+                               directory: Path = Paths.get(System.getProperty("java.io.tmpdir"), "play-sessions")
+                             )
+
+object SessionStoreConfig {
+
+  def fromConfiguration(conf: Configuration): SessionStoreConfig = {
+    val config = conf.get[Configuration]("play.http.session.store")
+    val default = SessionStoreConfig()
+    SessionStoreConfig(
+      implementation = config.get[String]("implementation"),
+      expiresAfter = config.get[FiniteDuration]("expiresAfter"),
+      maxSize = config.get[ConfigMemorySize]("maxSize").toBytes,
+      directory = config.getOptional[String]("directory").map(Paths.get(_)).getOrElse(default.directory)
+    )
+  }
+}
+
+@Singleton
+class SessionStoreConfigProvider @Inject()(config: Configuration) extends Provider[SessionStoreConfig] {
+  lazy val get = SessionStoreConfig.fromConfiguration(config)
+}
+
+/**
+  * Provides the configured session store, closed with the application.
+  */
+@Singleton
+class SessionStoreProvider @Inject()(config: SessionStoreConfig, lifecycle: ApplicationLifecycle)
+  extends Provider[SessionStore] {
+
+  lazy val get: SessionStore = config.implementation match {
+    case "off-heap" =>
+      val store = new OffHeapSessionStore(config.maxSize, config.expiresAfter)
+      lifecycle.addStopHook(() => Future.successful(store.close()))
+      store
+    case "file" => new FileSessionStore(config.directory, config.expiresAfter)
+    case other =>
+      throw new IllegalArgumentException(s"Unknown session store implementation: $other, expected off-heap or file")
+  }
+}
+
+/**
+  * Stores the data of server-side flash scopes, for the [[ServerSideFlashCookieBaker]], apart from the sessions as
+  * flash scopes only live until the next request.
+  */
+trait FlashStore extends SessionStore
+
+/**
+  * Provides the flash store, keeping flash scopes in memory out of the JVM heap, closed with the application.
+  */
+@Singleton
+class FlashStoreProvider @Inject()(config: FlashConfiguration, lifecycle: ApplicationLifecycle)
+  extends Provider[FlashStore] {
+
+  lazy val get: FlashStore = {
+    val store = new OffHeapSessionStore(config.storeMaxSize, config.storeExpiresAfter) with FlashStore
+    lifecycle.addStopHook(() => Future.successful(store.close()))
+    store
+  }
+}
+
+/**
+  * A session store keeping the sessions in memory out of the JVM heap, in pooled direct buffers, so that many large
+  * sessions don't weigh on the garbage collector.
+  *
+  * The least recently used sessions are evicted once the sessions take more than the maximum size. Each session
+  * expires once it wasn't used for the given time.
+  *
+  * @param maxSize      The most memory the sessions take, in bytes.
+  * @param expiresAfter The time after which a session that wasn't used expires.
+  */
+class OffHeapSessionStore(maxSize: Long, expiresAfter: FiniteDuration) extends SessionStore with AutoCloseable {
+
+  private final class Entry(val data: ByteBuf, var expires: Long)
+
+  /** The sessions, least recently used first. Guarded by `this` */
+  private val entries = new java.util.LinkedHashMap[String, Entry](16, 0.75f, true)
+
+  /** The bytes taken by the sessions. Guarded by `this` */
+  private var size = 0L
+
+  override def get(id: String): Option[Map[String, String]] = {
+    val now = System.currentTimeMillis
+    val data = synchronized {
+      entries.get(id) match {
+        case null => null
+        case entry if entry.expires <= now =>
+          remove(id)
+          null
+        case entry =>
+          entry.expires = now + expiresAfter.toMillis
+          entry.data.retainedDuplicate()
+      }
+    }
+    if (data == null) None
+    else try SessionStore.readSafely(data) finally data.release()
+  }
+
+  override def put(id: String, data: Map[String, String]): Unit = {
+    val buf = PooledByteBufAllocator.DEFAULT.directBuffer()
+    try SessionStore.write(data, buf)
+    catch {
+      case NonFatal(e) =>
+        buf.release()
+        throw e
+    }
+    val entry = new Entry(buf, System.currentTimeMillis + expiresAfter.toMillis)
+    synchronized {
+      release(entries.put(id, entry))
+      size += buf.capacity
+      val eldest = entries.values.iterator
+      while (size > maxSize && eldest.hasNext) {
+        release(eldest.next())
+        eldest.remove()
+      }
+    }
+  }
+
+  override def remove(id: String): Unit = synchronized {
+    release(entries.remove(id))
+  }
+
+  /**
+    * Release the memory of all the sessions.
+    */
+  override def close(): Unit = synchronized {
+    entries.values.forEach(release(_))
+    entries.clear()
+  }
+
+  private def release(entry: Entry): Unit = if (entry != null) {
+    size -= entry.data.capacity
+    entry.data.release()
+  }
+}
+
+/**
+  * A session store keeping each session in a file of the given directory, so that sessions survive restarts and are
+  * shared by the servers of a host.
+  *
+  * Each session expires once it wasn't used for the given time, its file being deleted when it is next read or by a
+  * sweep of the directory run every few hundred stored sessions. Files are read and written with blocking IO.
+  *
+  * @param directory    The directory of the session files, created if needed.
+  * @param expiresAfter The time after which a session that wasn't used expires.
+  */
+class FileSessionStore(directory: Path, expiresAfter: FiniteDuration) extends SessionStore {
+
+  import FileSessionStore._
+
+  Files.createDirectories(directory)
+
+  private val puts = new AtomicInteger()
+
+  override def get(id: String): Option[Map[String, String]] =
+    if (!SessionStore.isValidId(id)) None
+    else {
+      val file = directory.resolve(id)
+      try {
+        val now = System.currentTimeMillis
+        val lastUsed = Files.getLastModifiedTime(file).toMillis
+        if (lastUsed + expiresAfter.toMillis <= now) {
+          Files.deleteIfExists(file)
+          None
+        } else {
+          // Only touched once in a while, not to write to the disk on every read
+          if (now - lastUsed > expiresAfter.toMillis / 2) Files.setLastModifiedTime(file, FileTime.fromMillis(now))
+          SessionStore.readSafely(Unpooled.wrappedBuffer(Files.readAllBytes(file)))
+        }
+      } catch {
+        case _: NoSuchFileException => None
+      }
+    }
+
+  override def put(id: String, data: Map[String, String]): Unit = {
+    require(SessionStore.isValidId(id), s"Invalid session id: $id")
+    val buf = Unpooled.buffer()
+    SessionStore.write(data, buf)
+    // Written to a temporary file first, so that a session is never read half written
+    val temporary = Files.createTempFile(directory, id, TemporarySuffix)
+    try {
+      Files.write(temporary, ByteBufUtil.getBytes(buf))
+      Files.move(temporary, directory.resolve(id), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+    } finally Files.deleteIfExists(temporary)
+    if (puts.incrementAndGet() % SweepInterval == 0) sweep()
+  }
+
+  override def remove(id: String): Unit = if (SessionStore.isValidId(id)) Files.deleteIfExists(directory.resolve(id))
+
+  /**
+    * Delete the files of the expired sessions.
+    */
+  def sweep(): Unit = {
+    val expired = System.currentTimeMillis - expiresAfter.toMillis
+    val files = Files.newDirectoryStream(directory)
+    try {
+      files.forEach { file =>
+        try {
+          if (Files.getLastModifiedTime(file).toMillis <= expired) Files.deleteIfExists(file)
+        } catch {
+          case _: NoSuchFileException =>
+        }
+      }
+    } finally files.close()
+  }
+}
+
+object FileSessionStore {
+  private val TemporarySuffix = ".tmp"
+  private val SweepInterval = 256
+}
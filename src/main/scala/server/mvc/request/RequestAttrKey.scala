@@ -1,5 +1,6 @@
 package server.mvc.request
 
+import server.libs.Files.TemporaryFileScope
 import server.libs.typedmap.TypedKey
 import server.mvc.{Cookies, Flash, Session}
 
@@ -30,6 +31,12 @@ object RequestAttrKey {
     * the [[server.mvc.Flash]] cookie in it.
     */
   val Flash = TypedKey[Cell[Flash]]("Flash")
+
+  /**
+    * The key for the request attribute storing the [[server.libs.Files.TemporaryFileScope]]
+    * the body parsers create the temporary files of the request in.
+    */
+  val TemporaryFiles = TypedKey[TemporaryFileScope]("TemporaryFiles")
 //
 //  /**
 //    * The key for the request attribute storing the server name.
@@ -4,6 +4,7 @@ package server.mvc.request
 import javax.inject.Inject
 import server.core.system.RequestIdProvider
 import server.http.HttpConfiguration
+import server.i18n.{Messages, PreferredMessages}
 import server.libs.crypto.CookieSignerProvider
 import server.libs.typedmap.TypedMap
 import server.mvc.{CookieHeaderEncoding, Cookies, DefaultCookieHeaderEncoding, DefaultFlashCookieBaker, DefaultSessionCookieBaker, Flash, FlashCookieBaker, Headers, Request, RequestHeader, RequestHeaderImpl, Session, SessionCookieBaker}
@@ -85,6 +86,7 @@ object RequestFactory {
   * - cookie
   * - session cookie
   * - flash cookie
+  * - a slot for the preferred messages
   */
 class DefaultRequestFactory @Inject()(
                                        val cookieHeaderEncoding: CookieHeaderEncoding,
@@ -122,13 +124,19 @@ class DefaultRequestFactory @Inject()(
     val flashCell = new LazyCell[Flash] {
       protected override def emptyMarker: Flash = null
 
-      protected override def create: Flash = flashBaker.decodeFromCookie(cookieCell.value.get(flashBaker.COOKIE_NAME))
+      // Most requests have no flash, so the Cookie header is only decoded if it may have the flash cookie
+      protected override def create: Flash = headers.get(server.http.HeaderNames.COOKIE) match {
+        case Some(header) if header.contains(flashBaker.COOKIE_NAME) =>
+          flashBaker.decodeFromCookie(cookieCell.value.get(flashBaker.COOKIE_NAME))
+        case _ => flashBaker.emptyCookie
+      }
     }
     val updatedAttrMap = attrs + (
       RequestAttrKey.Id -> requestId,
       RequestAttrKey.Cookies -> cookieCell,
       RequestAttrKey.Session -> sessionCell,
-      RequestAttrKey.Flash -> flashCell
+      RequestAttrKey.Flash -> flashCell,
+      Messages.Attrs.Preferred -> new PreferredMessages
     )
     new RequestHeaderImpl(connection, method, target, version, headers, updatedAttrMap)
   }
@@ -0,0 +1,130 @@
+package server.netty
+
+import java.nio.charset.StandardCharsets.US_ASCII
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+import com.google.common.cache.{Cache, CacheBuilder}
+import io.netty.buffer.{ByteBuf, ByteBufUtil, Unpooled}
+import io.netty.handler.codec.http.{HttpHeaders, HttpResponse, HttpResponseEncoder, HttpResponseStatus, HttpVersion}
+import server.http.HeaderNames._
+
+/**
+  * An HTTP response encoder writing the status line and the common headers from cached bytes.
+  *
+  * Most responses have a standard status and share the values of a few headers, such as their Content-Type or
+  * Cache-Control, so the encoded forms of the status line and of these header lines are kept in read-only buffers
+  * that every response copies from, instead of being encoded character by character each time. The Date header line
+  * comes from the [[DateHeader]], which encodes it once a second. Other headers are encoded as usual.
+  */
+private[server] final class CachingHttpResponseEncoder(dateHeader: DateHeader) extends HttpResponseEncoder {
+
+  import CachingHttpResponseEncoder._
+
+  override protected def encodeInitialLine(buf: ByteBuf, response: HttpResponse): Unit =
+    statusLine(response.protocolVersion, response.status) match {
+      case null => super.encodeInitialLine(buf, response)
+      case line => buf.writeBytes(line, line.readerIndex, line.readableBytes)
+    }
+
+  override protected def encodeHeaders(headers: HttpHeaders, buf: ByteBuf): Unit = {
+    val entries = headers.iteratorCharSequence()
+    while (entries.hasNext) {
+      val entry = entries.next()
+      val line =
+        if (compareIgnoreCase(entry.getKey, DATE) == 0) dateHeader.line(entry.getValue)
+        else headerLine(entry.getKey, entry.getValue)
+      line match {
+        case null =>
+          ByteBufUtil.writeAscii(buf, entry.getKey)
+          buf.writeShort(ColonSpace)
+          ByteBufUtil.writeAscii(buf, entry.getValue)
+          buf.writeShort(Crlf)
+        case line => buf.writeBytes(line, line.readerIndex, line.readableBytes)
+      }
+    }
+  }
+}
+
+private[server] object CachingHttpResponseEncoder {
+
+  private val ColonSpace = (':' << 8) | ' '
+  private val Crlf = ('\r' << 8) | '\n'
+
+  /**
+    * Headers whose values are few and shared by many responses. Headers that often carry per-response values, such
+    * as Content-Security-Policy with nonces or Access-Control-Allow-Origin reflecting the request, aren't cached.
+    */
+  private val CachedHeaderNames = Seq(
+    CONTENT_TYPE, CONTENT_ENCODING, CACHE_CONTROL, VARY, CONNECTION, TRANSFER_ENCODING, ACCEPT_RANGES,
+    X_CONTENT_TYPE_OPTIONS, X_FRAME_OPTIONS, X_XSS_PROTECTION, REFERRER_POLICY, STRICT_TRANSPORT_SECURITY,
+    ACCESS_CONTROL_ALLOW_CREDENTIALS, UPGRADE
+  )
+
+  /** Header values cached per header name, the least recently used ones being evicted first */
+  private val MaxCachedValues = 256
+
+  private val headerLines: java.util.TreeMap[CharSequence, Cache[String, ByteBuf]] = {
+    val byName = new java.util.TreeMap[CharSequence, Cache[String, ByteBuf]](
+      (a: CharSequence, b: CharSequence) => compareIgnoreCase(a, b))
+    CachedHeaderNames.foreach(name => byName.put(name, CacheBuilder.newBuilder().maximumSize(MaxCachedValues).build()))
+    byName
+  }
+
+  private def compareIgnoreCase(a: CharSequence, b: CharSequence): Int = {
+    val length = math.min(a.length, b.length)
+    var i = 0
+    var result = 0
+    while (result == 0 && i < length) {
+      result = Character.toLowerCase(a.charAt(i)) - Character.toLowerCase(b.charAt(i))
+      i += 1
+    }
+    if (result != 0) result else a.length - b.length
+  }
+
+  private def headerLine(name: CharSequence, value: CharSequence): ByteBuf = headerLines.get(name) match {
+    case null => null
+    case lines =>
+      val key = value.toString
+      lines.getIfPresent(key) match {
+        // Boundaries are random, as with multipart/byteranges, so values with one are never seen again
+        case null if isAscii(name) && isAscii(key) && !key.contains("boundary=") =>
+          val line = readOnly(s"$name: $key\r\n")
+          val existing = lines.asMap.putIfAbsent(key, line)
+          if (existing != null) existing else line
+        case null => null
+        case line => line
+      }
+  }
+
+  private def isAscii(value: CharSequence): Boolean = {
+    var i = 0
+    while (i < value.length && value.charAt(i) < 0x80) i += 1
+    i == value.length
+  }
+
+  /** Status lines of the standard statuses, by protocol version and status code */
+  private val statusLines = Map(
+    HttpVersion.HTTP_1_1 -> new AtomicReferenceArray[ByteBuf](600),
+    HttpVersion.HTTP_1_0 -> new AtomicReferenceArray[ByteBuf](600)
+  )
+
+  private def statusLine(version: HttpVersion, status: HttpResponseStatus): ByteBuf = {
+    val code = status.code
+    val lines = statusLines.getOrElse(version, null)
+    // Custom reason phrases have their own status instances
+    if (lines == null || code >= 600 || (status ne HttpResponseStatus.valueOf(code))) {
+      null
+    } else {
+      lines.get(code) match {
+        case null =>
+          val line = readOnly(s"${version.text} ${status.code} ${status.reasonPhrase}\r\n")
+          lines.set(code, line)
+          line
+        case line => line
+      }
+    }
+  }
+
+  private[netty] def readOnly(line: String): ByteBuf =
+    Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(line.getBytes(US_ASCII)).asReadOnly())
+}
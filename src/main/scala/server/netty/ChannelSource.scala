@@ -0,0 +1,88 @@
+package server.netty
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicReference
+
+import akka.stream.stage.{AsyncCallback, GraphStage, GraphStageLogic, OutHandler}
+import akka.stream.{Attributes, Outlet, SourceShape}
+import akka.util.ByteString
+
+/**
+  * A source of elements read from a channel, fed by the channel handler.
+  *
+  * The channel handler offers elements as Netty reads them, the stage only asks for more, through `onDemand`, when it
+  * is pulled and has nothing buffered. Since the channel does not auto read, the client is never read faster than the
+  * elements are consumed, and elements that are never consumed are never read at all.
+  *
+  * The offering methods may be called before the stage is materialized, elements are buffered until then.
+  *
+  * @param onDemand Called when downstream wants more elements and none are buffered.
+  * @param onCancel Called when downstream cancels before the source was completely consumed.
+  */
+private[server] class ChannelSource[A <: AnyRef](onDemand: () => Unit, onCancel: () => Unit)
+  extends GraphStage[SourceShape[A]] {
+
+  import ChannelSource._
+
+  private val out = Outlet[A]("ChannelSource.out")
+  override val shape = SourceShape(out)
+
+  private val events = new ConcurrentLinkedQueue[AnyRef]()
+  private val wakeup = new AtomicReference[AsyncCallback[Unit]]()
+
+  def offer(element: A): Unit = signal(element)
+
+  def complete(): Unit = signal(Completed)
+
+  def fail(cause: Throwable): Unit = signal(Failed(cause))
+
+  private def signal(event: AnyRef): Unit = {
+    events.add(event)
+    val callback = wakeup.get
+    if (callback != null) callback.invoke(())
+  }
+
+  override def createLogic(inheritedAttributes: Attributes): GraphStageLogic = new GraphStageLogic(shape) with OutHandler {
+
+    override def preStart(): Unit = {
+      wakeup.set(getAsyncCallback[Unit](_ => if (isAvailable(out)) deliver()))
+    }
+
+    override def onPull(): Unit = if (!deliver()) onDemand()
+
+    override def onDownstreamFinish(): Unit = {
+      onCancel()
+      completeStage()
+    }
+
+    private def deliver(): Boolean = events.poll() match {
+      case null => false
+      case Completed =>
+        completeStage()
+        true
+      case Failed(cause) =>
+        failStage(cause)
+        true
+      case element =>
+        push(out, element.asInstanceOf[A])
+        true
+    }
+
+    setHandler(out, this)
+  }
+}
+
+private object ChannelSource {
+  private case object Completed
+
+  private case class Failed(cause: Throwable)
+}
+
+/**
+  * The source of a request body, see [[ChannelSource]].
+  */
+private[server] final class RequestBodySource(onDemand: () => Unit, onCancel: () => Unit)
+  extends ChannelSource[ByteString](onDemand, onCancel) {
+
+  override def offer(bytes: ByteString): Unit = if (bytes.nonEmpty) super.offer(bytes)
+}
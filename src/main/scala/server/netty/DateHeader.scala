@@ -0,0 +1,73 @@
+package server.netty
+
+import java.util.concurrent.{ScheduledExecutorService, ScheduledFuture, TimeUnit}
+
+import io.netty.buffer.ByteBuf
+import server.core.utils.HttpHeaderDateFormat
+import server.http.HeaderNames.DATE
+
+/**
+  * The Date header of the responses.
+  *
+  * Its value only changes once a second, so a timer formats it, along with the encoded header line the
+  * [[CachingHttpResponseEncoder]] writes as is, instead of each response formatting it. Until the timer is started,
+  * the value is brought up to date when read.
+  */
+private[server] final class DateHeader {
+
+  import DateHeader._
+
+  @volatile private var current: Value = Value.at(System.currentTimeMillis)
+
+  @volatile private var timer: ScheduledFuture[_] = _
+
+  /**
+    * The current value of the header.
+    */
+  def value: String = {
+    if (timer == null) update()
+    current.value
+  }
+
+  /**
+    * The encoded header line, if the given value is the current one.
+    */
+  def line(value: CharSequence): ByteBuf = {
+    val now = current
+    if (now.value eq value) now.line else null
+  }
+
+  /**
+    * Update the value every second, at the start of the second, with the given scheduler.
+    */
+  def start(scheduler: ScheduledExecutorService): Unit = {
+    update()
+    val delay = 1000L - System.currentTimeMillis % 1000L
+    timer = scheduler.scheduleAtFixedRate(new Runnable {
+      override def run(): Unit = update()
+    }, delay, 1000L, TimeUnit.MILLISECONDS)
+  }
+
+  def stop(): Unit = if (timer != null) {
+    timer.cancel(false)
+    timer = null
+  }
+
+  private def update(): Unit = {
+    val now = System.currentTimeMillis
+    if (Math.floorDiv(now, 1000L) != current.epochSecond) current = Value.at(now)
+  }
+}
+
+private[server] object DateHeader {
+
+  private final class Value(val epochSecond: Long, val value: String, val line: ByteBuf)
+
+  private object Value {
+    def at(epochMillis: Long): Value = {
+      val value = HttpHeaderDateFormat.formatMillis(epochMillis)
+      new Value(Math.floorDiv(epochMillis, 1000L), value,
+        CachingHttpResponseEncoder.readOnly(s"$DATE: $value\r\n"))
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package server.netty
+
+import java.net.{InetSocketAddress, URI}
+
+import io.netty.channel.Channel
+import io.netty.handler.codec.http._
+import server.http.HttpConfiguration
+import server.http.HeaderNames.{CONTENT_LENGTH, CONTENT_TYPE, SET_COOKIE, TRANSFER_ENCODING}
+import server.libs.typedmap.TypedMap
+import server.mvc._
+import server.mvc.request._
+
+import scala.collection.JavaConverters._
+import scala.util.Try
+
+/**
+  * Conversions between the Netty HTTP model and the application model.
+  *
+  * @param requestFactory    The factory used to create the request headers.
+  * @param httpConfiguration Used to build the cookie encoders when the request factory does not provide them.
+  */
+private[server] class NettyModelConversion(requestFactory: RequestFactory, httpConfiguration: HttpConfiguration) {
+
+  private val (cookieHeaderEncoding, sessionBaker, flashBaker) = requestFactory match {
+    case factory: DefaultRequestFactory => (factory.cookieHeaderEncoding, factory.sessionBaker, factory.flashBaker)
+    case _ =>
+      val factory = new DefaultRequestFactory(httpConfiguration)
+      (factory.cookieHeaderEncoding, factory.sessionBaker, factory.flashBaker)
+  }
+
+  /**
+    * Convert a Netty request to a request header.
+    *
+    * @param attrs The initial attributes of the request.
+    */
+  def convertRequest(channel: Channel, request: HttpRequest, attrs: TypedMap): Try[RequestHeader] = Try {
+    val connection = channel.remoteAddress match {
+      case address: InetSocketAddress => RemoteConnection(address.getAddress, secure = false, None)
+      case address => RemoteConnection(address.toString, secure = false, None)
+    }
+    requestFactory.createRequestHeader(
+      connection,
+      request.method.name,
+      createRequestTarget(request.uri),
+      request.protocolVersion.text,
+      convertHeaders(request.headers),
+      attrs
+    )
+  }
+
+  private def createRequestTarget(requestUri: String): RequestTarget = new RequestTarget {
+    override lazy val uri: URI = new URI(requestUri)
+
+    override def uriString: String = requestUri
+
+    override lazy val path: String = {
+      val withoutQuery = requestUri.indexOf('?') match {
+        case -1 => requestUri
+        case i => requestUri.substring(0, i)
+      }
+      // Absolute form, as sent to proxies
+      if (withoutQuery.startsWith("/")) withoutQuery else Option(new URI(withoutQuery).getRawPath).getOrElse("/")
+    }
+
+    override lazy val queryMap: Map[String, Seq[String]] =
+      new QueryStringDecoder(requestUri).parameters.asScala.map {
+        case (key, values) => key -> values.asScala.toList
+      }.toMap
+  }
+
+  private def convertHeaders(headers: HttpHeaders): Headers =
+    new Headers(headers.entries.asScala.map(entry => entry.getKey -> entry.getValue))
+
+  /**
+    * Create the Netty response headers for the given result, baking its cookies.
+    *
+    * Entity headers (Content-Type, Content-Length and Transfer-Encoding) are left to the caller, which knows how the
+    * body will be written. Each cookie gets its own Set-Cookie header, the cookies of the result being encoded
+    * straight into them. The flash cookie is only discarded if the flash of the request was read: a flash that
+    * wasn't is kept for a later request, and the flash cookie isn't decoded here.
+    */
+  def convertResponseHeader(request: RequestHeader, result: Result, version: HttpVersion): HttpResponse = {
+    val requestHasFlash = request.attrs.get(RequestAttrKey.Flash).exists(flash => flash.evaluated && !flash.value.isEmpty)
+    val header = result.header
+
+    val status = header.reasonPhrase match {
+      case Some(phrase) => new HttpResponseStatus(header.status, phrase)
+      case None => HttpResponseStatus.valueOf(header.status)
+    }
+    val response = new DefaultHttpResponse(version, status)
+    val headers = response.headers
+
+    header.headers.foreach {
+      case (name, _)
+        if name.equalsIgnoreCase(SET_COOKIE) || name.equalsIgnoreCase(CONTENT_LENGTH) ||
+          name.equalsIgnoreCase(TRANSFER_ENCODING) =>
+      case (name, value) =>
+        headers.add(name, value)
+    }
+    result.setCookieHeaders(cookieHeaderEncoding, sessionBaker, flashBaker, requestHasFlash).foreach(headers.add(SET_COOKIE, _))
+    result.body.contentType.foreach(headers.set(CONTENT_TYPE, _))
+    if (result.newSession.isDefined) removeReplaced(request, sessionBaker)
+    if (result.newFlash.isDefined || requestHasFlash) removeReplaced(request, flashBaker)
+    response
+  }
+
+  /**
+    * Removes the server-side data of the cookie of the request that the response replaces or discards.
+    */
+  private def removeReplaced(request: RequestHeader, baker: CookieBaker[_]): Unit = baker match {
+    case serverSide: ServerSideCookieDataCodec =>
+      request.cookies.get(baker.COOKIE_NAME).foreach(cookie => serverSide.remove(cookie.value))
+    case _ =>
+  }
+}
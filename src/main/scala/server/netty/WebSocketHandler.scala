@@ -0,0 +1,186 @@
+package server.netty
+
+import java.io.IOException
+
+import akka.stream.Materializer
+import akka.stream.scaladsl.{Flow, Sink, Source}
+import akka.util.ByteString
+import io.netty.buffer.{ByteBuf, Unpooled}
+import io.netty.channel._
+import io.netty.handler.codec.http.websocketx._
+import io.netty.handler.codec.{CorruptedFrameException, TooLongFrameException}
+import io.netty.util.ReferenceCountUtil
+import server.Logger
+import server.http.websocket._
+
+import scala.concurrent.{Future, Promise}
+import scala.util.{Failure, Success}
+
+private[server] object WebSocketHandler {
+
+  private val logger = Logger(classOf[WebSocketHandler])
+
+  private def toByteString(buf: ByteBuf): ByteString = {
+    val bytes = new Array[Byte](buf.readableBytes)
+    buf.readBytes(bytes)
+    ByteString.fromArrayUnsafe(bytes)
+  }
+
+  private def toByteBuf(bytes: ByteString): ByteBuf =
+    if (bytes.isEmpty) Unpooled.EMPTY_BUFFER else Unpooled.wrappedBuffer(bytes.asByteBuffer)
+}
+
+/**
+  * Runs the messages of an upgraded connection through the flow of a WebSocket handler.
+  *
+  * It is installed once the handshake is complete, after the frame aggregator, so it only sees whole messages.
+  * Incoming messages are read as the flow pulls them. Outgoing messages are written as long as the channel is
+  * writable and flushed without waiting for them to be sent, the flushes being batched by the
+  * `FlushConsolidationHandler` installed with it. Pings are answered by the server, pongs are dropped.
+  *
+  * The connection is closed with a close frame once the flow completes, with the status of the close message it
+  * emitted or of the [[WebSocketCloseException]] it failed with, or when the client sends a close frame. Messages
+  * over the maximum length are answered with a `1009 Message Too Big` close frame.
+  *
+  * All mutable state is only accessed from the channel's event loop.
+  */
+private[server] class WebSocketHandler(flow: Flow[Message, Message, _])(implicit mat: Materializer)
+  extends ChannelInboundHandlerAdapter {
+
+  import WebSocketHandler._
+
+  private var ctx: ChannelHandlerContext = _
+
+  private val incoming = new ChannelSource[Message](() => onEventLoop(ctx.read()), () => ())
+
+  /** Whether a close frame was sent */
+  private var closing = false
+
+  /** Completed when the channel is writable again, for the outgoing message waiting for it */
+  private var writable: Promise[Unit] = _
+
+  override def handlerAdded(ctx: ChannelHandlerContext): Unit = {
+    this.ctx = ctx
+    Source.fromGraph(incoming)
+      .via(flow)
+      .takeWhile(!_.isInstanceOf[CloseMessage], inclusive = true)
+      .mapAsync(1)(send)
+      .runWith(Sink.ignore)
+      .onComplete {
+        case Success(_) => onEventLoop(close(CloseMessage(Some(CloseCodes.Regular))))
+        case Failure(WebSocketCloseException(message)) => onEventLoop(close(message))
+        case Failure(e: IOException) => logger.debug("WebSocket connection closed while sending", e)
+        case Failure(e) =>
+          logger.error("WebSocket flow failed", e)
+          onEventLoop(close(CloseMessage(Some(CloseCodes.UnexpectedCondition))))
+      }(server.core.Execution.trampoline)
+  }
+
+  override def channelRead(ctx: ChannelHandlerContext, msg: Any): Unit = msg match {
+    case frame: WebSocketFrame =>
+      try received(frame)
+      finally frame.release()
+    case other => ReferenceCountUtil.release(other)
+  }
+
+  private def received(frame: WebSocketFrame): Unit = frame match {
+    case text: TextWebSocketFrame => incoming.offer(TextMessage(text.text))
+    case binary: BinaryWebSocketFrame => incoming.offer(BinaryMessage(toByteString(binary.content)))
+    case ping: PingWebSocketFrame =>
+      ctx.writeAndFlush(new PongWebSocketFrame(ping.content.retain()))
+      ctx.read()
+    case _: PongWebSocketFrame => ctx.read()
+    case close: CloseWebSocketFrame =>
+      incoming.complete()
+      if (closing) {
+        ctx.close()
+      } else {
+        closing = true
+        // Echo the status code, as the closing handshake requires
+        ctx.writeAndFlush(new CloseWebSocketFrame(true, 0, close.content.retain()))
+          .addListener(ChannelFutureListener.CLOSE)
+      }
+    case other =>
+      logger.debug(s"Ignoring unexpected WebSocket frame $other")
+      ctx.read()
+  }
+
+  override def channelInactive(ctx: ChannelHandlerContext): Unit = {
+    incoming.fail(new IOException("WebSocket connection closed"))
+    if (writable != null) {
+      writable.tryFailure(new IOException("WebSocket connection closed"))
+      writable = null
+    }
+    super.channelInactive(ctx)
+  }
+
+  override def channelWritabilityChanged(ctx: ChannelHandlerContext): Unit = {
+    if (writable != null && ctx.channel.isWritable) {
+      writable.trySuccess(())
+      writable = null
+    }
+    super.channelWritabilityChanged(ctx)
+  }
+
+  override def exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable): Unit = cause match {
+    case e: TooLongFrameException =>
+      logger.debug("Closing WebSocket with a message over the maximum length", e)
+      close(CloseMessage(Some(CloseCodes.TooBig), "Message too big"))
+    case e: CorruptedFrameException =>
+      logger.debug("Closing WebSocket after a protocol error", e)
+      close(CloseMessage(Some(CloseCodes.ProtocolError)))
+    case e =>
+      logger.debug("Exception caught in the WebSocket handler, closing the connection", e)
+      ctx.close()
+  }
+
+  /**
+    * Send an outgoing message.
+    *
+    * @return A future completed once the channel can take more, right away unless the write buffer is above its high
+    *         water mark.
+    */
+  private def send(message: Message): Future[Unit] = {
+    val promise = Promise[Unit]()
+    onEventLoop {
+      message match {
+        case close: CloseMessage =>
+          this.close(close)
+          promise.success(())
+        case _ if closing || !ctx.channel.isActive =>
+          promise.failure(new IOException("WebSocket connection closed"))
+        case _ =>
+          val frame = message match {
+            case TextMessage(data) => new TextWebSocketFrame(data)
+            case BinaryMessage(data) => new BinaryWebSocketFrame(toByteBuf(data))
+            case PingMessage(data) => new PingWebSocketFrame(toByteBuf(data))
+            case PongMessage(data) => new PongWebSocketFrame(toByteBuf(data))
+            case close: CloseMessage => throw new IllegalStateException(s"Unexpected $close")
+          }
+          ctx.writeAndFlush(frame).addListener(ChannelFutureListener.CLOSE_ON_FAILURE)
+          if (ctx.channel.isWritable) promise.success(()) else writable = promise
+      }
+    }
+    promise.future
+  }
+
+  /**
+    * Start the closing handshake, unless it already started. The connection is closed once the close frame is sent.
+    */
+  private def close(message: CloseMessage): Unit = if (!closing) {
+    closing = true
+    incoming.complete()
+    val frame = message.statusCode match {
+      case Some(statusCode) => new CloseWebSocketFrame(statusCode, message.reason)
+      case None => new CloseWebSocketFrame()
+    }
+    if (ctx.channel.isActive) ctx.writeAndFlush(frame).addListener(ChannelFutureListener.CLOSE)
+    else frame.release()
+  }
+
+  private def onEventLoop(block: => Unit): Unit =
+    if (ctx.executor.inEventLoop) block
+    else ctx.executor.execute(new Runnable {
+      override def run(): Unit = block
+    })
+}
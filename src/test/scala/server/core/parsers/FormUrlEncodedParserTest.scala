@@ -0,0 +1,89 @@
+package server.core.parsers
+
+import java.nio.charset.StandardCharsets
+
+import akka.util.ByteString
+import org.junit.Assert._
+import org.junit.Test
+import server.core.parsers.FormUrlEncodedParser._
+
+class FormUrlEncodedParserTest {
+
+  private def parseUtf8(body: String, limits: Limits = Limits.Unlimited): Map[String, Seq[String]] =
+    parse(ByteString(body), StandardCharsets.UTF_8, limits)
+
+  /** Checks the fields parsed from the body, keys in the order they first appear */
+  private def assertFields(body: String, fields: (String, Seq[String])*): Unit = {
+    val parsed = parseUtf8(body)
+    assertEquals(body, fields.map(_._1), parsed.keys.toSeq)
+    assertEquals(body, fields.toMap, parsed)
+  }
+
+  private def exceedsLimits(body: String, limits: Limits): Boolean =
+    try {
+      parseUtf8(body, limits)
+      false
+    } catch {
+      case _: FormLimitExceededException => true
+    }
+
+  @Test def parsesAnEmptyBody(): Unit = {
+    assertFields("")
+  }
+
+  @Test def parsesPairsSeparatedByAmpersandsOrSemicolons(): Unit = {
+    assertFields("a=1&b=2", "a" -> Seq("1"), "b" -> Seq("2"))
+    assertFields("a=1;b=2", "a" -> Seq("1"), "b" -> Seq("2"))
+    assertFields("a=1&&b=2&", "a" -> Seq("1"), "b" -> Seq("2"))
+  }
+
+  @Test def groupsTheValuesOfRepeatedKeys(): Unit = {
+    assertFields("b=1&a=2&b=3", "b" -> Seq("1", "3"), "a" -> Seq("2"))
+  }
+
+  @Test def parsesKeysWithoutValues(): Unit = {
+    assertFields("a", "a" -> Seq(""))
+    assertFields("a=", "a" -> Seq(""))
+    assertFields("a=b=c", "a" -> Seq("b=c"))
+  }
+
+  @Test def decodesPlusesAndEscapes(): Unit = {
+    assertFields("a+b=c+d", "a b" -> Seq("c d"))
+    assertFields("k%3D=%26v", "k=" -> Seq("&v"))
+    assertFields("a=%E4%BD%A0%e5%a5%bd", "a" -> Seq("你好"))
+  }
+
+  @Test def parsesAcrossChunks(): Unit = {
+    val body = ByteString("x=1&") ++ ByteString("y=%2") ++ ByteString("0z")
+    assertEquals(Seq(" z"), parse(body, StandardCharsets.UTF_8)("y"))
+  }
+
+  @Test def parsesOtherCharsets(): Unit = {
+    assertEquals(Seq("é"), parse(ByteString("a=%E9"), StandardCharsets.ISO_8859_1)("a"))
+  }
+
+  @Test def rejectsMalformedEscapes(): Unit = {
+    for (body <- Seq("a=%", "a=%4", "a=%zz", "%g0=1")) {
+      try {
+        parseUtf8(body)
+        fail(body)
+      } catch {
+        case _: IllegalArgumentException =>
+      }
+    }
+  }
+
+  @Test def limitsTheNumberOfFields(): Unit = {
+    assertFalse(exceedsLimits("a=1&b=2", Limits(maxFields = 2)))
+    assertTrue(exceedsLimits("a=1&b=2&c=3", Limits(maxFields = 2)))
+  }
+
+  @Test def limitsTheLengthOfKeysAndValues(): Unit = {
+    assertFalse(exceedsLimits("abc=1", Limits(maxKeyLength = 3)))
+    assertTrue(exceedsLimits("abcd=1", Limits(maxKeyLength = 3)))
+    assertFalse(exceedsLimits("a=123", Limits(maxValueLength = 3)))
+    assertTrue(exceedsLimits("a=1234", Limits(maxValueLength = 3)))
+    // Lengths are those of the decoded bytes
+    assertFalse(exceedsLimits("a=%31%32%33", Limits(maxValueLength = 3)))
+  }
+}
@@ -0,0 +1,69 @@
+package server.core.utils
+
+import java.time.Instant
+
+import org.junit.Assert._
+import org.junit.Test
+
+class HttpHeaderDateFormatTest {
+
+  private val Sunday = Instant.parse("1994-11-06T08:49:37Z")
+
+  private def parse(value: String): Option[Instant] = HttpHeaderDateFormat.parse(value)
+
+  @Test def parsesImfFixdates(): Unit = {
+    assertEquals(Some(Sunday), parse("Sun, 06 Nov 1994 08:49:37 GMT"))
+    assertEquals(Some(Sunday), parse(" Sun, 06 Nov 1994 08:49:37 GMT "))
+    assertEquals(Some(Instant.EPOCH), parse("Thu, 01 Jan 1970 00:00:00 GMT"))
+    assertEquals(Some(Instant.parse("9999-12-31T23:59:59Z")), parse("Fri, 31 Dec 9999 23:59:59 GMT"))
+    assertEquals(Some(Instant.parse("2000-02-29T12:00:00Z")), parse("Tue, 29 Feb 2000 12:00:00 GMT"))
+  }
+
+  @Test def parsesNumericOffsets(): Unit = {
+    assertEquals(Some(Sunday), parse("Sun, 06 Nov 1994 09:49:37 +0100"))
+  }
+
+  @Test def parsesRfc850Dates(): Unit = {
+    assertEquals(Some(Sunday), parse("Sunday, 06-Nov-94 08:49:37 GMT"))
+    // Two-digit years are in 1970-2069
+    assertEquals(Some(Instant.parse("2021-11-06T08:49:37Z")), parse("Saturday, 06-Nov-21 08:49:37 GMT"))
+  }
+
+  @Test def parsesAsctimeDates(): Unit = {
+    assertEquals(Some(Sunday), parse("Sun Nov  6 08:49:37 1994"))
+  }
+
+  @Test def parsesCookieExpiryDates(): Unit = {
+    assertEquals(Some(Sunday), parse("Sun, 06-Nov-1994 08:49:37 GMT"))
+  }
+
+  @Test def rejectsMalformedDates(): Unit = {
+    assertEquals(None, parse(""))
+    assertEquals(None, parse("garbage"))
+    assertEquals(None, parse("Sun,"))
+    assertEquals(None, parse("Sun, 06 Nov 1994 08:49:37"))
+    assertEquals(None, parse("Sun, 06 Nov 1994 08:49:37 GMTX"))
+    assertEquals(None, parse("Sun, 06 Xyz 1994 08:49:37 GMT"))
+  }
+
+  @Test def rejectsDatesOutOfRange(): Unit = {
+    assertEquals(None, parse("Sun, 31 Feb 1994 08:49:37 GMT"))
+    assertEquals(None, parse("Sun, 29 Feb 1900 08:49:37 GMT"))
+    assertEquals(None, parse("Sun, 06 Nov 1994 24:49:37 GMT"))
+    assertEquals(None, parse("Sun, 06 Nov 1994 08:60:37 GMT"))
+  }
+
+  @Test def formatsImfFixdates(): Unit = {
+    assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpHeaderDateFormat.format(Sunday))
+    assertEquals("Thu, 01 Jan 1970 00:00:00 GMT", HttpHeaderDateFormat.format(Instant.EPOCH))
+    assertEquals("Wed, 31 Dec 1969 23:59:59 GMT", HttpHeaderDateFormat.format(Instant.parse("1969-12-31T23:59:59Z")))
+    // Fractions of seconds are dropped
+    assertEquals("Tue, 29 Feb 2000 23:59:59 GMT", HttpHeaderDateFormat.format(Instant.parse("2000-02-29T23:59:59.999Z")))
+    assertEquals("Thu, 01 Jan 1970 00:00:00 GMT", HttpHeaderDateFormat.formatMillis(999))
+  }
+
+  @Test def parsesWhatItFormats(): Unit = {
+    val now = Instant.ofEpochSecond(Instant.now().getEpochSecond)
+    assertEquals(Some(now), parse(HttpHeaderDateFormat.format(now)))
+  }
+}
@@ -0,0 +1,129 @@
+package server.filters.csrf
+
+import java.net.URLEncoder
+
+import akka.actor.ActorSystem
+import akka.stream.ActorMaterializer
+import akka.stream.scaladsl.{Sink, Source}
+import akka.util.ByteString
+import org.junit.Assert._
+import org.junit.{After, Test}
+import server.http.{HttpErrorHandler, SecretConfiguration}
+import server.libs.crypto.{CSRFTokenSignerProvider, CookieSignerProvider}
+import server.libs.streams.Accumulator
+import server.libs.typedmap.TypedMap
+import server.mvc._
+import server.mvc.request.{Cell, LazyCell, RequestAttrKey}
+
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Future}
+
+class CSRFFilterTest {
+
+  private implicit val system: ActorSystem = ActorSystem("CSRFFilterTest")
+  private implicit val materializer: ActorMaterializer = ActorMaterializer()
+
+  @After def stop(): Unit = Await.result(system.terminate(), 10.seconds)
+
+  private val signer =
+    new CSRFTokenSignerProvider(new CookieSignerProvider(SecretConfiguration()).get).get
+
+  private val errorHandler = new HttpErrorHandler {
+    def onClientError(request: RequestHeader, statusCode: Int, message: String): Future[Result] =
+      Future.successful(Results.Status(statusCode)(message))
+
+    def onServerError(request: RequestHeader, exception: Throwable): Future[Result] =
+      Future.successful(Results.InternalServerError(exception.toString))
+  }
+
+  private val sessionToken = signer.generateSignedToken
+  private val token = signer.signToken(signer.extractSignedToken(sessionToken).get)
+
+  /** The body the action was given, if it was called */
+  @volatile private var actionBody: Option[ByteString] = None
+
+  private def filter(config: CSRFConfig = CSRFConfig()): EssentialAction =
+    new CSRFFilter(config, signer, errorHandler).apply(EssentialAction { _ =>
+      Accumulator(Sink.fold[ByteString, ByteString](ByteString.empty)(_ ++ _)).map { body =>
+        actionBody = Some(body)
+        Results.Ok
+      }(materializer.executionContext)
+    })
+
+  private def request(method: String, session: Cell[Session], headers: (String, String)*): RequestHeader =
+    new RequestHeaderImpl(null, method, null, "HTTP/1.1", new Headers(("Cookie" -> "id=1") +: headers.toList),
+      TypedMap(RequestAttrKey.Session -> session, RequestAttrKey.Cookies -> Cell(Cookies(Nil))))
+
+  private def post(contentType: String, body: Seq[String], config: CSRFConfig = CSRFConfig()): Int = {
+    actionBody = None
+    val session = Cell(Session(Map("csrfToken" -> sessionToken)))
+    val result = filter(config)(request("POST", session, "Content-Type" -> contentType))
+      .run(Source(body.map(ByteString(_)).toList))
+    Await.result(result, 10.seconds).header.status
+  }
+
+  private def form(pairs: String*) = pairs.mkString("&")
+
+  private def encodedToken = "csrfToken=" + URLEncoder.encode(token, "UTF-8")
+
+  @Test def leavesTheSessionOfUncheckedRequestsAlone(): Unit = {
+    val session = new LazyCell[Session] {
+      protected def emptyMarker: Session = null
+
+      protected def create: Session = Session(Map("csrfToken" -> sessionToken))
+    }
+    val result = filter()(request("GET", session)).run(Source.empty)
+    assertEquals(200, Await.result(result, 10.seconds).header.status)
+    assertFalse(session.evaluated)
+  }
+
+  @Test def acceptsTheTokenInAHeader(): Unit = {
+    val session = Cell(Session(Map("csrfToken" -> sessionToken)))
+    val accepted = filter()(request("POST", session, "Csrf-Token" -> token, "Content-Type" -> "text/plain"))
+    assertEquals(200, Await.result(accepted.run(Source.single(ByteString("x"))), 10.seconds).header.status)
+    val rejected = filter()(request("POST", session, "Csrf-Token" -> "forged", "Content-Type" -> "text/plain"))
+    assertEquals(403, Await.result(rejected.run(Source.single(ByteString("x"))), 10.seconds).header.status)
+  }
+
+  @Test def findsAFormTokenSplitAcrossChunks(): Unit = {
+    val body = form("a=1", encodedToken, "b=" + "z" * 5000)
+    assertEquals(200, post("application/x-www-form-urlencoded", body.grouped(7).toSeq))
+    // The action is given the whole body, including what was read looking for the token
+    assertEquals(Some(ByteString(body)), actionBody)
+  }
+
+  @Test def findsAFormTokenEndingTheBody(): Unit = {
+    val body = form("a=1", encodedToken)
+    assertEquals(200, post("application/x-www-form-urlencoded", body.grouped(5).toSeq))
+    assertEquals(Some(ByteString(body)), actionBody)
+  }
+
+  @Test def rejectsFormsWithoutTheToken(): Unit = {
+    assertEquals(403, post("application/x-www-form-urlencoded", Seq(form("a=1", "b=2"))))
+    assertEquals(403, post("application/x-www-form-urlencoded", Seq(form("a=1", "csrfToken=forged"))))
+    assertEquals(None, actionBody)
+  }
+
+  @Test def onlyReadsFormsUpToTheBufferSize(): Unit = {
+    val config = CSRFConfig(bodyBufferSize = 1024)
+    val body = form("a=" + "x" * 2000, encodedToken)
+    assertEquals(403, post("application/x-www-form-urlencoded", body.grouped(100).toSeq, config))
+  }
+
+  @Test def rejectsFormsThatCannotBeParsed(): Unit = {
+    assertEquals(403, post("application/x-www-form-urlencoded", Seq(form("a=%zz", encodedToken))))
+    assertEquals(403, post("application/x-www-form-urlencoded; charset=unknown", Seq(form("a=1", encodedToken))))
+  }
+
+  @Test def findsAMultipartTokenSplitAcrossChunks(): Unit = {
+    def part(disposition: String, content: String) =
+      s"--BB\r\nContent-Disposition: form-data; $disposition\r\n\r\n$content\r\n"
+    // The name of the token in the content of another part is not taken for the token part
+    val body = part("name=\"f\"", "name=\"csrfToken\"") + part("name=\"csrfToken\"", token) +
+      part("name=\"file\"; filename=\"x\"", "q" * 3000) + "--BB--\r\n"
+    assertEquals(200, post("multipart/form-data; boundary=BB", body.grouped(11).toSeq))
+    assertEquals(Some(ByteString(body)), actionBody)
+    assertEquals(403, post("multipart/form-data; boundary=BB", Seq(body.replace(token, "forged"))))
+    assertEquals(403, post("multipart/form-data; boundary=BB", Seq(part("name=\"f\"", "1") + "--BB--\r\n")))
+  }
+}
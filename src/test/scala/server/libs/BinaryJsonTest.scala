@@ -0,0 +1,60 @@
+package server.libs
+
+import java.io.ByteArrayOutputStream
+
+import akka.util.ByteString
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory
+import org.junit.Assert._
+import org.junit.Test
+import org.msgpack.jackson.dataformat.MessagePackFactory
+import play.api.libs.json.{JsNull, Json => PlayJson}
+
+class BinaryJsonTest {
+
+  private val value = PlayJson.obj(
+    "name" -> "théâtre",
+    "count" -> 3,
+    "ratio" -> BigDecimal("0.125"),
+    "tags" -> PlayJson.arr("a", true, JsNull),
+    "nested" -> PlayJson.obj("empty" -> PlayJson.arr())
+  )
+
+  @Test def roundTripsCbor(): Unit = {
+    assertEquals(value, BinaryJson.Cbor.parse(BinaryJson.Cbor.toBytes(value)))
+  }
+
+  @Test def roundTripsMessagePack(): Unit = {
+    assertEquals(value, BinaryJson.MsgPack.parse(BinaryJson.MsgPack.toBytes(value)))
+  }
+
+  @Test def readsByteStringsAsBase64(): Unit = {
+    val out = new ByteArrayOutputStream()
+    val generator = new CBORFactory().createGenerator(out)
+    generator.writeStartObject()
+    generator.writeBinaryField("data", Array[Byte](1, 2, 3, -1))
+    generator.writeEndObject()
+    generator.close()
+    assertEquals(PlayJson.obj("data" -> "AQID/w=="), BinaryJson.Cbor.parse(ByteString(out.toByteArray)))
+  }
+
+  @Test def readsMessagePackBinariesAsBase64(): Unit = {
+    val out = new ByteArrayOutputStream()
+    val generator = new MessagePackFactory().createGenerator(out)
+    generator.writeStartArray()
+    generator.writeBinary(Array[Byte](0, 0, 0))
+    generator.writeEndArray()
+    generator.close()
+    assertEquals(PlayJson.arr("AAAA"), BinaryJson.MsgPack.parse(ByteString(out.toByteArray)))
+  }
+
+  @Test def rejectsMalformedInput(): Unit = {
+    Seq(ByteString.empty, ByteString(Array[Byte](-1, 1))).foreach { bytes =>
+      try {
+        BinaryJson.Cbor.parse(bytes)
+        fail(s"Parsed $bytes")
+      } catch {
+        case _: Exception =>
+      }
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package server.libs
+
+import java.nio.charset.StandardCharsets
+import java.util.Base64
+
+import org.junit.Assert._
+import org.junit.Test
+
+class CodecsTest {
+
+  private def bytes(s: String): Array[Byte] = s.getBytes(StandardCharsets.US_ASCII)
+
+  private def assertHex(data: Array[Byte], hex: String): Unit = {
+    assertEquals(hex, Codecs.toHexString(data))
+    assertArrayEquals(hex, data, Codecs.hexStringToByte(hex))
+    assertArrayEquals(hex, data, Codecs.hexStringToByte(hex.toUpperCase))
+  }
+
+  private def assertBase64Url(data: Array[Byte], base64: String): Unit = {
+    assertEquals(base64, Codecs.toBase64Url(data))
+    assertEquals(Codecs.base64UrlLength(data.length), base64.length)
+    assertArrayEquals(base64, data, Codecs.fromBase64Url(base64))
+  }
+
+  @Test def encodesHex(): Unit = {
+    assertHex(Array[Byte](), "")
+    assertHex(Array[Byte](0), "00")
+    assertHex(Array[Byte](0x0f, 0x10, 0x7f, -0x80, -1), "0f107f80ff")
+    assertHex(bytes("foobar"), "666f6f626172")
+  }
+
+  @Test def rejectsInvalidHex(): Unit = {
+    val out = new Array[Byte](2)
+    assertFalse("odd length", Codecs.decodeHex("abc", out, 0))
+    assertFalse("single digit", Codecs.decodeHex("0", out, 0))
+    assertFalse("not a digit", Codecs.decodeHex("0g", out, 0))
+    assertFalse("not digits", Codecs.decodeHex("zz", out, 0))
+    assertFalse("not ASCII", Codecs.decodeHex("é0", out, 0))
+  }
+
+  @Test def encodesBase64UrlTestVectors(): Unit = {
+    // RFC 4648, section 10, unpadded
+    assertBase64Url(bytes(""), "")
+    assertBase64Url(bytes("f"), "Zg")
+    assertBase64Url(bytes("fo"), "Zm8")
+    assertBase64Url(bytes("foo"), "Zm9v")
+    assertBase64Url(bytes("foob"), "Zm9vYg")
+    assertBase64Url(bytes("fooba"), "Zm9vYmE")
+    assertBase64Url(bytes("foobar"), "Zm9vYmFy")
+  }
+
+  @Test def encodesBase64UrlAlphabet(): Unit = {
+    // The two chars base64url replaces
+    assertBase64Url(Array[Byte](-5, -1), "-_8")
+  }
+
+  @Test def rejectsInvalidBase64Url(): Unit = {
+    val out = new Array[Byte](4)
+    assertEquals("single trailing char", -1, Codecs.decodeBase64Url("A", out, 0))
+    assertEquals("padding", -1, Codecs.decodeBase64Url("Zg==", out, 0))
+    assertEquals("standard base64", -1, Codecs.decodeBase64Url("A+", out, 0))
+    assertEquals("standard base64", -1, Codecs.decodeBase64Url("A/", out, 0))
+    assertEquals("trailing bits", -1, Codecs.decodeBase64Url("AB", out, 0))
+  }
+
+  @Test def roundTripsEveryLength(): Unit = {
+    val random = new scala.util.Random(0)
+    for (length <- 0 to 64) {
+      val data = new Array[Byte](length)
+      random.nextBytes(data)
+      assertArrayEquals(data, Codecs.hexStringToByte(Codecs.toHexString(data)))
+      val base64 = Codecs.toBase64Url(data)
+      assertEquals(Base64.getUrlEncoder.withoutPadding.encodeToString(data), base64)
+      assertArrayEquals(data, Codecs.fromBase64Url(base64))
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package server.libs
+
+import java.nio.file.{Files => JFiles, Path}
+import java.time.Instant
+
+import akka.actor.ActorSystem
+import akka.stream.ActorMaterializer
+import akka.stream.scaladsl.Source
+import akka.util.ByteString
+import org.junit.Assert._
+import org.junit.{After, Test}
+import server.inject.DefaultApplicationLifecycle
+import server.libs.Files._
+
+import scala.concurrent.Await
+import scala.concurrent.duration._
+import scala.util.{Success, Try}
+
+class DefaultTemporaryFileCreatorTest {
+
+  private implicit val system: ActorSystem = ActorSystem("DefaultTemporaryFileCreatorTest")
+  private implicit val materializer: ActorMaterializer = ActorMaterializer()
+
+  private val lifecycle = new DefaultApplicationLifecycle
+
+  /** Keeps the index of the creator rather than reaping on a schedule */
+  private object reaper extends TemporaryFileReaper {
+    @volatile var index: TemporaryFileIndex = _
+
+    override def updateTempFolder(folder: Path): Unit = ()
+
+    override def updateIndex(index: TemporaryFileIndex): Unit = this.index = index
+  }
+
+  @After def stop(): Unit = {
+    Await.result(lifecycle.stop(), 10.seconds)
+    Await.result(system.terminate(), 10.seconds)
+  }
+
+  private def creator(config: TemporaryFileCreatorConfiguration) =
+    new DefaultTemporaryFileCreator(lifecycle, reaper, config)
+
+  private def write(creator: TemporaryFileCreator, file: TemporaryFile, size: Int): Try[Long] =
+    Try(Await.result(Source.single(ByteString(new Array[Byte](size))).runWith(creator.sink(file)), 10.seconds))
+      .flatMap(result => result.status.map(_ => result.count))
+
+  /** Creates a file, writes to it and deletes it, leaving nothing referring to the temporary file */
+  private def createAndDelete(creator: TemporaryFileCreator): Path = {
+    val file = creator.create("test", ".tmp")
+    write(creator, file, 10)
+    assertEquals(Success(true), creator.delete(file))
+    file.path
+  }
+
+  @Test def reusesDeletedFilesOnceCollected(): Unit = {
+    val files = creator(TemporaryFileCreatorConfiguration(shards = 1, poolSize = 1))
+    val path = createAndDelete(files)
+    assertTrue("the deleted file is kept for the pool", JFiles.exists(path))
+    assertEquals(0L, JFiles.size(path))
+
+    val deadline = System.currentTimeMillis + 10000
+    var reused = false
+    while (!reused && System.currentTimeMillis < deadline) {
+      System.gc()
+      Thread.sleep(20)
+      val file = files.create("test", ".tmp")
+      reused = file.path == path
+      if (!reused) files.delete(file)
+    }
+    assertTrue("the deleted file is reused once collected", reused)
+  }
+
+  @Test def doesNotReuseFilesStillReferred(): Unit = {
+    val files = creator(TemporaryFileCreatorConfiguration(shards = 1, poolSize = 1))
+    val stale = files.create("test", ".tmp")
+    assertEquals(Success(true), files.delete(stale))
+
+    val fresh = files.create("test", ".tmp")
+    assertNotEquals(stale.path, fresh.path)
+    assertEquals(Success(5L), write(files, fresh, 5))
+
+    // Deleting the stale file again leaves the fresh one alone
+    assertEquals(Success(false), files.delete(stale))
+    assertTrue(JFiles.exists(fresh.path))
+    assertEquals(5L, JFiles.size(fresh.path))
+  }
+
+  @Test def deletesFilesBeyondThePoolSize(): Unit = {
+    val files = creator(TemporaryFileCreatorConfiguration(shards = 1, poolSize = 0))
+    val path = createAndDelete(files)
+    assertFalse(JFiles.exists(path))
+  }
+
+  @Test def limitsTheTotalSizeOfLiveFiles(): Unit = {
+    val files = creator(TemporaryFileCreatorConfiguration(shards = 1, poolSize = 0, maxTotalSize = 10))
+    val first = files.create("test", ".tmp")
+    assertEquals(Success(6L), write(files, first, 6))
+
+    val second = files.create("test", ".tmp")
+    assertTrue(write(files, second, 6).isFailure)
+
+    // The bytes of deleted files no longer count
+    files.delete(first)
+    val third = files.create("test", ".tmp")
+    assertEquals(Success(6L), write(files, third, 6))
+  }
+
+  @Test def limitsTheSizeOfTheFilesOfARequest(): Unit = {
+    val files = creator(TemporaryFileCreatorConfiguration(shards = 1, poolSize = 0, maxSizePerRequest = 10))
+    val scope = files.requestScope()
+    val first = scope.create("test", ".tmp")
+    val second = scope.create("test", ".tmp")
+    assertEquals(Success(6L), write(scope, first, 6))
+    assertTrue(write(scope, second, 6).isFailure)
+
+    scope.close()
+    assertFalse(JFiles.exists(first.path))
+    assertFalse(JFiles.exists(second.path))
+
+    // Another request has its own quota
+    val other = files.requestScope()
+    assertEquals(Success(6L), write(other, other.create("test", ".tmp"), 6))
+  }
+
+  @Test def reapsOnlyLiveFilesOldEnough(): Unit = {
+    val files = creator(TemporaryFileCreatorConfiguration(shards = 1, poolSize = 0))
+    val deleted = files.create("test", ".tmp")
+    files.delete(deleted)
+    val old = files.create("test", ".tmp")
+    JFiles.setLastModifiedTime(old.path, java.nio.file.attribute.FileTime.from(Instant.now().minusSeconds(60)))
+    val written = files.create("test", ".tmp")
+    val cutoff = Instant.now().plusMillis(1)
+    JFiles.setLastModifiedTime(written.path, java.nio.file.attribute.FileTime.from(cutoff.plusSeconds(60)))
+    Thread.sleep(5)
+    val young = files.create("test", ".tmp")
+
+    assertEquals(Seq(old.path), reaper.index.reap(cutoff))
+    assertFalse(JFiles.exists(old.path))
+    assertTrue(JFiles.exists(written.path))
+    assertTrue(JFiles.exists(young.path))
+
+    // The file still written to is checked again by the next run
+    JFiles.setLastModifiedTime(written.path, java.nio.file.attribute.FileTime.from(Instant.now().minusSeconds(60)))
+    assertEquals(Seq(written.path), reaper.index.reap(cutoff))
+  }
+}
@@ -0,0 +1,54 @@
+package server.libs.crypto
+
+import java.util.concurrent.{Callable, Executors, TimeUnit}
+
+import org.junit.Assert._
+import org.junit.Test
+import server.http.SecretConfiguration
+
+class DefaultCookieSignerTest {
+
+  private val old = SecretConfiguration("a" * 32)
+  private val current = SecretConfiguration("b" * 32, previous = Seq("c" * 32, old.secret))
+
+  @Test def signsWithTheApplicationSecret(): Unit = {
+    val signer = new DefaultCookieSigner(current)
+    assertEquals(signer.sign("message", current.secret.getBytes("UTF-8")), signer.sign("message"))
+    assertNotEquals(new DefaultCookieSigner(old).sign("message"), signer.sign("message"))
+  }
+
+  @Test def verifiesSignaturesOfThePreviousSecrets(): Unit = {
+    val signature = new DefaultCookieSigner(old).sign("message")
+    assertTrue(new DefaultCookieSigner(current).verify("message", signature))
+    assertFalse(new DefaultCookieSigner(current).verify("other", signature))
+    // Once the old secret is dropped its signatures are no longer valid
+    assertFalse(new DefaultCookieSigner(current.copy(previous = Nil)).verify("message", signature))
+  }
+
+  @Test def rejectsSignaturesThatAreNotHex(): Unit = {
+    val signer = new DefaultCookieSigner(current)
+    val signature = signer.sign("message")
+    assertTrue(signer.verify("message", signature.toUpperCase))
+    assertFalse(signer.verify("message", ""))
+    assertFalse(signer.verify("message", signature.init))
+    assertFalse(signer.verify("message", "zz" + signature.drop(2)))
+  }
+
+  @Test def signsTheSameFromEveryThread(): Unit = {
+    val signer = new DefaultCookieSigner(current)
+    val expected = signer.sign("message")
+    val executor = Executors.newFixedThreadPool(4)
+    try {
+      // Each thread reuses its Mac, which mustn't keep anything of the previous message
+      val signatures = (1 to 100).map { _ =>
+        executor.submit(new Callable[String] {
+          def call(): String = {
+            signer.sign("other")
+            signer.sign("message")
+          }
+        })
+      }
+      signatures.foreach(signature => assertEquals(expected, signature.get(10, TimeUnit.SECONDS)))
+    } finally executor.shutdown()
+  }
+}
@@ -0,0 +1,124 @@
+package server.mvc
+
+import java.time.{Clock, Instant, ZoneId, ZoneOffset}
+
+import org.junit.Assert._
+import org.junit.Test
+import server.http.{JWTConfiguration, SecretConfiguration}
+import server.libs.crypto.{CookieSigner, CookieSignerProvider}
+
+import scala.concurrent.duration._
+
+class CookieDataCacheTest {
+
+  /** A clock only moved by the tests */
+  private class TestClock extends Clock {
+    @volatile var now: Instant = Instant.parse("2019-06-01T12:00:00Z")
+
+    override def getZone: ZoneId = ZoneOffset.UTC
+
+    override def withZone(zone: ZoneId): Clock = this
+
+    override def instant(): Instant = now
+  }
+
+  private val clock = new TestClock
+  private val data = Map("user" -> "alice")
+
+  /** The number of times the cache called its decode function */
+  private var decodes = 0
+
+  private def decoded(expiresAt: Long): (Map[String, String], Long) = {
+    decodes += 1
+    data -> expiresAt
+  }
+
+  @Test def keepsDecodedDataUntilItExpires(): Unit = {
+    val cache = new CookieDataCache(10, clock)
+    val expiresAt = clock.millis + 60000
+    assertEquals(data, cache.getOrDecode("a")(decoded(expiresAt)))
+    assertEquals(data, cache.getOrDecode("a")(decoded(expiresAt)))
+    assertEquals(1, decodes)
+
+    clock.now = clock.now.plusSeconds(60)
+    cache.getOrDecode("a")(decoded(expiresAt))
+    assertEquals(2, decodes)
+  }
+
+  @Test def doesNotKeepUncachedData(): Unit = {
+    val cache = new CookieDataCache(10, clock)
+    cache.getOrDecode("a")(decoded(CookieDataCache.Uncached))
+    cache.getOrDecode("a")(decoded(CookieDataCache.Uncached))
+    assertEquals(2, decodes)
+  }
+
+  @Test def doesNotKeepLongValues(): Unit = {
+    val cache = new CookieDataCache(10, clock)
+    val value = "a" * 5000
+    cache.getOrDecode(value)(decoded(Long.MaxValue))
+    cache.getOrDecode(value)(decoded(Long.MaxValue))
+    assertEquals(2, decodes)
+  }
+
+  @Test def keepsNothingWithoutASize(): Unit = {
+    val cache = new CookieDataCache(0, clock)
+    cache.getOrDecode("a")(decoded(Long.MaxValue))
+    cache.getOrDecode("a")(decoded(Long.MaxValue))
+    assertEquals(2, decodes)
+  }
+
+  @Test def evictsValuesBeyondItsSize(): Unit = {
+    val cache = new CookieDataCache(1, clock)
+    cache.getOrDecode("a")(decoded(Long.MaxValue))
+    cache.getOrDecode("b")(decoded(Long.MaxValue))
+    cache.getOrDecode("a")(decoded(Long.MaxValue))
+    assertEquals(3, decodes)
+  }
+
+  @Test def jwtCodecExpiresCachedDataWithItsClock(): Unit = {
+    val codec = new JWTCookieDataCodec {
+      val secretConfiguration = SecretConfiguration()
+      val jwtConfiguration = JWTConfiguration(expiresAfter = Some(1.minute), clockSkew = 0.seconds)
+
+      override protected def clock: Clock = CookieDataCacheTest.this.clock
+
+      override protected def cacheSize: Int = 10
+    }
+    val jwt = codec.encode(data)
+    assertEquals(data, codec.decode(jwt))
+    assertEquals(data, codec.decode(jwt))
+
+    // The cached data expires with the JWT, though the system clock hasn't moved
+    clock.now = clock.now.plusSeconds(61)
+    assertEquals(Map.empty, codec.decode(jwt))
+  }
+
+  @Test def signedCodecOnlyCachesAuthenticValues(): Unit = {
+    val signer = new CookieSignerProvider(SecretConfiguration()).get
+    var verified = 0
+    val codec = new UrlEncodedCookieDataCodec {
+      val cookieSigner: CookieSigner = new CookieSigner {
+        def sign(message: String, key: Array[Byte]): String = signer.sign(message, key)
+
+        def sign(message: String): String = signer.sign(message)
+
+        override def verify(message: String, signature: String): Boolean = {
+          verified += 1
+          signer.verify(message, signature)
+        }
+      }
+      val isSigned = true
+
+      override protected def cacheSize: Int = 10
+    }
+    val signed = codec.encode(data)
+    assertEquals(data, codec.decode(signed))
+    assertEquals(data, codec.decode(signed))
+    assertEquals(1, verified)
+
+    val forged = (if (signed.head == '0') "1" else "0") + signed.tail
+    assertEquals(Map.empty, codec.decode(forged))
+    assertEquals(Map.empty, codec.decode(forged))
+    assertEquals(3, verified)
+  }
+}
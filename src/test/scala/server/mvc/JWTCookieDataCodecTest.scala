@@ -0,0 +1,49 @@
+package server.mvc
+
+import java.time.Clock
+
+import io.jsonwebtoken.SignatureException
+import org.junit.Assert._
+import org.junit.Test
+import server.http.{JWTConfiguration, SecretConfiguration}
+
+class JWTCookieDataCodecTest {
+
+  private val old = "a" * 32
+  private val current = "b" * 32
+
+  private def formatter(secret: String, previous: String*) =
+    new JWTCookieDataCodec.JWTFormatter(SecretConfiguration(secret, previous = previous), JWTConfiguration(),
+      Clock.systemUTC())
+
+  private def codec(secret: String, previous: String*): JWTCookieDataCodec = new JWTCookieDataCodec {
+    val secretConfiguration = SecretConfiguration(secret, previous = previous)
+    val jwtConfiguration = JWTConfiguration()
+  }
+
+  @Test def parsesJwtsSignedWithAPreviousSecret(): Unit = {
+    val jwt = formatter(old).format(Map("d" -> "x"))
+    assertEquals("x", formatter(current, "c" * 32, old).parse(jwt)("d"))
+  }
+
+  @Test def rejectsJwtsSignedWithAnUnknownSecret(): Unit = {
+    val jwt = formatter(old).format(Map("d" -> "x"))
+    for (rotated <- Seq(formatter(current), formatter(current, "c" * 32))) {
+      try {
+        rotated.parse(jwt)
+        fail("Parsed a JWT signed with another secret")
+      } catch {
+        case _: SignatureException =>
+      }
+    }
+  }
+
+  @Test def decodesSessionsAcrossARotation(): Unit = {
+    val data = Map("user" -> "alice")
+    val jwt = codec(old).encode(data)
+    assertEquals(data, codec(current, old).decode(jwt))
+    assertEquals(Map.empty, codec(current).decode(jwt))
+    // New sessions are signed with the current secret
+    assertEquals(Map.empty, codec(old).decode(codec(current, old).encode(data)))
+  }
+}
@@ -0,0 +1,51 @@
+package server.mvc
+
+import org.junit.Assert._
+import org.junit.Test
+
+class RangeResultTest {
+
+  /** The ranges of a 10 bytes long entity */
+  private def ranges(header: String): Option[Seq[(Long, Long)]] = RangeResult.parseRanges(header, 10)
+
+  @Test def parsesSingleRanges(): Unit = {
+    assertEquals(Some(Seq(0L -> 0L)), ranges("bytes=0-0"))
+    assertEquals(Some(Seq(2L -> 4L)), ranges("bytes=2-4"))
+    assertEquals(Some(Seq(1L -> 2L)), ranges(" Bytes=1-2 "))
+  }
+
+  @Test def endsOpenRangesAtTheLastByte(): Unit = {
+    assertEquals(Some(Seq(2L -> 9L)), ranges("bytes=2-"))
+    assertEquals(Some(Seq(2L -> 9L)), ranges("bytes=2-100"))
+  }
+
+  @Test def parsesSuffixRanges(): Unit = {
+    assertEquals(Some(Seq(7L -> 9L)), ranges("bytes=-3"))
+    assertEquals(Some(Seq(0L -> 9L)), ranges("bytes=-100"))
+  }
+
+  @Test def sortsAndCoalescesRanges(): Unit = {
+    assertEquals(Some(Seq(0L -> 1L, 5L -> 6L)), ranges("bytes=0-1, 5-6"))
+    assertEquals(Some(Seq(0L -> 1L, 5L -> 6L)), ranges("bytes=5-6,0-1"))
+    assertEquals(Some(Seq(0L -> 1L, 5L -> 7L)), ranges("bytes=0-1,5-6,6-7"))
+    assertEquals(Some(Seq(0L -> 3L)), ranges("bytes=0-1,2-3"))
+    assertEquals(Some(Seq(0L -> 5L)), ranges("bytes=0-5,1-2"))
+  }
+
+  @Test def dropsUnsatisfiableRanges(): Unit = {
+    assertEquals(Some(Nil), ranges("bytes=10-"))
+    assertEquals(Some(Nil), ranges("bytes=-0"))
+    assertEquals(Some(Seq(1L -> 1L)), ranges("bytes=20-30,1-1"))
+  }
+
+  @Test def ignoresInvalidHeaders(): Unit = {
+    for (header <- Seq("bytes=", "bytes=-", "bytes=x", "bytes=4-2", "bytes=1-2,x", "items=0-1", "0-1",
+      "bytes=99999999999999999999-")) {
+      assertEquals(header, None, ranges(header))
+    }
+  }
+
+  @Test def ignoresTooManyRanges(): Unit = {
+    assertEquals(None, ranges("bytes=" + Seq.fill(17)("0-0").mkString(",")))
+  }
+}
@@ -0,0 +1,78 @@
+package server.mvc
+
+import java.io.File
+import java.net.URLClassLoader
+import java.nio.file.{Files => JFiles, Paths}
+import java.util.jar.{JarEntry, JarOutputStream}
+
+import akka.actor.ActorSystem
+import akka.stream.ActorMaterializer
+import org.junit.Assert._
+import org.junit.{After, Test}
+import server.http.{DefaultFileMimeTypes, FileMimeTypes, FileMimeTypesConfiguration}
+
+import scala.concurrent.Await
+import scala.concurrent.duration._
+
+class SendResourceTest {
+
+  private implicit val system: ActorSystem = ActorSystem("SendResourceTest")
+  private implicit val materializer: ActorMaterializer = ActorMaterializer()
+  private implicit val fileMimeTypes: FileMimeTypes =
+    new DefaultFileMimeTypes(FileMimeTypesConfiguration(Map("txt" -> "text/plain")))
+
+  @After def stop(): Unit = Await.result(system.terminate(), 10.seconds)
+
+  private val jar: File = {
+    val file = JFiles.createTempFile("resources", ".jar").toFile
+    file.deleteOnExit()
+    val out = new JarOutputStream(JFiles.newOutputStream(file.toPath))
+    try {
+      val entry = new JarEntry("static/hello.txt")
+      entry.setTime(1500000000000L)
+      out.putNextEntry(entry)
+      out.write("Hello, world".getBytes("UTF-8"))
+      out.closeEntry()
+    } finally out.close()
+    file
+  }
+
+  /** The number of file descriptors of this process open on the jar, when the platform tells */
+  private def openDescriptors: Option[Int] = {
+    val fds = new File("/proc/self/fd")
+    Option(fds.listFiles).map(_.count { fd =>
+      scala.util.Try(JFiles.readSymbolicLink(fd.toPath)).toOption.contains(jar.toPath)
+    })
+  }
+
+  @Test def sendsResourcesFromJars(): Unit = {
+    val loader = new URLClassLoader(Array(jar.toURI.toURL), null)
+    try {
+      // The class loader keeps the jar it looked the resource up in open
+      loader.getResource("static/hello.txt")
+      val before = openDescriptors
+      val result = Results.Ok.sendResource("static/hello.txt", loader)
+      assertEquals(Some(12L), result.body.contentLength)
+      assertTrue(result.header.headers.contains("ETag"))
+      assertTrue(result.header.headers.contains("Last-Modified"))
+      // Nothing is left open until the body is read
+      assertEquals(before, openDescriptors)
+      assertEquals("Hello, world", Await.result(result.body.consumeData, 10.seconds).utf8String)
+      assertEquals(before, openDescriptors)
+    } finally loader.close()
+  }
+
+  @Test def sendsResourcesFromDirectories(): Unit = {
+    val directory = JFiles.createTempDirectory("resources")
+    JFiles.write(directory.resolve("hello.txt"), "Hello".getBytes("UTF-8"))
+    val loader = new URLClassLoader(Array(directory.toUri.toURL), null)
+    try {
+      val result = Results.Ok.sendResource("hello.txt", loader)
+      assertEquals(Some(5L), result.body.contentLength)
+      assertEquals(Paths.get(directory.resolve("hello.txt").toUri), result.body match {
+        case file: server.http.HttpEntity.File => file.path
+        case other => fail(s"Not a file: $other")
+      })
+    } finally loader.close()
+  }
+}
@@ -0,0 +1,111 @@
+package server.mvc
+
+import java.nio.file.{Files => JFiles}
+
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.handler.codec.http.{DefaultFullHttpRequest, HttpHeaderNames, HttpMethod, HttpVersion}
+import org.junit.Assert._
+import org.junit.Test
+import server.http.{FlashConfiguration, HttpConfiguration, SecretConfiguration, SessionConfiguration}
+import server.libs.crypto.CookieSignerProvider
+import server.libs.typedmap.TypedMap
+import server.mvc.request.DefaultRequestFactory
+import server.netty.NettyModelConversion
+
+import scala.concurrent.duration._
+
+class SessionStoreTest {
+
+  private val data = Map("user" -> "alice", "théme" -> "sombre", "" -> "")
+
+  private val signer = new CookieSignerProvider(SecretConfiguration()).get
+
+  @Test def offHeapStoreKeepsDataUntilRemoved(): Unit = {
+    val store = new OffHeapSessionStore(1 << 20, 1.hour)
+    try {
+      store.put("a", data)
+      assertEquals(Some(data), store.get("a"))
+      assertEquals(None, store.get("b"))
+      store.remove("a")
+      assertEquals(None, store.get("a"))
+    } finally store.close()
+  }
+
+  @Test def offHeapStoreEvictsTheOldestSessionsWhenFull(): Unit = {
+    val store = new OffHeapSessionStore(2000, 1.hour)
+    try {
+      (1 to 100).foreach(i => store.put(s"id$i", data))
+      assertEquals(None, store.get("id1"))
+      assertEquals(Some(data), store.get("id100"))
+    } finally store.close()
+  }
+
+  @Test def offHeapStoreExpiresSessions(): Unit = {
+    val store = new OffHeapSessionStore(1 << 20, 1.milli)
+    try {
+      store.put("a", data)
+      Thread.sleep(10)
+      assertEquals(None, store.get("a"))
+    } finally store.close()
+  }
+
+  @Test def fileStoreKeepsDataUntilRemoved(): Unit = {
+    val directory = JFiles.createTempDirectory("sessions")
+    val store = new FileSessionStore(directory, 1.hour)
+    store.put("Ab-_1", data)
+    assertEquals(Some(data), store.get("Ab-_1"))
+    // Ids that are not ours are never turned into paths
+    assertEquals(None, store.get("../Ab-_1"))
+    store.remove("Ab-_1")
+    assertEquals(None, store.get("Ab-_1"))
+  }
+
+  @Test def fileStoreSweepsExpiredSessions(): Unit = {
+    val directory = JFiles.createTempDirectory("sessions")
+    val store = new FileSessionStore(directory, 1.milli)
+    store.put("a", data)
+    Thread.sleep(10)
+    assertEquals(None, store.get("a"))
+    store.sweep()
+    assertEquals(0L, JFiles.list(directory).count())
+  }
+
+  @Test def bakerIgnoresForgedIds(): Unit = {
+    val store = new OffHeapSessionStore(1 << 20, 1.hour)
+    try {
+      val baker = new ServerSideSessionCookieBaker(SessionConfiguration(), signer, store)
+      val cookie = baker.encodeAsCookie(Session(data))
+      assertEquals(Session(data), baker.decodeFromCookie(Some(cookie)))
+      val forged = cookie.copy(value = (if (cookie.value.head == '0') "1" else "0") + cookie.value.tail)
+      assertEquals(Session(), baker.decodeFromCookie(Some(forged)))
+      assertEquals(Session(), baker.decodeFromCookie(Some(cookie.copy(value = "garbage"))))
+    } finally store.close()
+  }
+
+  @Test def responsesRemoveTheSessionTheyReplaceOrDiscard(): Unit = {
+    val store = new OffHeapSessionStore(1 << 20, 1.hour)
+    try {
+      val baker = new ServerSideSessionCookieBaker(SessionConfiguration(), signer, store)
+      val httpConfiguration = HttpConfiguration()
+      val factory = new DefaultRequestFactory(
+        new DefaultCookieHeaderEncoding(httpConfiguration.cookies),
+        baker,
+        new DefaultFlashCookieBaker(FlashConfiguration(), SecretConfiguration(), signer)
+      )
+      val conversion = new NettyModelConversion(factory, httpConfiguration)
+
+      def respond(session: Map[String, String], result: Result): Unit = {
+        val cookie = baker.encodeAsCookie(Session(session))
+        val nettyRequest = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/")
+        nettyRequest.headers.set(HttpHeaderNames.COOKIE, s"${cookie.name}=${cookie.value}")
+        val request = conversion.convertRequest(new EmbeddedChannel(), nettyRequest, TypedMap.empty).get
+        conversion.convertResponseHeader(request, result, HttpVersion.HTTP_1_1)
+        assertEquals(result.newSession.isEmpty, baker.decodeFromCookie(Some(cookie)) == Session(session))
+      }
+
+      respond(data, Results.Ok)
+      respond(data, Results.Ok.withSession("user" -> "bob"))
+      respond(data, Results.Ok.withNewSession)
+    } finally store.close()
+  }
+}